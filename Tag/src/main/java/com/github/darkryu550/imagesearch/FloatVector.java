@@ -0,0 +1,91 @@
+package com.github.darkryu550.imagesearch;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/** An immutable, fixed-length vector of single precision values, for taggers
+ * whose tags are best compared as points in space. Vectors get stored in the
+ * database as packed little-endian floats. */
+public final class FloatVector {
+    private final float[] values;
+
+    /** Create a new vector holding a copy of the given values. */
+    public FloatVector(float[] values) {
+        this.values = values.clone();
+    }
+
+    /** Read a vector back from its packed representation.
+     * @throws IllegalArgumentException When the length of the given array is
+     * not a multiple of the size of a float.
+     */
+    public static FloatVector fromBytes(byte[] bytes) {
+        if(bytes.length % Float.BYTES != 0)
+            throw new IllegalArgumentException("Expected a multiple of " + Float.BYTES + " bytes");
+
+        var values = new float[bytes.length / Float.BYTES];
+        ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer().get(values);
+        return new FloatVector(values);
+    }
+
+    /** Parse a vector from a list of real numbers separated by commas,
+     * optionally enclosed in square brackets.
+     * @throws IllegalArgumentException When the string is not such a list.
+     */
+    public static FloatVector fromString(String value) {
+        try {
+            value = value.strip().replace("[", "").replace("]", "");
+            if(value.isEmpty())
+                return new FloatVector(new float[0]);
+
+            var parts = value.split(",");
+            var values = new float[parts.length];
+            for(int i = 0; i < parts.length; ++i)
+                values[i] = Float.parseFloat(parts[i].strip());
+
+            return new FloatVector(values);
+        } catch(NumberFormatException e) {
+            throw new IllegalArgumentException(
+                "Expected a list of real numbers separated by commas",
+                e);
+        }
+    }
+
+    /** The packed representation of this vector. */
+    public byte[] toBytes() {
+        var buffer = ByteBuffer.allocate(this.values.length * Float.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.asFloatBuffer().put(this.values);
+        return buffer.array();
+    }
+
+    public int size() {
+        return this.values.length;
+    }
+
+    public float get(int index) {
+        return this.values[index];
+    }
+
+    /** A copy of the values in this vector. */
+    public float[] toArray() {
+        return this.values.clone();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        FloatVector that = (FloatVector) o;
+        return Arrays.equals(values, that.values);
+    }
+
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(values);
+    }
+
+    @Override
+    public String toString() {
+        return Arrays.toString(values);
+    }
+}
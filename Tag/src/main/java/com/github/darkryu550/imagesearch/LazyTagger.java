@@ -0,0 +1,95 @@
+package com.github.darkryu550.imagesearch;
+
+import java.awt.image.BufferedImage;
+import java.sql.SQLType;
+import java.util.Optional;
+import java.util.function.Supplier;
+
+/** A tagger that only gets created the first time it is actually used.
+ * <br><br>
+ * Registering a tagger only ever needs its type, and reading its values or
+ * parsing its tags only ever needs its codec, so wrapping taggers that are
+ * expensive to set up, be it because they load native libraries or open files
+ * of their own, keeps their cost off of the commands that never run them.
+ * Closing it closes the tagger, if it was created and can be closed. */
+public class LazyTagger implements Tagger, AutoCloseable {
+    protected final SQLType type;
+    protected final TagCodec codec;
+    protected final Supplier<? extends Tagger> supplier;
+    protected volatile Tagger tagger;
+
+    /** Create a new lazy tagger.
+     * @param type The SQL type of the objects produced by the tagger, which
+     *             must be the same as the one it reports itself.
+     * @param codec Reads and writes the tags of the tagger, just as the tagger
+     *              itself would.
+     * @param supplier Creates the tagger, called at most once.
+     */
+    public LazyTagger(SQLType type, TagCodec codec, Supplier<? extends Tagger> supplier) {
+        this.type = type;
+        this.codec = codec;
+        this.supplier = supplier;
+    }
+
+    /** Get the tagger, creating it if it hasn't been created yet. */
+    public Tagger get() {
+        var tagger = this.tagger;
+        if(tagger == null) {
+            synchronized(this) {
+                tagger = this.tagger;
+                if(tagger == null) {
+                    tagger = this.supplier.get();
+                    this.tagger = tagger;
+                }
+            }
+        }
+        return tagger;
+    }
+
+    /** Whether the tagger has been created yet. */
+    public boolean isCreated() {
+        return this.tagger != null;
+    }
+
+    @Override
+    public void close() throws Exception {
+        var tagger = this.tagger;
+        if(tagger instanceof AutoCloseable)
+            ((AutoCloseable) tagger).close();
+    }
+
+    @Override
+    public SQLType getType() {
+        return this.type;
+    }
+
+    @Override
+    public Optional<Object> tag(BufferedImage image) throws TaggingException {
+        return this.get().tag(image);
+    }
+
+    @Override
+    public Object getTagFromString(String value) {
+        return this.codec.getTagFromString(value);
+    }
+
+    @Override
+    public Object toStorage(Object tag) {
+        return this.codec.toStorage(tag);
+    }
+
+    @Override
+    public Object fromStorage(Object value) {
+        return this.codec.fromStorage(value);
+    }
+
+    @Override
+    public Optional<Double> getTagDistance(Object a, Object b) {
+        return this.get().getTagDistance(a, b);
+    }
+
+    @Override
+    public Optional<Double> getTagDistance(Object a, Object b, double bound) {
+        return this.get().getTagDistance(a, b, bound);
+    }
+}
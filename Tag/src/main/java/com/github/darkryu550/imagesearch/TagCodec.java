@@ -0,0 +1,47 @@
+package com.github.darkryu550.imagesearch;
+
+/** The way the tags of a tagger get written down, be it as strings or as the
+ * values stored in the database for them.
+ * <br><br>
+ * Every tagger is its own codec, but codecs are also useful on their own, for
+ * reading and writing tags without having to create the tagger that produces
+ * them, which may be expensive to set up. */
+public interface TagCodec {
+    /** Given a {@link String} representing a tag, try to build a tag object
+     * that's equivalent to it.
+     *
+     * @param value The string representation of the tag.
+     * @throws IllegalArgumentException If the given string value does not
+     * contain a valid representation in this tag format or if not enough
+     * information is present for the creation of the tag object.
+     * @return The tag that most closely matches the given input string.
+     */
+    Object getTagFromString(String value);
+
+    /** Given a tag object, convert it to the value that gets stored in the
+     * database for it. By default, tags are stored as is.
+     *
+     * @param tag The tag object.
+     * @return A value that can be bound to a SQL statement.
+     */
+    default Object toStorage(Object tag) {
+        return tag;
+    }
+
+    /** Given a value read back from the database, convert it to the tag object
+     * it stands for. This is the inverse of {@link #toStorage(Object)}, and
+     * by default it only converts strings, through
+     * {@link #getTagFromString(String)}, as some values get converted to
+     * strings when they get stored.
+     *
+     * @param value The value, as read from the database.
+     * @throws IllegalArgumentException If the given value is not a valid
+     * stored representation of a tag.
+     * @return The tag object.
+     */
+    default Object fromStorage(Object value) {
+        if(value instanceof String)
+            return this.getTagFromString((String) value);
+        return value;
+    }
+}
@@ -5,10 +5,19 @@ import java.sql.SQLType;
 import java.util.Optional;
 
 /** A thread-safe tagger.*/
-public interface Tagger {
+public interface Tagger extends TagCodec {
     /** The SQL type of the objects produced by this tagger. */
     SQLType getType();
 
+    /** A string standing for the way this tagger computes its tags, which must
+     * change whenever the tags it produces stop being comparable with the ones
+     * it produced before. Values stored by any other version get thrown out
+     * when the tagger gets registered, so that they never get compared with
+     * new ones. By default, the version never changes. */
+    default String getVersion() {
+        return "";
+    }
+
     /** Given a {@link BufferedImage}, try to produce a tag from it, which can
      * then be passed on to a SQL database or used as is.
      * <br><br>
@@ -20,17 +29,6 @@ public interface Tagger {
      */
     Optional<Object> tag(BufferedImage image) throws TaggingException;
 
-    /** Given a {@link String} representing a tag from this tagger, try to
-     * build a tag object that's equivalent to it.
-     *
-     * @param value The string representation of the tag.
-     * @throws IllegalArgumentException If the given string value does not
-     * contain a valid representation in this tag format or if not enough
-     * information is present for the creation of the tag object.
-     * @return The tag that most closely matches the given input string.
-     */
-    Object getTagFromString(String value);
-
     /** Given two tag objects, calculate a distance value between them.
      * @param a The origin tag.
      * @param b The destination tag.
@@ -40,4 +38,23 @@ public interface Tagger {
      * if any can be computed.
      */
     Optional<Double> getTagDistance(Object a, Object b);
+
+    /** Given two tag objects, calculate a distance value between them, if it
+     * is no greater than the given bound.
+     * <br><br>
+     * Taggers whose distance functions are expensive should override this
+     * function with one that gives up as soon as the distance is known to be
+     * greater than the bound, which is what lets searches with a threshold, or
+     * for the nearest few elements, skip most of the work.
+     * @param a The origin tag.
+     * @param b The destination tag.
+     * @param bound The largest distance the caller is interested in.
+     * @throws IllegalArgumentException If either tag objects are not valid
+     * tag objects.
+     * @return The signed distance from the first object to the second object,
+     * if any can be computed and it is no greater than {@code bound}.
+     */
+    default Optional<Double> getTagDistance(Object a, Object b, double bound) {
+        return this.getTagDistance(a, b).filter((d) -> d <= bound);
+    }
 }
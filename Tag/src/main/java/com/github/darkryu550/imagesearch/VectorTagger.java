@@ -0,0 +1,68 @@
+package com.github.darkryu550.imagesearch;
+
+import com.github.darkryu550.imagesearch.kernel.Kernels;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/** A tagger whose tags are all vectors with the same number of dimensions,
+ * which lets them be laid out, and compared, as plain arrays of floats, away
+ * from the database. */
+public interface VectorTagger extends Tagger {
+    /** The number of dimensions of the vectors of this tagger. */
+    int getDimensions();
+
+    /** Given a tag object produced by this tagger, or a value it has been
+     * stored as, convert it to its vector.
+     *
+     * @param tag The tag object.
+     * @throws IllegalArgumentException If the given object is not a valid tag
+     * of this tagger, or if it doesn't have the right number of dimensions.
+     * @return The vector, with {@link #getDimensions()} elements.
+     */
+    float[] toVector(Object tag);
+
+    /** Given a vector and another one, packed as floats in a buffer, calculate
+     * the distance from the first to the second, which must be the same as the
+     * one {@link #getTagDistance(Object, Object)} gives for the tags they were
+     * made from. By default, this is the euclidean distance between them, as
+     * given by the {@link Kernels}.
+     *
+     * @param a The origin vector.
+     * @param b The buffer holding the destination vector, in its byte order.
+     * @param offset The offset, in bytes, of the destination vector.
+     * @return The distance between the vectors.
+     */
+    default double getVectorDistance(float[] a, ByteBuffer b, int offset) {
+        return Kernels.get().l2(a, b, offset);
+    }
+
+    /** Convert a list of numbers into a vector with the given number of
+     * dimensions, which is how most list tags get turned into vectors.
+     * @throws IllegalArgumentException If the given object is not such a list.
+     */
+    static float[] toVector(Object tag, int dimensions) {
+        var vector = VectorTagger.toFloats(tag);
+        if(vector.length != dimensions)
+            throw new IllegalArgumentException("Expected " + dimensions + " elements, got " + vector.length);
+        return vector;
+    }
+
+    /** Convert a list of numbers, of any length, into an array of floats.
+     * @throws IllegalArgumentException If the given object is not such a list.
+     */
+    static float[] toFloats(Object tag) {
+        if(!(tag instanceof List<?>))
+            throw new IllegalArgumentException("Expected a list of numbers");
+
+        var list = (List<?>) tag;
+        var vector = new float[list.size()];
+        for(int i = 0; i < vector.length; ++i) {
+            var element = list.get(i);
+            if(!(element instanceof Number))
+                throw new IllegalArgumentException("Expected a list of numbers");
+            vector[i] = ((Number) element).floatValue();
+        }
+        return vector;
+    }
+}
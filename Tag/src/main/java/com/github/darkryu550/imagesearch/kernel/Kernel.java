@@ -0,0 +1,37 @@
+package com.github.darkryu550.imagesearch.kernel;
+
+import java.nio.ByteBuffer;
+
+/** Distance functions over vectors of floats, the tight loops every brute
+ * force comparison of vector tags ends up spending its time in.
+ * <br><br>
+ * Every function comes in two forms, one comparing two arrays, over as many
+ * elements as the shortest of them has, and one comparing an array to as many
+ * floats packed into a buffer, in its byte order, starting at an offset, which
+ * is how vectors mapped from files get compared. Both forms give the exact
+ * same results for the same values. Implementations must be thread safe. */
+public interface Kernel {
+    /** The sum of the absolute differences between the elements. */
+    double l1(float[] a, float[] b);
+    double l1(float[] a, ByteBuffer b, int offset);
+
+    /** The euclidean distance between the vectors. */
+    double l2(float[] a, float[] b);
+    double l2(float[] a, ByteBuffer b, int offset);
+
+    /** One minus the cosine of the angle between the vectors, which is zero
+     * when both of them are zero and one when only one of them is. */
+    double cosine(float[] a, float[] b);
+    double cosine(float[] a, ByteBuffer b, int offset);
+
+    /** The chi-squared distance, the sum of {@code (a - b)^2 / (a + b)} over
+     * all elements where {@code a + b} is not zero. Meant for histograms. */
+    double chiSquared(float[] a, float[] b);
+    double chiSquared(float[] a, ByteBuffer b, int offset);
+
+    /** One minus the histogram intersection of the vectors, the sum of the
+     * smallest of every pair of elements, over the largest of their sums.
+     * Zero when both of them sum up to zero. Meant for histograms. */
+    double intersection(float[] a, float[] b);
+    double intersection(float[] a, ByteBuffer b, int offset);
+}
@@ -0,0 +1,88 @@
+package com.github.darkryu550.imagesearch.kernel;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+
+/** Picks the fastest implementation of the kernels the runtime supports.
+ * <br><br>
+ * The vector API kernels are only used when the runtime is new enough for the
+ * versioned classes in the jar to be loaded, when the incubating module they
+ * rely on has been added, with {@code --add-modules jdk.incubator.vector}, and
+ * when they agree with the scalar ones on a set of random vectors. Otherwise,
+ * as well as when the {@value #PROPERTY} system property is set to
+ * {@code scalar}, the scalar kernels are used. */
+public final class Kernels {
+    /** System property through which the scalar kernels can be forced. */
+    public static final String PROPERTY = "imagesearch.kernels";
+
+    /* How far apart the results of two implementations may be, relative to
+     * their magnitude, as the vector kernels sum up in single precision. */
+    private static final double TOLERANCE = 1e-4;
+
+    private Kernels() {}
+
+    /** The kernels every distance computation should go through. */
+    public static Kernel get() {
+        return Holder.KERNEL;
+    }
+
+    /** Whether the kernels in use are the vector API ones. */
+    public static boolean isVectorized() {
+        return !(Holder.KERNEL instanceof ScalarKernel);
+    }
+
+    private static final class Holder {
+        private static final Kernel KERNEL = Kernels.select();
+    }
+
+    private static Kernel select() {
+        var scalar = new ScalarKernel();
+        if("scalar".equalsIgnoreCase(System.getProperty(PROPERTY)))
+            return scalar;
+
+        try {
+            var vector = VectorKernel.create();
+            if(vector.isPresent() && Kernels.agree(scalar, vector.get()))
+                return vector.get();
+        } catch(LinkageError | RuntimeException e) {
+            /* The incubating module is missing, or the kernels are broken. */
+        }
+        return scalar;
+    }
+
+    /** Check the given kernels against the reference ones, over random vectors
+     * long enough to cover both the vector loops and their scalar tails. The
+     * array and buffer forms of the kernels must also agree with each other. */
+    static boolean agree(Kernel reference, Kernel kernel) {
+        var random = new Random(0x5eed);
+        for(var length : new int[] { 0, 1, 3, 7, 8, 15, 16, 17, 31, 32, 33, 63, 64, 65, 256, 257 }) {
+            var a = new float[length];
+            var b = new float[length];
+            for(int i = 0; i < length; ++i) {
+                a[i] = random.nextFloat() * 1000;
+                b[i] = random.nextInt(4) == 0 ? 0 : random.nextFloat() * 1000;
+            }
+
+            /* Pack b at an odd place in the buffer, as mapped slots may be. */
+            var offset = Float.BYTES * 3;
+            var buffer = ByteBuffer.allocate(offset + length * Float.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            for(int i = 0; i < length; ++i)
+                buffer.putFloat(offset + i * Float.BYTES, b[i]);
+
+            if(!Kernels.agree(reference.l1(a, b), kernel.l1(a, b), kernel.l1(a, buffer, offset))
+                || !Kernels.agree(reference.l2(a, b), kernel.l2(a, b), kernel.l2(a, buffer, offset))
+                || !Kernels.agree(reference.cosine(a, b), kernel.cosine(a, b), kernel.cosine(a, buffer, offset))
+                || !Kernels.agree(reference.chiSquared(a, b), kernel.chiSquared(a, b), kernel.chiSquared(a, buffer, offset))
+                || !Kernels.agree(reference.intersection(a, b), kernel.intersection(a, b), kernel.intersection(a, buffer, offset)))
+                return false;
+        }
+        return true;
+    }
+
+    private static boolean agree(double expected, double array, double buffer) {
+        if(Double.compare(array, buffer) != 0)
+            return false;
+        return Math.abs(expected - array) <= TOLERANCE * Math.max(1.0, Math.abs(expected));
+    }
+}
@@ -0,0 +1,141 @@
+package com.github.darkryu550.imagesearch.kernel;
+
+import java.nio.ByteBuffer;
+
+/** Plain implementations of the kernels, which run anywhere, and against
+ * which every other implementation gets checked. Everything is computed in
+ * double precision. */
+public final class ScalarKernel implements Kernel {
+    @Override
+    public double l1(float[] a, float[] b) {
+        var size = Math.min(a.length, b.length);
+
+        double total = 0.0;
+        for(int i = 0; i < size; ++i)
+            total += Math.abs((double) a[i] - b[i]);
+        return total;
+    }
+
+    @Override
+    public double l1(float[] a, ByteBuffer b, int offset) {
+        double total = 0.0;
+        for(int i = 0; i < a.length; ++i)
+            total += Math.abs((double) a[i] - b.getFloat(offset + i * Float.BYTES));
+        return total;
+    }
+
+    @Override
+    public double l2(float[] a, float[] b) {
+        var size = Math.min(a.length, b.length);
+
+        double total = 0.0;
+        for(int i = 0; i < size; ++i) {
+            double d = (double) a[i] - b[i];
+            total += d * d;
+        }
+        return Math.sqrt(total);
+    }
+
+    @Override
+    public double l2(float[] a, ByteBuffer b, int offset) {
+        double total = 0.0;
+        for(int i = 0; i < a.length; ++i) {
+            double d = (double) a[i] - b.getFloat(offset + i * Float.BYTES);
+            total += d * d;
+        }
+        return Math.sqrt(total);
+    }
+
+    @Override
+    public double cosine(float[] a, float[] b) {
+        var size = Math.min(a.length, b.length);
+
+        double dot = 0.0, na = 0.0, nb = 0.0;
+        for(int i = 0; i < size; ++i) {
+            dot += (double) a[i] * b[i];
+            na += (double) a[i] * a[i];
+            nb += (double) b[i] * b[i];
+        }
+        return ScalarKernel.cosine(dot, na, nb);
+    }
+
+    @Override
+    public double cosine(float[] a, ByteBuffer b, int offset) {
+        double dot = 0.0, na = 0.0, nb = 0.0;
+        for(int i = 0; i < a.length; ++i) {
+            double r = b.getFloat(offset + i * Float.BYTES);
+            dot += a[i] * r;
+            na += (double) a[i] * a[i];
+            nb += r * r;
+        }
+        return ScalarKernel.cosine(dot, na, nb);
+    }
+
+    @Override
+    public double chiSquared(float[] a, float[] b) {
+        var size = Math.min(a.length, b.length);
+
+        double total = 0.0;
+        for(int i = 0; i < size; ++i) {
+            double s = (double) a[i] + b[i];
+            if(s == 0) continue;
+
+            double d = (double) a[i] - b[i];
+            total += d * d / s;
+        }
+        return total;
+    }
+
+    @Override
+    public double chiSquared(float[] a, ByteBuffer b, int offset) {
+        double total = 0.0;
+        for(int i = 0; i < a.length; ++i) {
+            double r = b.getFloat(offset + i * Float.BYTES);
+            double s = a[i] + r;
+            if(s == 0) continue;
+
+            double d = a[i] - r;
+            total += d * d / s;
+        }
+        return total;
+    }
+
+    @Override
+    public double intersection(float[] a, float[] b) {
+        var size = Math.min(a.length, b.length);
+
+        double shared = 0.0, sa = 0.0, sb = 0.0;
+        for(int i = 0; i < size; ++i) {
+            shared += Math.min(a[i], b[i]);
+            sa += a[i];
+            sb += b[i];
+        }
+        return ScalarKernel.intersection(shared, sa, sb);
+    }
+
+    @Override
+    public double intersection(float[] a, ByteBuffer b, int offset) {
+        double shared = 0.0, sa = 0.0, sb = 0.0;
+        for(int i = 0; i < a.length; ++i) {
+            var r = b.getFloat(offset + i * Float.BYTES);
+            shared += Math.min(a[i], r);
+            sa += a[i];
+            sb += r;
+        }
+        return ScalarKernel.intersection(shared, sa, sb);
+    }
+
+    /** Turn the sums of a cosine distance into the distance. */
+    static double cosine(double dot, double na, double nb) {
+        if(na == 0 && nb == 0) return 0.0;
+        if(na == 0 || nb == 0) return 1.0;
+        return 1.0 - dot / Math.sqrt(na * nb);
+    }
+
+    /** Turn the sums of an intersection distance into the distance. */
+    static double intersection(double shared, double sa, double sb) {
+        var max = Math.max(sa, sb);
+        if(max == 0) return 0.0;
+        return 1.0 - shared / max;
+    }
+}
@@ -0,0 +1,17 @@
+package com.github.darkryu550.imagesearch.kernel;
+
+import java.util.Optional;
+
+/** Kernels built on the vector API, which only exists from Java 16 onwards.
+ * <br><br>
+ * This is the version of the class older runtimes get, which has no kernels
+ * to offer. Runtimes that are new enough get the one in the {@code java16}
+ * source set instead, from the versioned part of the multi-release jar. */
+final class VectorKernel {
+    private VectorKernel() {}
+
+    /** Create the kernels, if they are supported by the runtime. */
+    static Optional<Kernel> create() {
+        return Optional.empty();
+    }
+}
@@ -0,0 +1,254 @@
+package com.github.darkryu550.imagesearch.kernel;
+
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+import java.nio.ByteBuffer;
+import java.util.Optional;
+
+/** Kernels built on the vector API, which only exists from Java 16 onwards.
+ * <br><br>
+ * Every kernel goes over as many elements as fit in the widest vectors the
+ * processor has at a time, keeping a partial sum in every lane, and finishes
+ * off the elements that are left in double precision. Lanes sum up in single
+ * precision, so results may differ from the scalar ones in their last digits.
+ * Both forms of every kernel go through the elements in the same order, so
+ * they always agree with each other exactly. */
+final class VectorKernel implements Kernel {
+    private static final VectorSpecies<Float> SPECIES = FloatVector.SPECIES_PREFERRED;
+
+    private VectorKernel() {}
+
+    /** Create the kernels, if they are supported by the runtime. */
+    static Optional<Kernel> create() {
+        return Optional.of(new VectorKernel());
+    }
+
+    private static FloatVector load(ByteBuffer b, int offset, int index) {
+        return FloatVector.fromByteBuffer(SPECIES, b, offset + index * Float.BYTES, b.order());
+    }
+
+    @Override
+    public double l1(float[] a, float[] b) {
+        var size = Math.min(a.length, b.length);
+        var sum = FloatVector.zero(SPECIES);
+        int i = 0;
+        for(var bound = SPECIES.loopBound(size); i < bound; i += SPECIES.length()) {
+            var d = FloatVector.fromArray(SPECIES, a, i).sub(FloatVector.fromArray(SPECIES, b, i));
+            sum = sum.add(d.abs());
+        }
+
+        double total = sum.reduceLanes(VectorOperators.ADD);
+        for(; i < size; ++i)
+            total += Math.abs((double) a[i] - b[i]);
+        return total;
+    }
+
+    @Override
+    public double l1(float[] a, ByteBuffer b, int offset) {
+        var sum = FloatVector.zero(SPECIES);
+        int i = 0;
+        for(var bound = SPECIES.loopBound(a.length); i < bound; i += SPECIES.length()) {
+            var d = FloatVector.fromArray(SPECIES, a, i).sub(VectorKernel.load(b, offset, i));
+            sum = sum.add(d.abs());
+        }
+
+        double total = sum.reduceLanes(VectorOperators.ADD);
+        for(; i < a.length; ++i)
+            total += Math.abs((double) a[i] - b.getFloat(offset + i * Float.BYTES));
+        return total;
+    }
+
+    @Override
+    public double l2(float[] a, float[] b) {
+        var size = Math.min(a.length, b.length);
+        var sum = FloatVector.zero(SPECIES);
+        int i = 0;
+        for(var bound = SPECIES.loopBound(size); i < bound; i += SPECIES.length()) {
+            var d = FloatVector.fromArray(SPECIES, a, i).sub(FloatVector.fromArray(SPECIES, b, i));
+            sum = d.fma(d, sum);
+        }
+
+        double total = sum.reduceLanes(VectorOperators.ADD);
+        for(; i < size; ++i) {
+            double d = (double) a[i] - b[i];
+            total += d * d;
+        }
+        return Math.sqrt(total);
+    }
+
+    @Override
+    public double l2(float[] a, ByteBuffer b, int offset) {
+        var sum = FloatVector.zero(SPECIES);
+        int i = 0;
+        for(var bound = SPECIES.loopBound(a.length); i < bound; i += SPECIES.length()) {
+            var d = FloatVector.fromArray(SPECIES, a, i).sub(VectorKernel.load(b, offset, i));
+            sum = d.fma(d, sum);
+        }
+
+        double total = sum.reduceLanes(VectorOperators.ADD);
+        for(; i < a.length; ++i) {
+            double d = (double) a[i] - b.getFloat(offset + i * Float.BYTES);
+            total += d * d;
+        }
+        return Math.sqrt(total);
+    }
+
+    @Override
+    public double cosine(float[] a, float[] b) {
+        var size = Math.min(a.length, b.length);
+        var dot = FloatVector.zero(SPECIES);
+        var na = FloatVector.zero(SPECIES);
+        var nb = FloatVector.zero(SPECIES);
+        int i = 0;
+        for(var bound = SPECIES.loopBound(size); i < bound; i += SPECIES.length()) {
+            var va = FloatVector.fromArray(SPECIES, a, i);
+            var vb = FloatVector.fromArray(SPECIES, b, i);
+            dot = va.fma(vb, dot);
+            na = va.fma(va, na);
+            nb = vb.fma(vb, nb);
+        }
+
+        double d = dot.reduceLanes(VectorOperators.ADD);
+        double sa = na.reduceLanes(VectorOperators.ADD);
+        double sb = nb.reduceLanes(VectorOperators.ADD);
+        for(; i < size; ++i) {
+            d += (double) a[i] * b[i];
+            sa += (double) a[i] * a[i];
+            sb += (double) b[i] * b[i];
+        }
+        return ScalarKernel.cosine(d, sa, sb);
+    }
+
+    @Override
+    public double cosine(float[] a, ByteBuffer b, int offset) {
+        var dot = FloatVector.zero(SPECIES);
+        var na = FloatVector.zero(SPECIES);
+        var nb = FloatVector.zero(SPECIES);
+        int i = 0;
+        for(var bound = SPECIES.loopBound(a.length); i < bound; i += SPECIES.length()) {
+            var va = FloatVector.fromArray(SPECIES, a, i);
+            var vb = VectorKernel.load(b, offset, i);
+            dot = va.fma(vb, dot);
+            na = va.fma(va, na);
+            nb = vb.fma(vb, nb);
+        }
+
+        double d = dot.reduceLanes(VectorOperators.ADD);
+        double sa = na.reduceLanes(VectorOperators.ADD);
+        double sb = nb.reduceLanes(VectorOperators.ADD);
+        for(; i < a.length; ++i) {
+            double r = b.getFloat(offset + i * Float.BYTES);
+            d += a[i] * r;
+            sa += (double) a[i] * a[i];
+            sb += r * r;
+        }
+        return ScalarKernel.cosine(d, sa, sb);
+    }
+
+    @Override
+    public double chiSquared(float[] a, float[] b) {
+        var size = Math.min(a.length, b.length);
+        var sum = FloatVector.zero(SPECIES);
+        int i = 0;
+        for(var bound = SPECIES.loopBound(size); i < bound; i += SPECIES.length()) {
+            var va = FloatVector.fromArray(SPECIES, a, i);
+            var vb = FloatVector.fromArray(SPECIES, b, i);
+            sum = sum.add(VectorKernel.chiSquared(va, vb));
+        }
+
+        double total = sum.reduceLanes(VectorOperators.ADD);
+        for(; i < size; ++i) {
+            double s = (double) a[i] + b[i];
+            if(s == 0) continue;
+
+            double d = (double) a[i] - b[i];
+            total += d * d / s;
+        }
+        return total;
+    }
+
+    @Override
+    public double chiSquared(float[] a, ByteBuffer b, int offset) {
+        var sum = FloatVector.zero(SPECIES);
+        int i = 0;
+        for(var bound = SPECIES.loopBound(a.length); i < bound; i += SPECIES.length()) {
+            var va = FloatVector.fromArray(SPECIES, a, i);
+            var vb = VectorKernel.load(b, offset, i);
+            sum = sum.add(VectorKernel.chiSquared(va, vb));
+        }
+
+        double total = sum.reduceLanes(VectorOperators.ADD);
+        for(; i < a.length; ++i) {
+            double r = b.getFloat(offset + i * Float.BYTES);
+            double s = a[i] + r;
+            if(s == 0) continue;
+
+            double d = a[i] - r;
+            total += d * d / s;
+        }
+        return total;
+    }
+
+    /** The terms of a chi-squared distance, with the ones whose sums are zero,
+     * which would otherwise be NaN, left out. */
+    private static FloatVector chiSquared(FloatVector a, FloatVector b) {
+        var s = a.add(b);
+        var d = a.sub(b);
+        var zero = s.compare(VectorOperators.EQ, 0.0f);
+        return d.mul(d).div(s.blend(1.0f, zero)).blend(0.0f, zero);
+    }
+
+    @Override
+    public double intersection(float[] a, float[] b) {
+        var size = Math.min(a.length, b.length);
+        var shared = FloatVector.zero(SPECIES);
+        var sa = FloatVector.zero(SPECIES);
+        var sb = FloatVector.zero(SPECIES);
+        int i = 0;
+        for(var bound = SPECIES.loopBound(size); i < bound; i += SPECIES.length()) {
+            var va = FloatVector.fromArray(SPECIES, a, i);
+            var vb = FloatVector.fromArray(SPECIES, b, i);
+            shared = shared.add(va.min(vb));
+            sa = sa.add(va);
+            sb = sb.add(vb);
+        }
+
+        double s = shared.reduceLanes(VectorOperators.ADD);
+        double ta = sa.reduceLanes(VectorOperators.ADD);
+        double tb = sb.reduceLanes(VectorOperators.ADD);
+        for(; i < size; ++i) {
+            s += Math.min(a[i], b[i]);
+            ta += a[i];
+            tb += b[i];
+        }
+        return ScalarKernel.intersection(s, ta, tb);
+    }
+
+    @Override
+    public double intersection(float[] a, ByteBuffer b, int offset) {
+        var shared = FloatVector.zero(SPECIES);
+        var sa = FloatVector.zero(SPECIES);
+        var sb = FloatVector.zero(SPECIES);
+        int i = 0;
+        for(var bound = SPECIES.loopBound(a.length); i < bound; i += SPECIES.length()) {
+            var va = FloatVector.fromArray(SPECIES, a, i);
+            var vb = VectorKernel.load(b, offset, i);
+            shared = shared.add(va.min(vb));
+            sa = sa.add(va);
+            sb = sb.add(vb);
+        }
+
+        double s = shared.reduceLanes(VectorOperators.ADD);
+        double ta = sa.reduceLanes(VectorOperators.ADD);
+        double tb = sb.reduceLanes(VectorOperators.ADD);
+        for(; i < a.length; ++i) {
+            var r = b.getFloat(offset + i * Float.BYTES);
+            s += Math.min(a[i], r);
+            ta += a[i];
+            tb += r;
+        }
+        return ScalarKernel.intersection(s, ta, tb);
+    }
+}
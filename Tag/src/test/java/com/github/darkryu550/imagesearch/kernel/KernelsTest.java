@@ -0,0 +1,122 @@
+package com.github.darkryu550.imagesearch.kernel;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class KernelsTest {
+    /** Hands every kernel over to the scalar ones, so that tests can break
+     * only the ones they are interested in. */
+    private static class Delegate implements Kernel {
+        protected final ScalarKernel scalar = new ScalarKernel();
+
+        @Override public double l1(float[] a, float[] b) { return this.scalar.l1(a, b); }
+        @Override public double l1(float[] a, ByteBuffer b, int offset) { return this.scalar.l1(a, b, offset); }
+        @Override public double l2(float[] a, float[] b) { return this.scalar.l2(a, b); }
+        @Override public double l2(float[] a, ByteBuffer b, int offset) { return this.scalar.l2(a, b, offset); }
+        @Override public double cosine(float[] a, float[] b) { return this.scalar.cosine(a, b); }
+        @Override public double cosine(float[] a, ByteBuffer b, int offset) { return this.scalar.cosine(a, b, offset); }
+        @Override public double chiSquared(float[] a, float[] b) { return this.scalar.chiSquared(a, b); }
+        @Override public double chiSquared(float[] a, ByteBuffer b, int offset) { return this.scalar.chiSquared(a, b, offset); }
+        @Override public double intersection(float[] a, float[] b) { return this.scalar.intersection(a, b); }
+        @Override public double intersection(float[] a, ByteBuffer b, int offset) { return this.scalar.intersection(a, b, offset); }
+    }
+
+    @Test
+    public void scalarKernelsAgreeWithThemselves() {
+        assertTrue(Kernels.agree(new ScalarKernel(), new ScalarKernel()));
+    }
+
+    @Test
+    public void selectedKernelsAgreeWithScalarOnes() {
+        assertTrue(Kernels.agree(new ScalarKernel(), Kernels.get()));
+    }
+
+    @Test
+    public void catchesDroppedTails() {
+        /* What a vector loop that forgets its scalar tail looks like. */
+        var kernel = new Delegate() {
+            @Override
+            public double l2(float[] a, float[] b) {
+                var length = a.length - a.length % 8;
+                return this.scalar.l2(Arrays.copyOf(a, length), Arrays.copyOf(b, length));
+            }
+
+            @Override
+            public double l2(float[] a, ByteBuffer b, int offset) {
+                return this.l2(a, KernelsTest.read(b, offset, a.length));
+            }
+        };
+        assertFalse(Kernels.agree(new ScalarKernel(), kernel));
+    }
+
+    @Test
+    public void catchesArraysAndBuffersDisagreeing() {
+        var kernel = new Delegate() {
+            @Override
+            public double intersection(float[] a, ByteBuffer b, int offset) {
+                return Math.nextUp(this.scalar.intersection(a, b, offset));
+            }
+        };
+        assertFalse(Kernels.agree(new ScalarKernel(), kernel));
+    }
+
+    @Test
+    public void catchesBuffersReadInTheWrongOrder() {
+        var kernel = new Delegate() {
+            @Override
+            public double l1(float[] a, ByteBuffer b, int offset) {
+                return this.scalar.l1(a, b.duplicate().order(ByteOrder.BIG_ENDIAN), offset);
+            }
+        };
+        assertFalse(Kernels.agree(new ScalarKernel(), kernel));
+    }
+
+    @Test
+    public void toleratesSinglePrecisionSums() {
+        /* Which is how the vector kernels sum up. */
+        var kernel = new Delegate() {
+            @Override
+            public double l1(float[] a, float[] b) {
+                var total = 0.0f;
+                for(int i = 0; i < Math.min(a.length, b.length); ++i)
+                    total += Math.abs(a[i] - b[i]);
+                return total;
+            }
+
+            @Override
+            public double l1(float[] a, ByteBuffer b, int offset) {
+                return this.l1(a, KernelsTest.read(b, offset, a.length));
+            }
+        };
+        assertTrue(Kernels.agree(new ScalarKernel(), kernel));
+    }
+
+    @Test
+    public void scalarKernelsReadBuffersAtOffsets() {
+        var kernel = new ScalarKernel();
+        var a = new float[] { 1, 2, 3 };
+        var b = new float[] { 4, 0, 3 };
+        var buffer = ByteBuffer.allocate(Float.BYTES * 5).order(ByteOrder.LITTLE_ENDIAN);
+        for(int i = 0; i < b.length; ++i)
+            buffer.putFloat(Float.BYTES * (i + 2), b[i]);
+
+        assertEquals(5.0, kernel.l1(a, b), 0);
+        assertEquals(5.0, kernel.l1(a, buffer, Float.BYTES * 2), 0);
+        assertEquals(Math.sqrt(13), kernel.l2(a, b), 1e-12);
+        assertEquals(Math.sqrt(13), kernel.l2(a, buffer, Float.BYTES * 2), 1e-12);
+    }
+
+    private static float[] read(ByteBuffer buffer, int offset, int length) {
+        var values = new float[length];
+        for(int i = 0; i < length; ++i)
+            values[i] = buffer.getFloat(offset + i * Float.BYTES);
+        return values;
+    }
+}
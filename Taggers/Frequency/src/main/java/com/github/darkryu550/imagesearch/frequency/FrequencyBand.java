@@ -1,91 +1,65 @@
 package com.github.darkryu550.imagesearch.frequency;
 
-import com.github.darkryu550.imagesearch.Tagger;
-import com.github.darkryu550.imagesearch.TaggingException;
-import org.jtransforms.fft.DoubleFFT_2D;
+import com.github.darkryu550.imagesearch.VectorTagger;
+import com.github.darkryu550.imagesearch.kernel.Kernels;
 
-import javax.swing.*;
-import java.awt.color.ColorSpace;
 import java.awt.image.BufferedImage;
-import java.awt.image.ColorConvertOp;
 import java.sql.SQLType;
-import java.sql.Types;
 import java.util.*;
 import java.util.stream.Collectors;
-import java.util.stream.IntStream;
 
-public class FrequencyBand implements Tagger {
+public class FrequencyBand implements VectorTagger {
+    /* Side of the square images get resampled to before the transform, or zero
+     * if they should be transformed at their original resolution. */
+    protected final int workingSize;
+
+    /** Create a tagger that transforms images at their original resolution. */
+    public FrequencyBand() {
+        this(0);
+    }
+
+    /** Create a tagger that resamples images to a fixed size before they get
+     * transformed, which makes the cost of tagging an image constant, rather
+     * than dependent on its resolution.
+     * @param workingSize The side of the square images get resampled to. Must
+     *                    be a power of two, or zero, in which case no
+     *                    resampling is done.
+     */
+    public FrequencyBand(int workingSize) {
+        if(workingSize < 0 || (workingSize != 0 && Integer.bitCount(workingSize) != 1))
+            throw new IllegalArgumentException("The working size must be a power of two");
+        this.workingSize = workingSize;
+    }
+
     @Override
     public Optional<Object> tag(BufferedImage image) {
-        /* Convert to grayscale using a high quality pixel-based conversion. */
-        var grayscale = new ColorConvertOp(
-            ColorSpace.getInstance(ColorSpace.CS_GRAY),
-            null
-        ).filter(image, null);
-
-        /* Collect it into the correct format. */
-        double[][] buffer = new double[grayscale.getHeight()][];
-        IntStream.range(0, grayscale.getHeight())
-            .forEach((index) -> {
-                double[] row = new double[grayscale.getWidth() * 2];
-                row = grayscale.getData().getPixels(0, index, grayscale.getWidth(), 1, row);
-
-                buffer[index] = row;
-            });
-
-        var fft = new DoubleFFT_2D(image.getHeight(), image.getWidth());
-        if(Integer.bitCount(image.getHeight()) != 1 || Integer.bitCount(image.getWidth()) != 1)
-            fft.realForwardFull(buffer);
-        else
-            fft.realForward(buffer);
-
-        double[][] magnitude = Utils.magnitude(buffer);
-
-        /* O(n^2) implementation. Not as bad as the O(n^3) it could be, bad nonetheless. */
-        int bandCount = Math.min(grayscale.getHeight() / 2, grayscale.getWidth() / 2);
-        int centerI = grayscale.getHeight() / 2;
-        int centerJ = grayscale.getWidth()  / 2;
-
-        double[] bands = new double[bandCount];
-        for(int i = 0; i < bandCount; ++i) {
-            for(int j = i - 1; j > -i; --j)
-                bands[i] += magnitude[centerI + j][centerJ + i];
-            for(int j = i; j > -i; --j)
-                bands[i] += magnitude[centerI - i][centerJ + j];
-            for(int j = i - 1; j > -i; --j)
-                bands[i] += magnitude[centerI + j][centerJ - i];
-            for(int j = i; j > -i; --j)
-                bands[i] += magnitude[centerI + i][centerJ + j];
-        }
+        var bands = Spectrum.bands(image, this.workingSize);
+        var bandCount = bands.length;
+        if(bandCount < 3)
+            /* Too small to have any band other than the DC component. */
+            return Optional.empty();
 
-        int    band0 = 1, band1 = 2;
-        double max   = 0;
+        /* Prefix sums over the band energies, so that the energy of any range
+         * of bands can be had in constant time. The magnitude spectra of
+         * natural images fall off roughly with 1/f, which would otherwise make
+         * the lowest bands win every time, so we whiten them by weighing every
+         * band by its frequency. */
+        var prefix = new double[bandCount + 1];
+        for(int i = 0; i < bandCount; ++i)
+            prefix[i + 1] = prefix[i] + bands[i] * i;
+
+        /* Find the range of bands with the highest density of energy. */
+        double max    = -1;
         int    mband0 = 1, mband1 = 2;
-        double total = 0;
-        for(; band0 < bandCount; ++band0) {
-            total += bands[band0];
-            if(band0 % 2 == 1){
-                for(; band1 > band0; --band1) {
-                    total -= bands[band1];
-                    if(total / area(band0, band1) > max) {
-                        max = total;
-                        mband0 = band0;
-                        mband1 = band1;
-                    }
-                }
-            } else {
-                for(band1 = band0 + 1; band1 < bandCount; ++band1) {
-                    total += bands[band1];
-                    if(total / area(band0, band1) > max) {
-                        max = total;
-                        mband0 = band0;
-                        mband1 = band1;
-                    }
+        for(int band0 = 1; band0 < bandCount; ++band0)
+            for(int band1 = band0 + 1; band1 < bandCount; ++band1) {
+                var density = (prefix[band1 + 1] - prefix[band0]) / area(band0, band1);
+                if(density > max) {
+                    max = density;
+                    mband0 = band0;
+                    mband1 = band1;
                 }
-                --band1;
             }
-            total -= bands[band0];
-        }
 
         ArrayList<Integer> ints = new ArrayList<>();
         ints.add(mband0);
@@ -94,6 +68,13 @@ public class FrequencyBand implements Tagger {
         return Optional.of(ints);
     }
 
+    /** Bands got found in single precision, over whitened spectra, from the
+     * second version on. Resampling changes which bands images have, too. */
+    @Override
+    public String getVersion() {
+        return this.workingSize == 0 ? "2" : "2;size=" + this.workingSize;
+    }
+
     @Override
     public Object getTagFromString(String value) {
         try {
@@ -114,23 +95,9 @@ public class FrequencyBand implements Tagger {
         if(a == null || b == null)
             return Optional.empty();
 
-        try {
-            List<?> la = (List<?>) a;
-            List<?> lb = (List<?>) b;
-            var size = Math.min(la.size(), lb.size());
-
-            double total = 0.0;
-            for(int i = 0; i < size; ++i) {
-                Integer l = (Integer) la.get(i);
-                Integer r = (Integer) lb.get(i);
-
-                total += Math.pow(l - r, 2);
-            }
-
-            return Optional.of(Math.sqrt(total));
-        } catch(ClassCastException e) {
-            throw new IllegalArgumentException("Invalid argument has been passed", e);
-        }
+        var l = VectorTagger.toFloats(a);
+        var r = VectorTagger.toFloats(b);
+        return Optional.of(Kernels.get().l2(l, r));
     }
 
     private static double area(double a, double b) {
@@ -138,6 +105,16 @@ public class FrequencyBand implements Tagger {
         return Math.PI * (b * b - a * a);
     }
 
+    @Override
+    public int getDimensions() {
+        return 2;
+    }
+
+    @Override
+    public float[] toVector(Object tag) {
+        return VectorTagger.toVector(tag, this.getDimensions());
+    }
+
     @Override
     public SQLType getType() {
         return new SQLType() {
@@ -0,0 +1,144 @@
+package com.github.darkryu550.imagesearch.frequency;
+
+import com.github.darkryu550.imagesearch.FloatVector;
+import com.github.darkryu550.imagesearch.VectorTagger;
+import com.github.darkryu550.imagesearch.kernel.Kernels;
+
+import java.awt.image.BufferedImage;
+import java.sql.SQLType;
+import java.util.Optional;
+
+/** Describes the texture of an image by how the energy of its spectrum is
+ * distributed across frequencies.
+ * <br><br>
+ * The rings of the spectrum get grouped into a fixed number of bins, each
+ * covering the same fraction of the range between the lowest frequency and the
+ * Nyquist frequency, so that images of different sizes produce comparable
+ * profiles. The profile is then normalized to sum up to one. */
+public class FrequencyProfile implements VectorTagger {
+    public static final int DEFAULT_BINS = 32;
+
+    protected final int bins;
+    protected final int workingSize;
+
+    public FrequencyProfile() {
+        this(DEFAULT_BINS, 0);
+    }
+
+    /** Create a new profile tagger.
+     * @param bins The length of the produced profiles.
+     * @param workingSize The side of the square images get resampled to before
+     *                    the transform, which must be a power of two, or zero,
+     *                    if they should be transformed at their original
+     *                    resolution. See {@link FrequencyBand}.
+     */
+    public FrequencyProfile(int bins, int workingSize) {
+        if(bins < 1)
+            throw new IllegalArgumentException("There must be at least one bin");
+        if(workingSize < 0 || (workingSize != 0 && Integer.bitCount(workingSize) != 1))
+            throw new IllegalArgumentException("The working size must be a power of two");
+
+        this.bins = bins;
+        this.workingSize = workingSize;
+    }
+
+    @Override
+    public Optional<Object> tag(BufferedImage image) {
+        var bands = Spectrum.bands(image, this.workingSize);
+        if(bands.length < 2)
+            return Optional.empty();
+
+        /* Leave the DC component out, it only tells us about brightness. */
+        var profile = new float[this.bins];
+        var total = 0.0;
+        for(int ring = 1; ring < bands.length; ++ring) {
+            var bin = (int) ((long) (ring - 1) * this.bins / (bands.length - 1));
+            profile[bin] += bands[ring];
+            total += bands[ring];
+        }
+
+        if(total > 0)
+            for(int i = 0; i < profile.length; ++i)
+                profile[i] /= total;
+
+        return Optional.of(new FloatVector(profile));
+    }
+
+    /** Profiles of resampled images don't match the ones of the originals. */
+    @Override
+    public String getVersion() {
+        return this.workingSize == 0 ? "" : "size=" + this.workingSize;
+    }
+
+    @Override
+    public Object getTagFromString(String value) {
+        return FloatVector.fromString(value);
+    }
+
+    @Override
+    public Object toStorage(Object tag) {
+        try {
+            return tag == null ? null : ((FloatVector) tag).toBytes();
+        } catch(ClassCastException e) {
+            throw new IllegalArgumentException("Invalid argument has been passed", e);
+        }
+    }
+
+    @Override
+    public Object fromStorage(Object value) {
+        if(value instanceof byte[])
+            return FloatVector.fromBytes((byte[]) value);
+        return VectorTagger.super.fromStorage(value);
+    }
+
+    @Override
+    public Optional<Double> getTagDistance(Object a, Object b) {
+        if(a == null || b == null)
+            return Optional.empty();
+
+        try {
+            FloatVector l = (FloatVector) a;
+            FloatVector r = (FloatVector) b;
+
+            return Optional.of(Kernels.get().l2(l.toArray(), r.toArray()));
+        } catch(ClassCastException e) {
+            throw new IllegalArgumentException("Invalid argument has been passed", e);
+        }
+    }
+
+    @Override
+    public int getDimensions() {
+        return this.bins;
+    }
+
+    @Override
+    public float[] toVector(Object tag) {
+        if(!(tag instanceof FloatVector))
+            throw new IllegalArgumentException("Invalid argument has been passed");
+
+        var vector = (FloatVector) tag;
+        if(vector.size() != this.bins)
+            throw new IllegalArgumentException("Expected " + this.bins + " bins, got " + vector.size());
+        return vector.toArray();
+    }
+
+    @Override
+    public SQLType getType() {
+        return new SQLType() {
+            @Override
+            public String getName() {
+                return "BLOB";
+            }
+
+            @Override
+            public String getVendor() {
+                return null;
+            }
+
+            @Override
+            public Integer getVendorTypeNumber() {
+                return null;
+            }
+        };
+    }
+}
@@ -0,0 +1,167 @@
+package com.github.darkryu550.imagesearch.frequency;
+
+import org.jtransforms.fft.FloatFFT_2D;
+
+import java.awt.RenderingHints;
+import java.awt.color.ColorSpace;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorConvertOp;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/** Computes the radial energy profile of the power spectrum of an image. */
+final class Spectrum {
+    /* FFT plans are expensive to build and, once built, only ever read from,
+     * so they get shared by every tagger and thread, keyed by their size.
+     * Images at their original resolution come in any number of sizes, each
+     * with a plan and twiddle tables of its own, so only the most recently
+     * used plans are kept. */
+    private static final int MAX_PLANS = 8;
+    private static final Map<Long, FloatFFT_2D> PLANS = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, FloatFFT_2D> eldest) {
+            return this.size() > MAX_PLANS;
+        }
+    };
+
+    /* Every frequency domain tagger is usually run on the same image, one
+     * right after the other, so we hold on to the last few spectra we computed
+     * for as long as the images they were computed from are still around. */
+    private static final Map<BufferedImage, Map<Integer, double[]>> RECENT =
+        Collections.synchronizedMap(new WeakHashMap<>());
+
+    private Spectrum() {}
+
+    /** Get the shared FFT plan for the given size, creating it if needed. */
+    static FloatFFT_2D plan(int rows, int columns) {
+        var key = ((long) rows << 32) | columns;
+        synchronized(PLANS) {
+            var plan = PLANS.get(key);
+            if(plan != null) return plan;
+        }
+
+        /* Plans get built outside of the lock, so that threads needing other
+         * sizes don't wait on them. Two threads may build the same one, in
+         * which case the first one in wins. */
+        var plan = new FloatFFT_2D(rows, columns);
+        synchronized(PLANS) {
+            var existing = PLANS.putIfAbsent(key, plan);
+            return existing != null ? existing : plan;
+        }
+    }
+
+    /** Get the ring energies of the given image, converted to grayscale and
+     * resampled to the given working size, reusing them if they have already
+     * been computed for the same image object.
+     * @see #grayscale(BufferedImage, int)
+     * @see #bands(BufferedImage)
+     */
+    static double[] bands(BufferedImage image, int workingSize) {
+        var cached = RECENT.get(image);
+        if(cached != null) {
+            var bands = cached.get(workingSize);
+            if(bands != null) return bands;
+        }
+
+        var bands = bands(grayscale(image, workingSize));
+        RECENT.computeIfAbsent(image, (key) -> new ConcurrentHashMap<>()).put(workingSize, bands);
+        return bands;
+    }
+
+    /** Convert the given image to grayscale, optionally resampling it to a
+     * square of the given size.
+     * @param image The source image.
+     * @param workingSize The side of the square the image gets resampled to,
+     *                    or zero, if it should be kept at its resolution.
+     */
+    static BufferedImage grayscale(BufferedImage image, int workingSize) {
+        /* Convert to grayscale using a high quality pixel-based conversion. */
+        var converted = new ColorConvertOp(
+            ColorSpace.getInstance(ColorSpace.CS_GRAY),
+            null
+        ).filter(image, null);
+        if(workingSize == 0)
+            return converted;
+
+        var resampled = new BufferedImage(workingSize, workingSize, BufferedImage.TYPE_BYTE_GRAY);
+        var graphics = resampled.createGraphics();
+        graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+        graphics.drawImage(converted, 0, 0, workingSize, workingSize, null);
+        graphics.dispose();
+
+        return resampled;
+    }
+
+    /** Compute the energy in each of the square rings around the origin of the
+     * magnitude spectrum of the given grayscale image, where ring {@code r}
+     * holds the frequencies {@code (u, v)} with {@code max(|u|, |v|) = r}.
+     * <br><br>
+     * Images whose sides are both powers of two go through a real-input
+     * transform, done in place in a single {@code float[H][W]} buffer. All
+     * other images need a buffer twice as large to hold the full complex
+     * spectrum. Either way, the magnitudes are computed from the interleaved
+     * real and imaginary pairs as the buffer is walked, so no other plane ever
+     * gets allocated.
+     *
+     * @param grayscale The image, with a single band.
+     * @return The energy of each ring, for rings {@code 0} up to, but not
+     * including, {@code min(H, W) / 2}.
+     */
+    static double[] bands(BufferedImage grayscale) {
+        var rows = grayscale.getHeight();
+        var columns = grayscale.getWidth();
+        var count = Math.min(rows / 2, columns / 2);
+        var bands = new double[count];
+        if(count == 0)
+            return bands;
+
+        var real = Integer.bitCount(rows) == 1 && Integer.bitCount(columns) == 1;
+        var raster = grayscale.getRaster();
+        var buffer = new float[rows][real ? columns : columns * 2];
+        for(int i = 0; i < rows; ++i)
+            raster.getPixels(0, i, columns, 1, buffer[i]);
+
+        var fft = plan(rows, columns);
+        if(real) {
+            fft.realForward(buffer);
+
+            /* Only half of the spectrum is stored, the other half being its
+             * complex conjugate, so every stored frequency stands for itself and
+             * for its mirror, which falls in the same ring. See the
+             * documentation of FloatFFT_2D.realForward for the exact layout. */
+            for(int k1 = 0; k1 < rows; ++k1)
+                for(int k2 = 1; k2 < columns / 2; ++k2)
+                    accumulate(bands, signed(k1, rows), k2, buffer[k1][2 * k2], buffer[k1][2 * k2 + 1], 2);
+            for(int k1 = 1; k1 < rows / 2; ++k1) {
+                accumulate(bands, k1, 0, buffer[k1][0], buffer[k1][1], 2);
+                accumulate(bands, k1, columns / 2, buffer[rows - k1][1], buffer[rows - k1][0], 2);
+            }
+            accumulate(bands, 0, 0, buffer[0][0], 0, 1);
+            accumulate(bands, 0, columns / 2, buffer[0][1], 0, 1);
+            accumulate(bands, rows / 2, 0, buffer[rows / 2][0], 0, 1);
+            accumulate(bands, rows / 2, columns / 2, buffer[rows / 2][1], 0, 1);
+        } else {
+            fft.realForwardFull(buffer);
+            for(int k1 = 0; k1 < rows; ++k1)
+                for(int k2 = 0; k2 < columns; ++k2)
+                    accumulate(bands, signed(k1, rows), signed(k2, columns), buffer[k1][2 * k2], buffer[k1][2 * k2 + 1], 1);
+        }
+
+        return bands;
+    }
+
+    /** Turn an index into the spectrum into the signed frequency it holds. */
+    private static int signed(int k, int n) {
+        return k <= n / 2 ? k : k - n;
+    }
+
+    private static void accumulate(double[] bands, int u, int v, float re, float im, int weight) {
+        var ring = Math.max(Math.abs(u), Math.abs(v));
+        if(ring >= bands.length) return;
+
+        bands[ring] += weight * Math.sqrt((double) re * re + (double) im * im);
+    }
+}
@@ -1,6 +1,7 @@
 package com.github.darkryu550.imagesearch.magnitude;
 
-import com.github.darkryu550.imagesearch.Tagger;
+import com.github.darkryu550.imagesearch.VectorTagger;
+import com.github.darkryu550.imagesearch.kernel.Kernels;
 import com.github.darkryu550.imagesearch.TaggingException;
 
 import java.awt.color.ColorSpace;
@@ -9,12 +10,11 @@ import java.awt.image.ColorConvertOp;
 import java.sql.SQLType;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.List;
 import java.util.Optional;
 import java.util.stream.Collectors;
 
 
-public class Histogram implements Tagger {
+public class Histogram implements VectorTagger {
     public static final int BINS = 256;
 
     @Override
@@ -78,25 +78,21 @@ public class Histogram implements Tagger {
         if(a == null || b == null)
             return Optional.empty();
 
-        try {
-            List<?> la = (List<?>) a;
-            List<?> lb = (List<?>) b;
-            var size = Math.min(la.size(), lb.size());
-
-            double total = 0.0;
-            for(int i = 0; i < size; ++i) {
-                Integer l = (Integer) la.get(i);
-                Integer r = (Integer) lb.get(i);
+        var l = VectorTagger.toFloats(a);
+        var r = VectorTagger.toFloats(b);
+        return Optional.of(Kernels.get().l2(l, r));
+    }
 
-                total += Math.pow(l - r, 2);
-            }
 
-            return Optional.of(Math.sqrt(total));
-        } catch(ClassCastException e) {
-            throw new IllegalArgumentException("Invalid argument has been passed", e);
-        }
+    @Override
+    public int getDimensions() {
+        return Histogram.BINS;
     }
 
+    @Override
+    public float[] toVector(Object tag) {
+        return VectorTagger.toVector(tag, this.getDimensions());
+    }
 
     @Override
     public SQLType getType() {
@@ -0,0 +1,112 @@
+package com.github.darkryu550.imagesearch.magnitude;
+
+import com.github.darkryu550.imagesearch.Tagger;
+
+import java.awt.image.BufferedImage;
+import java.sql.SQLType;
+import java.util.Optional;
+
+/** Find the difference hash of an image, a 64-bit perceptual hash which stays
+ * the same, or nearly so, for resized and recompressed copies of an image, and
+ * whose distance is the number of bits two hashes differ in.
+ * <br><br>
+ * The image is shrunk down to a grayscale grid of 9 by 8 cells, and every bit
+ * of the hash tells whether a cell is brighter than the one to its right.
+ * Cells are averaged over a fixed grid of samples rather than over every one
+ * of their pixels, which keeps hashing down to about a thousand pixel reads, no
+ * matter how large the image is. */
+public class PerceptualHash implements Tagger {
+    /* Size of the grid the image gets shrunk down to. */
+    private static final int WIDTH = 9;
+    private static final int HEIGHT = 8;
+    /* Samples taken along each side of a cell. */
+    private static final int SAMPLES = 4;
+
+    @Override
+    public Optional<Object> tag(BufferedImage image) {
+        var width = image.getWidth();
+        var height = image.getHeight();
+        if(width <= 0 || height <= 0)
+            return Optional.empty();
+
+        var cells = new double[HEIGHT][WIDTH];
+        for(int i = 0; i < HEIGHT; ++i)
+            for(int j = 0; j < WIDTH; ++j) {
+                var sum = 0.0;
+                for(int k = 0; k < SAMPLES; ++k)
+                    for(int l = 0; l < SAMPLES; ++l) {
+                        /* Sample the middle of every stratum of the cell. */
+                        var y = (int) ((i * SAMPLES + k + 0.5) * height / (HEIGHT * SAMPLES));
+                        var x = (int) ((j * SAMPLES + l + 0.5) * width / (WIDTH * SAMPLES));
+                        var rgb = image.getRGB(x, y);
+
+                        sum += 0.299 * ((rgb >> 16) & 0xff)
+                            + 0.587 * ((rgb >> 8) & 0xff)
+                            + 0.114 * (rgb & 0xff);
+                    }
+                cells[i][j] = sum;
+            }
+
+        var hash = 0L;
+        for(int i = 0; i < HEIGHT; ++i)
+            for(int j = 0; j < WIDTH - 1; ++j)
+                hash = (hash << 1) | (cells[i][j] > cells[i][j + 1] ? 1 : 0);
+
+        return Optional.of(hash);
+    }
+
+    @Override
+    public Object getTagFromString(String value) {
+        try {
+            value = value.strip();
+            if(value.startsWith("0x"))
+                return Long.parseUnsignedLong(value.substring(2), 16);
+            return Long.parseLong(value);
+        } catch(NumberFormatException e) {
+            throw new IllegalArgumentException("Expected an integer literal, or a hexadecimal one starting with 0x", e);
+        }
+    }
+
+    @Override
+    public Object fromStorage(Object value) {
+        /* Small hashes get read back as integers. */
+        if(value instanceof Integer)
+            return ((Integer) value).longValue();
+        return Tagger.super.fromStorage(value);
+    }
+
+    @Override
+    public Optional<Double> getTagDistance(Object a, Object b) {
+        if(a == null || b == null)
+            return Optional.empty();
+
+        try {
+            long l = (Long) a;
+            long r = (Long) b;
+
+            return Optional.of((double) Long.bitCount(l ^ r));
+        } catch(ClassCastException e) {
+            throw new IllegalArgumentException("Invalid argument has been passed", e);
+        }
+    }
+
+    @Override
+    public SQLType getType() {
+        return new SQLType() {
+            @Override
+            public String getName() {
+                return "INTEGER";
+            }
+
+            @Override
+            public String getVendor() {
+                return null;
+            }
+
+            @Override
+            public Integer getVendorTypeNumber() {
+                return null;
+            }
+        };
+    }
+}
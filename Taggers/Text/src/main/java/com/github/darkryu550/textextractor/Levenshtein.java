@@ -0,0 +1,76 @@
+package com.github.darkryu550.textextractor;
+
+/** Levenshtein edit distance, restricted to a diagonal band so that it can stop
+ * early once the distance is known to be greater than a given bound. */
+final class Levenshtein {
+    private Levenshtein() {}
+
+    /** Compute the edit distance between two strings.
+     *
+     * @param a The first string.
+     * @param b The second string.
+     * @param bound The largest distance we care about. Only the cells of the
+     *              dynamic programming matrix that are within this distance of
+     *              its diagonal get computed, which brings the complexity down
+     *              from {@code O(|a||b|)} to {@code O(bound * min(|a|, |b|))}.
+     * @return The edit distance, if it is less than or equal to {@code bound},
+     * or {@code bound + 1} otherwise.
+     */
+    public static int distance(CharSequence a, CharSequence b, int bound) {
+        if(a.length() > b.length()) {
+            /* Keep the rows short. */
+            var t = a;
+            a = b;
+            b = t;
+        }
+        var n = a.length();
+        var m = b.length();
+
+        /* No point in having a band wider than the matrix itself. */
+        bound = Math.min(bound, m);
+        if(m - n > bound)
+            return bound + 1;
+        if(n == 0)
+            return m;
+
+        /* Cells outside of the band are never smaller than this. */
+        final var outside = bound + 1;
+
+        var previous = new int[m + 1];
+        var current  = new int[m + 1];
+        for(int j = 0; j <= m; ++j)
+            previous[j] = j <= bound ? j : outside;
+
+        for(int i = 1; i <= n; ++i) {
+            var from = Math.max(1, i - bound);
+            var to   = Math.min(m, i + bound);
+
+            current[0] = i <= bound ? i : outside;
+            if(from > 1) current[from - 1] = outside;
+
+            var min = current[0];
+            var ca = a.charAt(i - 1);
+            for(int j = from; j <= to; ++j) {
+                var cost = ca == b.charAt(j - 1) ? 0 : 1;
+                var value = Math.min(
+                    previous[j - 1] + cost,
+                    Math.min(previous[j], current[j - 1]) + 1);
+
+                current[j] = Math.min(value, outside);
+                min = Math.min(min, current[j]);
+            }
+            if(to < m) current[to + 1] = outside;
+
+            /* Every path through the rest of the matrix goes through this row,
+             * and distances never go down along a path. */
+            if(min > bound)
+                return bound + 1;
+
+            var t = previous;
+            previous = current;
+            current = t;
+        }
+
+        return Math.min(previous[m], outside);
+    }
+}
@@ -0,0 +1,205 @@
+package com.github.darkryu550.textextractor;
+
+import org.sqlite.SQLiteConfig;
+
+import java.awt.image.BufferedImage;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Optional;
+
+/** A persistent, size-bounded cache of OCR results, which lives in its own
+ * SQLite file, outside of any image database.
+ * <br><br>
+ * Entries are keyed by a hash of the image content together with the
+ * configuration of the engine that produced them, so the same image showing up
+ * in different databases only ever gets recognized once. Once the cache grows
+ * past its capacity, the least recently used entries get evicted. Because all
+ * of the bookkeeping is done by SQLite, in transactions, the same cache file
+ * can safely be shared by multiple processes at the same time. */
+public class OcrCache implements AutoCloseable {
+    /** Default capacity of the cache, in bytes of cached text. */
+    public static final long DEFAULT_CAPACITY = 256L << 20;
+    /** Environment variable that overrides the location of the cache file. */
+    public static final String LOCATION_VARIABLE = "IMAGE_SEARCH_OCR_CACHE";
+
+    /* How long we wait on other processes holding the file lock. */
+    private static final int BUSY_TIMEOUT = 30_000;
+
+    protected final Connection connection;
+    protected final long capacity;
+
+    /** Open or create the cache at the given path.
+     * @param file The path of the cache file.
+     * @param capacity The maximum number of bytes of text that will be kept
+     *                 in the cache.
+     * @throws SQLException When the cache file could not be opened or its
+     * tables could not be created.
+     */
+    public OcrCache(Path file, long capacity) throws SQLException {
+        if(capacity < 0) throw new IllegalArgumentException("The capacity " +
+            "of the cache must not be negative");
+
+        var config = new SQLiteConfig();
+        config.setJournalMode(SQLiteConfig.JournalMode.WAL);
+        config.setSynchronous(SQLiteConfig.SynchronousMode.NORMAL);
+        config.setBusyTimeout(BUSY_TIMEOUT);
+
+        this.capacity = capacity;
+        this.connection = config.createConnection("jdbc:sqlite:" + file);
+
+        try(var statement = this.connection.createStatement()) {
+            statement.execute("create table if not exists entries(" +
+                "key TEXT PRIMARY KEY, " +
+                "text TEXT NOT NULL, " +
+                "size INTEGER NOT NULL, " +
+                "accessed INTEGER NOT NULL)");
+            statement.execute("create index if not exists entries_accessed on entries(accessed)");
+
+            /* Keep a running total of the size of the cache, so we never have
+             * to scan the whole table to know whether we should evict. */
+            statement.execute("create table if not exists usage(bytes INTEGER NOT NULL)");
+            statement.execute("insert into usage(bytes) select 0 where not exists (select * from usage)");
+            statement.execute("create trigger if not exists entries_insert after insert on entries " +
+                "begin update usage set bytes = bytes + new.size; end");
+            statement.execute("create trigger if not exists entries_delete after delete on entries " +
+                "begin update usage set bytes = bytes - old.size; end");
+        }
+    }
+
+    /** Open the cache at its default location, which is either the path given
+     * by the {@link #LOCATION_VARIABLE} environment variable or a file in the
+     * user's cache directory.
+     * @return The cache, if it could be opened.
+     */
+    public static Optional<OcrCache> openDefault() {
+        try {
+            var location = System.getenv(LOCATION_VARIABLE);
+            Path file;
+            if(location != null && !location.isBlank())
+                file = Path.of(location);
+            else
+                file = Path.of(System.getProperty("user.home"), ".cache", "image-search", "ocr.db");
+
+            var parent = file.toAbsolutePath().getParent();
+            if(parent != null) Files.createDirectories(parent);
+
+            return Optional.of(new OcrCache(file, DEFAULT_CAPACITY));
+        } catch(Exception e) {
+            /* Not having a cache only makes things slower, never wrong. */
+            return Optional.empty();
+        }
+    }
+
+    /** Compute the cache key for the given image, as recognized by an engine
+     * with the given configuration.
+     * @param image The image whose contents will be hashed.
+     * @param config A string uniquely describing the configuration of the OCR
+     *               engine, anything that may change its output should be
+     *               part of it.
+     */
+    public static String key(BufferedImage image, String config) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch(NoSuchAlgorithmException e) {
+            /* Every Java platform is required to support SHA-256. */
+            throw new AssertionError(e);
+        }
+
+        var width = image.getWidth();
+        var row = new int[width];
+        var bytes = ByteBuffer.allocate(width * Integer.BYTES);
+
+        digest.update(config.getBytes(StandardCharsets.UTF_8));
+        digest.update(ByteBuffer.allocate(8).putInt(width).putInt(image.getHeight()).array());
+        for(int i = 0; i < image.getHeight(); ++i) {
+            image.getRGB(0, i, width, 1, row, 0, width);
+            bytes.clear();
+            bytes.asIntBuffer().put(row);
+            digest.update(bytes.array());
+        }
+
+        var hash = digest.digest();
+        var hex = new StringBuilder(hash.length * 2);
+        for(var b : hash) hex.append(String.format("%02x", b));
+        return hex.toString();
+    }
+
+    /** Look up the text cached under the given key, marking it as used.
+     * @throws SQLException Upon failure of a SQL operation.
+     */
+    public synchronized Optional<String> get(String key) throws SQLException {
+        String text;
+        try(var select = this.connection.prepareStatement("select text from entries where key=?")) {
+            select.setString(1, key);
+            try(var result = select.executeQuery()) {
+                if(!result.next()) return Optional.empty();
+                text = result.getString(1);
+            }
+        }
+
+        try(var touch = this.connection.prepareStatement("update entries set accessed=? where key=?")) {
+            touch.setLong(1, System.currentTimeMillis());
+            touch.setString(2, key);
+            touch.execute();
+        }
+        return Optional.of(text);
+    }
+
+    /** Store the given text under the given key, evicting the least recently
+     * used entries if the cache grows past its capacity.
+     * @throws SQLException Upon failure of a SQL operation.
+     */
+    public synchronized void put(String key, String text) throws SQLException {
+        var size = (long) text.getBytes(StandardCharsets.UTF_8).length + key.length();
+        if(size > this.capacity) return;
+
+        this.connection.setAutoCommit(false);
+        try {
+            /* Delete explicitly, rather than relying on "insert or replace",
+             * which does not fire the delete trigger keeping usage in check. */
+            try(var delete = this.connection.prepareStatement("delete from entries where key=?")) {
+                delete.setString(1, key);
+                delete.execute();
+            }
+            try(var insert = this.connection.prepareStatement(
+                "insert into entries(key, text, size, accessed) values (?, ?, ?, ?)")) {
+                insert.setString(1, key);
+                insert.setString(2, text);
+                insert.setLong(3, size);
+                insert.setLong(4, System.currentTimeMillis());
+                insert.execute();
+            }
+
+            try(var usage = this.connection.prepareStatement("select bytes from usage");
+                var evict = this.connection.prepareStatement(
+                    "delete from entries where key in (select key from entries where key<>? order by accessed limit 1)")) {
+                evict.setString(1, key);
+                while(true) {
+                    try(var result = usage.executeQuery()) {
+                        if(!result.next() || result.getLong(1) <= this.capacity) break;
+                    }
+                    if(evict.executeUpdate() == 0) break;
+                }
+            }
+
+            this.connection.commit();
+        } catch(SQLException e) {
+            this.connection.rollback();
+            throw e;
+        } finally {
+            this.connection.setAutoCommit(true);
+        }
+    }
+
+    @Override
+    public void close() throws SQLException {
+        this.connection.close();
+    }
+}
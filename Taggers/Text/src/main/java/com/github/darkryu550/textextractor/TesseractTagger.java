@@ -1,20 +1,135 @@
 package com.github.darkryu550.textextractor;
 
+import com.github.darkryu550.imagesearch.TagCodec;
 import com.github.darkryu550.imagesearch.Tagger;
 import com.github.darkryu550.imagesearch.TaggingException;
 import net.sourceforge.tess4j.Tesseract;
 import net.sourceforge.tess4j.TesseractException;
 
+import java.awt.Rectangle;
 import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.sql.SQLException;
 import java.sql.SQLType;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Optional;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+public class TesseractTagger implements Tagger, AutoCloseable {
+    /* Images with at least this many pixels get their text regions detected
+     * and recognized in parallel, rather than being handed whole to a single
+     * engine. */
+    public static final long DEFAULT_TILING_THRESHOLD = 4_000_000;
+
+    /** Reads and writes the tags of this tagger, without needing an engine. */
+    public static final TagCodec CODEC = (value) -> {
+        /* Ha ha, you thought this was gonna have more to it,
+         * BUT IT'S ALREADY A STRING! */
+        return value;
+    };
+
+    protected final long tilingThreshold;
+
+    /* Where results get looked up before we run any OCR, if anywhere. */
+    protected final OcrCache cache;
+
+    /* Engines are not thread safe, and loading the trained data into one
+     * takes longer than recognizing most regions, so we keep the idle ones
+     * around, already loaded, for reuse. */
+    protected final ConcurrentLinkedQueue<Engine> engines;
+    protected volatile boolean closed;
+
+    /* Regions get recognized on threads of our own, one per core, as OCR
+     * blocks in native code for as long as it runs, and would starve anything
+     * else sharing a pool with it. Idle threads go away after a while, and
+     * none of them keep the JVM from exiting. */
+    protected final ExecutorService regions;
+
+    public TesseractTagger() {
+        this(DEFAULT_TILING_THRESHOLD, null);
+    }
+
+    /** Create a new tagger.
+     * @param tilingThreshold The number of pixels from which an image gets
+     *                        split into text regions that are recognized in
+     *                        parallel. Use {@link Long#MAX_VALUE} to always
+     *                        recognize the whole image at once.
+     * @param cache The cache results will be looked up in and stored to, or
+     *              {@code null}, if results should not be cached.
+     */
+    public TesseractTagger(long tilingThreshold, OcrCache cache) {
+        this.tilingThreshold = tilingThreshold;
+        this.cache = cache;
+        this.engines = new ConcurrentLinkedQueue<>();
+
+        var threads = Runtime.getRuntime().availableProcessors();
+        var executor = new ThreadPoolExecutor(
+            threads,
+            threads,
+            30,
+            TimeUnit.SECONDS,
+            new LinkedBlockingQueue<>(),
+            (task) -> {
+                var thread = new Thread(task, "tesseract-regions");
+                thread.setDaemon(true);
+                return thread;
+            });
+        executor.allowCoreThreadTimeOut(true);
+        this.regions = executor;
+    }
+
+    /** A string describing everything that may change the output of this
+     * tagger for a given image. Used as part of the cache keys. */
+    protected String getConfiguration() {
+        return String.format(
+            "tess4j-4.5.1;lang=eng;datapath=%s;tiling=%d",
+            System.getenv("TESSDATA_PREFIX"),
+            this.tilingThreshold);
+    }
 
-public class TesseractTagger implements Tagger {
     @Override
     public Optional<Object> tag(BufferedImage image) throws TaggingException {
-        var tesseract = new Tesseract();
+        String key = null;
+        if(this.cache != null) {
+            key = OcrCache.key(image, this.getConfiguration());
+            try {
+                var cached = this.cache.get(key);
+                if(cached.isPresent())
+                    return Optional.of(cached.get());
+            } catch(SQLException e) {
+                /* A broken cache is as good as a cold one. */
+            }
+        }
+
         try {
-            return Optional.ofNullable(tesseract.doOCR(image));
+            String text;
+            if((long) image.getWidth() * image.getHeight() < this.tilingThreshold)
+                text = this.recognize(image);
+            else {
+                var regions = TextRegions.find(image);
+                if(regions.isEmpty())
+                    /* Better to be slow than to miss text the detector didn't
+                     * pick up on. */
+                    text = this.recognize(image);
+                else
+                    text = this.recognize(image, regions);
+            }
+
+            if(text != null && key != null) {
+                try {
+                    this.cache.put(key, text);
+                } catch(SQLException e) {
+                    /* Same as above, we only lose the speedup next time. */
+                }
+            }
+            return Optional.ofNullable(text);
         } catch (TesseractException e) {
             throw new TaggingException("Could not perform OCR extraction", e);
         } catch(Error e) {
@@ -25,29 +140,118 @@ public class TesseractTagger implements Tagger {
         }
     }
 
+    /** Run the OCR on the whole of the given image, using a pooled engine. */
+    protected String recognize(BufferedImage image) throws TesseractException {
+        var engine = this.engines.poll();
+        if(engine == null) engine = new Engine();
+        try {
+            return engine.recognize(image);
+        } finally {
+            this.engines.add(engine);
+            /* Engines given back after the tagger was closed would never be
+             * let go of otherwise. */
+            if(this.closed)
+                this.dispose();
+        }
+    }
+
+    /** Run the OCR on every one of the given regions in parallel and stitch
+     * the results back together, in the order the regions were given in. */
+    protected String recognize(BufferedImage image, List<Rectangle> regions) throws TesseractException {
+        var futures = new ArrayList<Future<String>>(regions.size());
+        for(var region : regions) {
+            var tile = image.getSubimage(region.x, region.y, region.width, region.height);
+            futures.add(this.regions.submit(() -> this.recognize(tile)));
+        }
+
+        var text = new StringBuilder();
+        try {
+            for(var future : futures) {
+                var part = future.get();
+                if(part == null || part.isBlank()) continue;
+
+                text.append(part.strip());
+                text.append('\n');
+            }
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new TesseractException("Interrupted while waiting for region OCR", e);
+        } catch(ExecutionException e) {
+            futures.forEach((future) -> future.cancel(true));
+            if(e.getCause() instanceof TesseractException)
+                throw (TesseractException) e.getCause();
+            if(e.getCause() instanceof Error)
+                throw (Error) e.getCause();
+            throw new TesseractException(e.getCause());
+        }
+
+        return text.toString();
+    }
+
+    /** Let go of every idle engine, along with the threads regions get
+     * recognized on. Images being tagged while this happens still finish. */
+    @Override
+    public void close() {
+        this.closed = true;
+        this.regions.shutdown();
+        this.dispose();
+    }
+
+    /** Let go of every idle engine. */
+    protected void dispose() {
+        Engine engine;
+        while((engine = this.engines.poll()) != null)
+            engine.close();
+    }
+
+    /** An engine whose trained data gets loaded only once, when it is
+     * created, rather than every time it recognizes an image, which is what
+     * {@link Tesseract#doOCR(BufferedImage)} does. */
+    protected static final class Engine extends Tesseract {
+        Engine() {
+            this.init();
+            this.setTessVariables();
+        }
+
+        /** Run the OCR on the whole of the given image. */
+        String recognize(BufferedImage image) throws TesseractException {
+            try {
+                this.setImage(image, null);
+                return this.getOCRText(null, 1);
+            } catch(IOException e) {
+                throw new TesseractException(e);
+            }
+        }
+
+        /** Let go of the native side of the engine. */
+        void close() {
+            this.dispose();
+        }
+    }
+
     @Override
     public Object getTagFromString(String value) {
-        /* Ha ha, you thought this was gonna have more to it,
-         * BUT IT'S ALREADY A STRING! */
-        return value;
+        return CODEC.getTagFromString(value);
     }
 
     @Override
     public Optional<Double> getTagDistance(Object a, Object b) {
-        if(a == null || b == null)
+        return this.getTagDistance(a, b, Double.POSITIVE_INFINITY);
+    }
+
+    @Override
+    public Optional<Double> getTagDistance(Object a, Object b, double bound) {
+        if(a == null || b == null || bound < 0)
             return Optional.empty();
 
         try {
             String l = (String) a;
             String r = (String) b;
-            var size = Math.min(l.length(), r.length());
-
-            /* Calculate a Levenshtein distance between our strings. */
-            int levenshtein = Math.max(l.length(), r.length()) - size;
 
-            for(int i = 0; i < size; ++i)
-                if(l.charAt(i) != r.charAt(i))
-                    ++levenshtein;
+            var limit = bound >= Integer.MAX_VALUE ? Integer.MAX_VALUE : (int) bound;
+            var levenshtein = Levenshtein.distance(l, r, limit);
+            if(levenshtein > limit)
+                return Optional.empty();
 
             return Optional.of((double) levenshtein);
         } catch(ClassCastException e) {
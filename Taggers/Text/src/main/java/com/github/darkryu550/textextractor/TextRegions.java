@@ -0,0 +1,193 @@
+package com.github.darkryu550.textextractor;
+
+import java.awt.Rectangle;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/** Finds the regions of an image that are likely to contain text.
+ * <br><br>
+ * The layout analysis is done on a downscaled copy of the image, by looking
+ * for areas with a high density of strong horizontal transitions, which is what
+ * lines of glyphs look like, and smearing them together into blocks. This is
+ * nowhere near as good as the layout analysis Tesseract does on its own, but it
+ * is cheap and good enough to tell us which parts of a page are worth handing
+ * to the OCR engine. */
+final class TextRegions {
+    /* Longest side of the downscaled copy the analysis runs on. */
+    private static final int ANALYSIS_SIZE = 1024;
+    /* How far, in analysis pixels, transitions get smeared horizontally and
+     * vertically in order to merge glyphs into lines and lines into blocks. */
+    private static final int SMEAR_HORIZONTAL = 12;
+    private static final int SMEAR_VERTICAL = 3;
+    /* Smallest block, in analysis pixels, we consider to be text. */
+    private static final int MIN_WIDTH = 8;
+    private static final int MIN_HEIGHT = 6;
+    /* Padding, in analysis pixels, added around every region so that we don't
+     * cut glyphs in half at the edges. */
+    private static final int PADDING = 4;
+
+    private TextRegions() {}
+
+    /** Find the candidate text regions in the given image.
+     *
+     * @param image The full resolution image.
+     * @return The regions, in full resolution coordinates and sorted in reading
+     * order, that are likely to contain text. Empty if none could be found.
+     */
+    public static List<Rectangle> find(BufferedImage image) {
+        var scale = Math.min(1.0, ANALYSIS_SIZE / (double) Math.max(image.getWidth(), image.getHeight()));
+        var width  = Math.max(1, (int) Math.round(image.getWidth()  * scale));
+        var height = Math.max(1, (int) Math.round(image.getHeight() * scale));
+
+        /* Downscale straight into a grayscale image. */
+        var small = new BufferedImage(width, height, BufferedImage.TYPE_BYTE_GRAY);
+        var graphics = small.createGraphics();
+        graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+        graphics.drawImage(image, 0, 0, width, height, null);
+        graphics.dispose();
+
+        var pixels = small.getRaster().getPixels(0, 0, width, height, (int[]) null);
+
+        /* Horizontal gradient magnitude, along with its mean and deviation, which
+         * we use to pick an adaptive threshold for what a strong edge is. */
+        var gradient = new int[width * height];
+        double sum = 0, squares = 0;
+        for(int i = 0; i < height; ++i)
+            for(int j = 1; j < width; ++j) {
+                var g = Math.abs(pixels[i * width + j] - pixels[i * width + j - 1]);
+                gradient[i * width + j] = g;
+                sum += g;
+                squares += (double) g * g;
+            }
+        var count = (double) width * height;
+        var mean = sum / count;
+        var deviation = Math.sqrt(Math.max(0, squares / count - mean * mean));
+        var threshold = Math.max(24, mean + deviation);
+
+        /* Run-length smearing, first horizontally, then vertically. */
+        var mask = new boolean[width * height];
+        for(int i = 0; i < height; ++i) {
+            var last = -SMEAR_HORIZONTAL - 1;
+            for(int j = 0; j < width; ++j) {
+                if(gradient[i * width + j] < threshold) continue;
+                if(j - last <= SMEAR_HORIZONTAL)
+                    for(int k = last + 1; k < j; ++k)
+                        mask[i * width + k] = true;
+                mask[i * width + j] = true;
+                last = j;
+            }
+        }
+        for(int j = 0; j < width; ++j) {
+            var last = -SMEAR_VERTICAL - 1;
+            for(int i = 0; i < height; ++i) {
+                if(!mask[i * width + j]) continue;
+                if(i - last <= SMEAR_VERTICAL)
+                    for(int k = last + 1; k < i; ++k)
+                        mask[k * width + j] = true;
+                last = i;
+            }
+        }
+
+        /* Label the connected blocks and collect their bounding boxes. */
+        var regions = new ArrayList<Rectangle>();
+        var stack = new int[width * height];
+        for(int start = 0; start < mask.length; ++start) {
+            if(!mask[start]) continue;
+
+            int minX = width, minY = height, maxX = -1, maxY = -1;
+            int top = 0;
+            stack[top++] = start;
+            mask[start] = false;
+            while(top > 0) {
+                var p = stack[--top];
+                var x = p % width;
+                var y = p / width;
+                minX = Math.min(minX, x); maxX = Math.max(maxX, x);
+                minY = Math.min(minY, y); maxY = Math.max(maxY, y);
+
+                if(x > 0          && mask[p - 1])     { mask[p - 1] = false;     stack[top++] = p - 1; }
+                if(x < width - 1  && mask[p + 1])     { mask[p + 1] = false;     stack[top++] = p + 1; }
+                if(y > 0          && mask[p - width]) { mask[p - width] = false; stack[top++] = p - width; }
+                if(y < height - 1 && mask[p + width]) { mask[p + width] = false; stack[top++] = p + width; }
+            }
+
+            if(maxX - minX + 1 < MIN_WIDTH || maxY - minY + 1 < MIN_HEIGHT)
+                continue;
+
+            /* Scale back up to full resolution, with some padding. */
+            var x0 = Math.max(0, (int) Math.floor((minX - PADDING) / scale));
+            var y0 = Math.max(0, (int) Math.floor((minY - PADDING) / scale));
+            var x1 = Math.min(image.getWidth(),  (int) Math.ceil((maxX + 1 + PADDING) / scale));
+            var y1 = Math.min(image.getHeight(), (int) Math.ceil((maxY + 1 + PADDING) / scale));
+            regions.add(new Rectangle(x0, y0, x1 - x0, y1 - y0));
+        }
+
+        return readingOrder(merge(regions));
+    }
+
+    /** Merge regions that overlap after padding, until none of them do.
+     * <br><br>
+     * Regions get swept from left to right, and every one of them gets merged
+     * into the first region already swept that it overlaps, if any. Only the
+     * regions that reach past its left edge can do that. Merged regions grow,
+     * and may then overlap regions they didn't before, so we sweep again for
+     * as long as anything got merged. */
+    private static List<Rectangle> merge(List<Rectangle> regions) {
+        var merged = new ArrayList<>(regions);
+        var changed = true;
+        while(changed) {
+            changed = false;
+            merged.sort(Comparator.comparingInt((Rectangle r) -> r.x));
+
+            var swept = new ArrayList<Rectangle>(merged.size());
+            var active = new ArrayList<Rectangle>();
+            for(var region : merged) {
+                active.removeIf((r) -> r.x + r.width <= region.x);
+
+                Rectangle target = null;
+                for(var candidate : active)
+                    if(candidate.intersects(region)) {
+                        target = candidate;
+                        break;
+                    }
+
+                if(target == null) {
+                    var copy = new Rectangle(region);
+                    active.add(copy);
+                    swept.add(copy);
+                } else {
+                    target.add(region);
+                    changed = true;
+                }
+            }
+            merged = swept;
+        }
+        return merged;
+    }
+
+    /** Sort the regions top to bottom, and left to right for regions that sit
+     * on the same line, which is to say, whose vertical spans overlap. */
+    private static List<Rectangle> readingOrder(List<Rectangle> regions) {
+        regions.sort(Comparator.comparingInt((Rectangle r) -> r.y));
+
+        var ordered = new ArrayList<Rectangle>(regions.size());
+        var line = new ArrayList<Rectangle>();
+        var bottom = Integer.MIN_VALUE;
+        for(var region : regions) {
+            if(!line.isEmpty() && region.y >= bottom) {
+                line.sort(Comparator.comparingInt((Rectangle r) -> r.x));
+                ordered.addAll(line);
+                line.clear();
+            }
+            line.add(region);
+            bottom = line.size() == 1 ? region.y + region.height : Math.max(bottom, region.y + region.height);
+        }
+        line.sort(Comparator.comparingInt((Rectangle r) -> r.x));
+        ordered.addAll(line);
+
+        return ordered;
+    }
+}
@@ -0,0 +1,102 @@
+package com.github.darkryu550.textextractor;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+public class LevenshteinTest {
+    /** The whole dynamic programming matrix, with no band and no cutoff. */
+    private static int full(String a, String b) {
+        var previous = new int[b.length() + 1];
+        var current = new int[b.length() + 1];
+        for(int j = 0; j <= b.length(); ++j)
+            previous[j] = j;
+
+        for(int i = 1; i <= a.length(); ++i) {
+            current[0] = i;
+            for(int j = 1; j <= b.length(); ++j) {
+                var cost = a.charAt(i - 1) == b.charAt(j - 1) ? 0 : 1;
+                current[j] = Math.min(previous[j - 1] + cost, Math.min(previous[j], current[j - 1]) + 1);
+            }
+
+            var t = previous;
+            previous = current;
+            current = t;
+        }
+        return previous[b.length()];
+    }
+
+    private static String random(Random random, int length, int alphabet) {
+        var chars = new char[length];
+        for(int i = 0; i < length; ++i)
+            chars[i] = (char) ('a' + random.nextInt(alphabet));
+        return new String(chars);
+    }
+
+    /** Make a few random edits to a string, so that pairs are often close. */
+    private static String mutate(Random random, String text, int edits, int alphabet) {
+        var builder = new StringBuilder(text);
+        for(int i = 0; i < edits; ++i) {
+            var c = (char) ('a' + random.nextInt(alphabet));
+            var at = random.nextInt(builder.length() + 1);
+            switch(builder.length() == 0 ? 0 : random.nextInt(3)) {
+                case 0: builder.insert(at, c); break;
+                case 1: builder.deleteCharAt(Math.min(at, builder.length() - 1)); break;
+                default: builder.setCharAt(Math.min(at, builder.length() - 1), c); break;
+            }
+        }
+        return builder.toString();
+    }
+
+    private static void check(String a, String b) {
+        var expected = full(a, b);
+        for(int bound = 0; bound <= Math.max(a.length(), b.length()) + 2; ++bound)
+            assertEquals(
+                "distance(\"" + a + "\", \"" + b + "\", " + bound + ")",
+                Math.min(expected, bound + 1),
+                Levenshtein.distance(a, b, bound));
+        assertEquals(expected, Levenshtein.distance(a, b, Integer.MAX_VALUE));
+    }
+
+    @Test
+    public void matchesFullMatrixOnRandomStrings() {
+        var random = new Random(29);
+        for(int i = 0; i < 2000; ++i) {
+            var alphabet = 1 + random.nextInt(4);
+            check(random(random, random.nextInt(12), alphabet), random(random, random.nextInt(12), alphabet));
+        }
+    }
+
+    @Test
+    public void matchesFullMatrixOnCloseStrings() {
+        var random = new Random(30);
+        for(int i = 0; i < 2000; ++i) {
+            var alphabet = 2 + random.nextInt(24);
+            var a = random(random, random.nextInt(40), alphabet);
+            check(a, mutate(random, a, random.nextInt(6), alphabet));
+        }
+    }
+
+    @Test
+    public void handlesEmptyAndLopsidedStrings() {
+        check("", "");
+        check("", "abc");
+        check("abc", "");
+        check("a", "aaaaaaaaaaaaaaaaaaaa");
+        check("kitten", "sitting");
+        check("abcdefghij", "jihgfedcba");
+    }
+
+    @Test
+    public void isSymmetric() {
+        var random = new Random(31);
+        for(int i = 0; i < 500; ++i) {
+            var a = random(random, random.nextInt(20), 3);
+            var b = random(random, random.nextInt(20), 3);
+            for(int bound = 0; bound < 8; ++bound)
+                assertEquals(Levenshtein.distance(a, b, bound), Levenshtein.distance(b, a, bound));
+        }
+    }
+}
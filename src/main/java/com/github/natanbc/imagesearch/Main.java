@@ -1,21 +1,35 @@
 package com.github.natanbc.imagesearch;
 
+import com.github.darkryu550.imagesearch.LazyTagger;
 import com.github.darkryu550.imagesearch.frequency.FrequencyBand;
+import com.github.darkryu550.imagesearch.frequency.FrequencyProfile;
 import com.github.darkryu550.imagesearch.magnitude.*;
+import com.github.darkryu550.textextractor.OcrCache;
 import com.github.darkryu550.textextractor.TesseractTagger;
+import com.github.natanbc.imagesearch.db.ClusterSummary;
 import com.github.natanbc.imagesearch.db.Database;
 import com.github.natanbc.imagesearch.db.Image;
+import com.github.natanbc.imagesearch.db.Neighbor;
+import com.github.natanbc.imagesearch.db.RadiusIndex;
 import com.github.natanbc.imagesearch.db.Selection;
-import com.github.natanbc.imagesearch.db.pool.SingleConnectionPool;
+import com.github.natanbc.imagesearch.db.SqlFunctions;
+import com.github.natanbc.imagesearch.db.index.FeatureStore;
+import com.github.natanbc.imagesearch.db.index.LshIndex;
+import com.github.natanbc.imagesearch.db.index.NeighborGraph;
+import com.github.natanbc.imagesearch.db.index.QuantizedIndex;
+import com.github.natanbc.imagesearch.db.index.FullTextIndex;
+import com.github.natanbc.imagesearch.db.index.HammingIndex;
+import com.github.natanbc.imagesearch.db.index.TrigramIndex;
+import com.github.natanbc.imagesearch.db.pool.WalConnectionPool;
 import picocli.CommandLine;
 
 import java.io.PrintStream;
 import java.nio.file.Path;
-import java.sql.Connection;
-import java.sql.DriverManager;
+import java.sql.JDBCType;
 import java.sql.SQLException;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.function.Function;
 import java.util.stream.Collectors;
 
 @CommandLine.Command(
@@ -25,24 +39,66 @@ import java.util.stream.Collectors;
 public class Main implements AutoCloseable {
     /* After how many characters should a long string get elided? */
     private static final int CHARACTER_ELISION = 60;
+    /* Directory holding the feature stores of the vector taggers. */
+    private static final Path FEATURES = Path.of("./index.db-features");
+    /* Environment variable setting the size images get resampled to before
+     * the frequency domain taggers transform them. */
+    private static final String WORKING_SIZE_VARIABLE = "IMAGE_SEARCH_FFT_SIZE";
 
     protected final ExecutorService executor;
-    protected final SingleConnectionPool connection;
+    protected final WalConnectionPool connection;
     protected final Database database;
+    /* Only opened once the OCR tagger actually runs. */
+    protected OcrCache ocrCache;
 
     protected Main()
         throws SQLException, InterruptedException {
 
         this.executor   = Executors.newCachedThreadPool();
-        this.connection = new SingleConnectionPool(connect("./index.db"));
+        this.connection = connect("./index.db");
         this.database   = new Database(connection);
     }
 
+    /** Open the cache of OCR results, if it hasn't been opened yet. */
+    protected synchronized OcrCache getOcrCache() {
+        if(ocrCache == null)
+            ocrCache = OcrCache.openDefault().orElse(null);
+        return ocrCache;
+    }
+
+    /** The side of the square images get resampled to before their spectra
+     * get computed, as set by {@link #WORKING_SIZE_VARIABLE}, or zero, if they
+     * should be transformed at their original resolution. */
+    protected static int getWorkingSize() {
+        var value = System.getenv(WORKING_SIZE_VARIABLE);
+        if(value == null || value.isBlank())
+            return 0;
+
+        try {
+            var size = Integer.parseInt(value.strip());
+            if(size >= 0 && (size == 0 || Integer.bitCount(size) == 1))
+                return size;
+        } catch(NumberFormatException e) {
+            /* Same as any other invalid size. */
+        }
+        System.err.println(WORKING_SIZE_VARIABLE + " must be zero or a power of two, "
+            + "transforming images at their original resolution");
+        return 0;
+    }
+
     @Override
     public void close() throws Exception {
         executor.shutdown();
         executor.awaitTermination(10, TimeUnit.SECONDS);
+        /* Taggers holding on to native resources, such as the engines of
+         * Tesseract, let go of them once nothing is being tagged anymore. */
+        for(var tagger : database.getTaggers().values())
+            if(tagger instanceof AutoCloseable)
+                ((AutoCloseable) tagger).close();
         connection.close();
+        synchronized(this) {
+            if(ocrCache != null) ocrCache.close();
+        }
     }
 
     public static void main(String[] args) {
@@ -62,6 +118,9 @@ public class Main implements AutoCloseable {
                 .addSubcommand(main.getGetSubcommand())
                 .addSubcommand(main.getPassSubcommand())
                 .addSubcommand(main.getClosestSubcommand())
+                .addSubcommand(main.getSimilarSubcommand())
+                .addSubcommand(main.getClusterSubcommand())
+                .addSubcommand(main.getGraphSubcommand())
                 .execute(args);
 
             /* The cached thread pool may keep threads alive for 60 more seconds.
@@ -90,8 +149,9 @@ public class Main implements AutoCloseable {
     protected void printImageSummaryFromSelection(Selection selection, PrintStream target)
         throws SQLException, InterruptedException {
 
-        for(var image : this.database.getImages(selection)) {
-            printImageSummary(image, target);
+        try(var cursor = this.database.getCursor(selection)) {
+            while(cursor.next())
+                printImageSummary(cursor.get(), target);
         }
     }
 
@@ -174,13 +234,34 @@ public class Main implements AutoCloseable {
      *      - {@code >=} Greater than or equal to
      *      - {@code <=} Less than or equal to
      *      - {@code ~}  Likeness
-     *      - {@code //} Between
+     *      - {@code //} Between, inclusive, with the value being a range of the
+     *                   form {@code lower..upper}
+     *      - {@code @@} Full text match, ranked by relevance. Everything to
+     *                   the right of it is taken as an FTS5 query verbatim.
      *      - {@code *} All, in this case, all other values are ignored.
      */
     protected Selection selectionFromString(String s) {
         String  operator = null;
         Integer index = null;
 
+        /* The full text query syntax is free to use any of the other operators,
+         * so we have to catch it before we look for them. */
+        var m = s.indexOf("@@");
+        if(m != -1) {
+            var lhs = s.substring(0, m).strip();
+            var rhs = s.substring(m + 2).strip();
+
+            if(!this.database.getTaggers().containsKey(lhs))
+                throw new IllegalArgumentException("No registered tagger matches \"" + lhs + "\"");
+            var fts = this.database.getIndices(lhs).stream()
+                .filter((idx) -> idx instanceof FullTextIndex)
+                .map((idx) -> (FullTextIndex) idx)
+                .findFirst()
+                .orElseThrow(() -> new IllegalArgumentException("Tagger \"" + lhs + "\" has no full text index"));
+
+            return Selection.matches(fts.getTable(), rhs);
+        }
+
         var e = new IllegalArgumentException("More than one operator");
         var i = s.indexOf(">=");
         if(i != -1) { operator = ">="; index = i; }
@@ -212,21 +293,33 @@ public class Main implements AutoCloseable {
         var lhs = s.substring(0, index).strip();
         var rhs = s.substring(index + operator.length()).strip();
 
-        Object tag = rhs;
         String col = lhs;
+        Function<String, Object> parse;
         /* `id` and `path` are special cases. */
         if(lhs.equals("id"))
-            tag = UUID.fromString(rhs);
+            parse = UUID::fromString;
         else if(lhs.equals("path"))
-            tag = Path.of(rhs);
+            parse = Path::of;
         else {
             var src = this.database.getTaggers().get(lhs);
             if (src == null)
                 throw new IllegalArgumentException("No registered tagger matches \"" + lhs + "\"");
-            tag = src.getTagFromString(rhs);
+            parse = (value) -> src.toStorage(src.getTagFromString(value));
             col = Database.taggerColumnName(lhs);
         }
 
+        /* The bounds of a range are separated by two dots. */
+        if(operator.equals("//")) {
+            var separator = rhs.indexOf("..");
+            if(separator == -1)
+                throw new IllegalArgumentException("Expected a range of the form \"lower..upper\"");
+
+            var lower = parse.apply(rhs.substring(0, separator).strip());
+            var upper = parse.apply(rhs.substring(separator + 2).strip());
+            return Selection.between(col, lower, upper);
+        }
+
+        var tag = parse.apply(rhs);
         Selection sel;
         switch(operator) {
             case "="  -> sel = Selection.equals(col, tag);
@@ -236,13 +329,39 @@ public class Main implements AutoCloseable {
             case "<>" -> sel = Selection.differs(col, tag);
             case "<=" -> sel = Selection.lessThanOrEqualTo(col, tag);
             case ">=" -> sel = Selection.greaterThanOrEqualTo(col, tag);
-            case "//" -> throw new RuntimeException("TODO: Implement between operator");
             default -> throw new RuntimeException("Invalid operator " + operator);
         }
 
         return sel;
     }
 
+    /** Combine the selections given on the command line into one.
+     *
+     * @param selections The selections, in the form taken by
+     *                   {@link #selectionFromString(String)}.
+     * @param matchAll Whether images must match all of the selections, rather
+     *                 than any of them.
+     * @return The combined selection, which selects everything if no
+     * selections were given.
+     */
+    protected Selection selectionFromStrings(String[] selections, boolean matchAll) {
+        if(selections == null || selections.length == 0)
+            /* Default to selecting everything. */
+            return Selection.all();
+
+        Selection selection = null;
+        for(var s : selections) {
+            var sel = selectionFromString(s);
+            if(selection == null)
+                selection = sel;
+            else if(matchAll)
+                selection = selection.intersect(sel);
+            else
+                selection = selection.join(sel);
+        }
+        return selection;
+    }
+
     @CommandLine.Command(
         name = "query",
         mixinStandardHelpOptions = true,
@@ -250,18 +369,12 @@ public class Main implements AutoCloseable {
     protected class Query implements Callable<Integer> {
         @CommandLine.Option(names = { "-s", "--select" }, description = "Make a selection")
         protected String[] selections;
+        @CommandLine.Option(names = { "-a", "--match-all" }, description = "Only select images matching all of the selections")
+        protected boolean matchAll = false;
 
         @Override
         public Integer call() throws Exception {
-            var selection = Selection.none();
-            if(this.selections != null && this.selections.length > 0) {
-                for (var s : this.selections) {
-                    Selection sel = selectionFromString(s);
-                    selection = selection.join(sel);
-                }
-            } else
-                /* Default to selecting everything. */
-                selection = Selection.all();
+            var selection = selectionFromStrings(this.selections, this.matchAll);
 
             Main.this.printImageSummaryFromSelection(selection, System.out);
             return 0;
@@ -281,8 +394,14 @@ public class Main implements AutoCloseable {
 
         @Override
         public Integer call() throws Exception {
+            if(!database.getTaggers().containsKey(this.tag)) {
+                System.err.println("Could not find tag " + this.tag);
+                return 1;
+            }
+
+            /* We only need the one tag. */
             var selection = Selection.equals("id", this.id);
-            var images = database.getImages(selection);
+            var images = database.getImages(selection, List.of(this.tag));
 
             if(images.size() <= 0) {
                 System.err.println("Could not find image with ID " + this.id.toString());
@@ -316,16 +435,23 @@ public class Main implements AutoCloseable {
         protected String tag;
         @CommandLine.Option(names = { "-n", "--number" }, description = "Number of closest images to show")
         protected Integer number;
+        @CommandLine.Option(names = { "-d", "--max-distance" }, description = "Only show images within this distance")
+        protected Double maxDistance;
+        @CommandLine.Option(names = { "-a", "--approximate" }, description = "Search the compressed vectors of the tag, if it has any, at the risk of missing some images")
+        protected boolean approximate;
+        @CommandLine.Option(names = { "--near-duplicates" }, description = "Only search the images the tag's hash index says are likely near-duplicates")
+        protected boolean nearDuplicates;
 
         @Override
         public Integer call() throws Exception {
-            var selection = Selection.equals("id", this.id);
-            var images = database.getImages(selection);
-
             if(!database.getTaggers().containsKey(this.tag)) {
                 System.err.println("The given tagger has not been registered");
                 return 1;
             }
+
+            /* Distances only ever need the one tag. */
+            var selection = Selection.equals("id", this.id);
+            var images = database.getImages(selection, List.of(this.tag));
             if(images.size() <= 0) {
                 System.err.println("Could not find image with ID " + this.id.toString());
                 return 1;
@@ -339,44 +465,59 @@ public class Main implements AutoCloseable {
                 current = new TagBundle(image, tag);
             }
 
-            ArrayList<TagBundle> others = new ArrayList<>(images.size());
-            for(var image : database.getImages(Selection.differs("id", this.id))) {
-                var tag = image.getTag(this.tag).orElse(null);
-                others.add(new TagBundle(image, tag));
+            /* Given a bound on the distance, tags with a radius index, such as
+             * the trigram index of text tags, can have their candidates
+             * narrowed down by it. */
+            var candidates = Selection.differs("id", this.id);
+            var bound = this.maxDistance != null ? this.maxDistance : Double.POSITIVE_INFINITY;
+            if(this.maxDistance != null && current.tag != null) {
+                for(var index : database.getIndices(this.tag))
+                    if(index instanceof RadiusIndex) {
+                        var narrowed = ((RadiusIndex) index).candidates(current.tag, this.maxDistance);
+                        if(narrowed.isPresent())
+                            candidates = narrowed.get().intersect(candidates);
+                        break;
+                    }
             }
 
-            var tagger = database.getTaggers().get(this.tag);
-            ArrayList<Future<Optional<DistanceBundle>>> futures = new ArrayList<>(others.size());
-            for(var bundle : others) {
-                TagBundle finalCurrent = current;
-                futures.add(executor.submit(() -> {
-                    var distance = tagger.getTagDistance(finalCurrent.tag, bundle.tag);
-                    return distance.map((d) -> new DistanceBundle(bundle.image, d));
-                }));
+            /* Near-duplicates only need the images sharing a bucket checked. */
+            if(this.nearDuplicates) {
+                LshIndex hashes = null;
+                for(var index : database.getIndices(this.tag))
+                    if(index instanceof LshIndex)
+                        hashes = (LshIndex) index;
+                if(hashes == null) {
+                    System.err.println("The given tagger has no index for near-duplicates");
+                    return 1;
+                }
+                if(current.tag == null)
+                    return 0;
+                candidates = hashes.candidates(current.tag).intersect(candidates);
             }
-            ArrayList<DistanceBundle> distances = futures.stream()
-                .map((future) -> {
-                    try {
-                        return future.get();
-                    } catch (InterruptedException | ExecutionException e) {
-                        e.printStackTrace();
-                        System.exit(1);
-                    }
-                    return Optional.ofNullable((DistanceBundle) null);
-                })
-                .filter(Optional::isPresent)
-                .map(Optional::get)
-                .sorted(Comparator.comparing(a -> a.distance))
-                .collect(Collectors.toCollection(ArrayList::new));
 
-            var len = distances.size();
-            if(this.number != null) len = this.number;
-            len = Math.min(len, distances.size());
+            /* The distances get computed by the database itself, as it scans
+             * the candidates, on as many connections as it can read with at
+             * once, so only the closest ones ever make it out. */
+            var limit = this.number != null ? this.number : -1;
+            List<Neighbor> distances = null;
+
+            /* Plain searches may not need to be made at all, if the tag has a
+             * neighbor graph that's sure to hold the closest images already. */
+            if(!this.approximate && !this.nearDuplicates)
+                distances = database.getGraphNeighbors(this.tag, this.id, limit, bound).orElse(null);
+            if(distances == null)
+                distances = this.approximate
+                    ? database.getApproximateNearest(executor, candidates, this.tag, current.tag, limit, bound)
+                    : database.getNearest(executor, candidates, this.tag, current.tag, limit, bound);
 
+            var len = distances.size();
             for(int i = 0; i < len; ++i) {
-                var bundle = distances.get(i);
-                System.out.printf("[%d/%d] With a distance of %f", i + 1, len, bundle.distance);
-                Main.this.printImageSummary(bundle.image, System.out);
+                var neighbor = distances.get(i);
+                var image = database.getImageById(neighbor.getId());
+                if(image.isEmpty()) continue;
+
+                System.out.printf("[%d/%d] With a distance of %f", i + 1, len, neighbor.getDistance());
+                Main.this.printImageSummary(image.get(), System.out);
             }
 
             return 0;
@@ -391,18 +532,143 @@ public class Main implements AutoCloseable {
                 this.tag = tag;
             }
         }
+    }
+    protected Closest getClosestSubcommand() { return new Closest(); }
 
-        private final class DistanceBundle {
-            public final Image image;
-            public final Double distance;
+    @CommandLine.Command(
+        name = "similar",
+        mixinStandardHelpOptions = true,
+        description = "Get the images closest to a given image by a weighted combination of tags")
+    protected class Similar implements Callable<Integer> {
+        @CommandLine.Parameters(index = "0", paramLabel = "UUID", description = "The ID of the image")
+        protected UUID id;
+        @CommandLine.Option(names = { "-w", "--weight" }, required = true, paramLabel = "TAG=WEIGHT", description = "Weigh in a tag, by how much it counts towards the score")
+        protected Map<String, Double> weights;
+        @CommandLine.Option(names = { "-n", "--number" }, description = "Number of closest images to show (Default: ${DEFAULT-VALUE})")
+        protected int number = 10;
 
-            private DistanceBundle(Image image, Double distance) {
-                this.image = image;
-                this.distance = distance;
+        @Override
+        public Integer call() throws Exception {
+            for(var tag : this.weights.keySet())
+                if(!database.getTaggers().containsKey(tag)) {
+                    System.err.println("The tagger \"" + tag + "\" has not been registered");
+                    return 1;
+                }
+
+            var images = database.getImages(Selection.equals("id", this.id), this.weights.keySet());
+            if(images.size() <= 0) {
+                System.err.println("Could not find image with ID " + this.id.toString());
+                return 1;
+            }
+            if(images.size() > 1)
+                throw new RuntimeException("More than one image has the same UUID");
+
+            var tags = new HashMap<String, Object>();
+            for(var image : images)
+                for(var tag : this.weights.keySet())
+                    image.getTag(tag).ifPresent((value) -> tags.put(tag, value));
+
+            List<Neighbor> scores;
+            try {
+                scores = database.getCombinedNearest(
+                    executor,
+                    Selection.differs("id", this.id),
+                    this.id,
+                    this.weights,
+                    tags,
+                    this.number);
+            } catch(IllegalArgumentException e) {
+                System.err.println(e.getMessage());
+                return 1;
             }
+
+            var len = scores.size();
+            for(int i = 0; i < len; ++i) {
+                var neighbor = scores.get(i);
+                var image = database.getImageById(neighbor.getId());
+                if(image.isEmpty()) continue;
+
+                System.out.printf("[%d/%d] With a score of %f", i + 1, len, neighbor.getDistance());
+                Main.this.printImageSummary(image.get(), System.out);
+            }
+
+            return 0;
         }
     }
-    protected Closest getClosestSubcommand() { return new Closest(); }
+    protected Similar getSimilarSubcommand() { return new Similar(); }
+
+    @CommandLine.Command(
+        name = "cluster",
+        mixinStandardHelpOptions = true,
+        description = "Group the near-duplicate images in the database together, writing the groups to a table")
+    protected class Cluster implements Callable<Integer> {
+        @CommandLine.Parameters(index = "0", paramLabel = "TAG", description = "Name of the tag whose buckets and distances are used")
+        protected String tag;
+        @CommandLine.Option(names = { "-d", "--max-distance" }, required = true, description = "Largest distance between two images in the same group")
+        protected double maxDistance;
+        @CommandLine.Option(names = { "-o", "--table" }, description = "Table the groups get written to (Default: ${DEFAULT-VALUE})")
+        protected String table = "clusters";
+        @CommandLine.Option(names = { "--max-bucket" }, description = "Skip buckets with more images than this (Default: ${DEFAULT-VALUE})")
+        protected int maxBucket = 4096;
+
+        @Override
+        public Integer call() throws Exception {
+            if(!database.getTaggers().containsKey(this.tag)) {
+                System.err.println("The given tagger has not been registered");
+                return 1;
+            }
+
+            ClusterSummary summary;
+            try {
+                summary = database.cluster(executor, this.tag, this.maxDistance, this.table, this.maxBucket);
+            } catch(IllegalArgumentException e) {
+                System.err.println(e.getMessage());
+                return 1;
+            }
+
+            System.out.printf(
+                "Found %d groups, with %d images in them, written to table %s%n",
+                summary.getClusters(),
+                summary.getImages(),
+                this.table);
+            if(summary.getSkippedBuckets() > 0)
+                System.err.printf(
+                    "Skipped %d buckets with more than %d images%n",
+                    summary.getSkippedBuckets(),
+                    this.maxBucket);
+            return 0;
+        }
+    }
+    protected Cluster getClusterSubcommand() { return new Cluster(); }
+
+    @CommandLine.Command(
+        name = "graph",
+        mixinStandardHelpOptions = true,
+        description = "Build the graph of the closest images to every image, which distances then look images up in")
+    protected class Graph implements Callable<Integer> {
+        @CommandLine.Parameters(index = "0", paramLabel = "TAG", description = "Name of the tag whose graph is built")
+        protected String tag;
+
+        @Override
+        public Integer call() throws Exception {
+            if(!database.getTaggers().containsKey(this.tag)) {
+                System.err.println("The given tagger has not been registered");
+                return 1;
+            }
+
+            long images;
+            try {
+                images = database.buildNeighborGraph(executor, this.tag);
+            } catch(IllegalArgumentException e) {
+                System.err.println(e.getMessage());
+                return 1;
+            }
+
+            System.out.printf("Built the graph of %d images%n", images);
+            return 0;
+        }
+    }
+    protected Graph getGraphSubcommand() { return new Graph(); }
 
     @CommandLine.Command(
         name = "pass",
@@ -413,17 +679,12 @@ public class Main implements AutoCloseable {
         protected HashSet<String> taggers;
         @CommandLine.Option(names = { "-s", "--select" }, description = "Make a selection")
         protected String[] selections;
+        @CommandLine.Option(names = { "-a", "--match-all" }, description = "Only select images matching all of the selections")
+        protected boolean matchAll = false;
 
         @Override
         public Integer call() throws Exception {
-            var selection = Selection.all();
-            if(this.selections != null && this.selections.length > 0) {
-                selection = Selection.none();
-                for (var s : this.selections) {
-                    Selection sel = selectionFromString(s);
-                    selection = selection.join(sel);
-                }
-            }
+            var selection = selectionFromStrings(this.selections, this.matchAll);
 
             var pass = database.getPassWithAllTaggers();
             if(this.taggers != null && this.taggers.size() > 0)
@@ -448,20 +709,57 @@ public class Main implements AutoCloseable {
      * @throws SQLException Upon failure of a SQL operation.
      */
     protected void register() throws InterruptedException, SQLException {
-        database.register("frequencyBand", new FrequencyBand());
-        database.register("tesseract", new TesseractTagger());
+        var workingSize = Main.getWorkingSize();
+        database.register("frequencyBand", new FrequencyBand(workingSize));
+        var frequencyProfile = new FrequencyProfile(FrequencyProfile.DEFAULT_BINS, workingSize);
+        database.register("frequencyProfile", frequencyProfile);
+        /* Tesseract loads its native library and the OCR cache when it gets
+         * created, which most commands never need, not even to read or parse
+         * its tags. */
+        database.register("tesseract", new LazyTagger(JDBCType.VARCHAR, TesseractTagger.CODEC, () ->
+            new TesseractTagger(TesseractTagger.DEFAULT_TILING_THRESHOLD, getOcrCache())));
         database.register("haralickContrast", new HaralickContrast());
         database.register("haralickCorrelation", new HaralickCorrelation());
         database.register("haralickEnergy", new HaralickEnergy());
         database.register("haralickEntropy", new HaralickEntropy());
         database.register("haralickHomogeneity", new HaralickHomogeneity());
         database.register("haralickMaxProb", new HaralickMaximumProbability());
-        database.register("histogram", new Histogram());
+        database.register("perceptualHash", new PerceptualHash());
+        var histogram = new Histogram();
+        database.register("histogram", histogram);
+
+        database.addIndex("tesseract", new FullTextIndex("fts$tesseract"));
+        database.addIndex("tesseract", new TrigramIndex("trigram$tesseract"));
+        database.addIndex("perceptualHash", new HammingIndex("mih$perceptualHash"));
+
+        /* Vectors get scanned from files of their own, next to the database. */
+        database.addIndex("frequencyProfile", new FeatureStore(
+            FEATURES.resolve("frequencyProfile.f32"),
+            frequencyProfile));
+        database.addIndex("histogram", new FeatureStore(
+            FEATURES.resolve("histogram.f32"),
+            histogram));
+        /* Near-duplicate histograms get found through 8 buckets of 16 bits. */
+        database.addIndex("histogram", new LshIndex("lsh$histogram", histogram, 8, 16));
+        /* Histograms also get coded in 32 bytes, for approximate searches. */
+        database.addIndex("histogram", new QuantizedIndex(
+            FEATURES.resolve("histogram.pq"),
+            FEATURES.resolve("histogram.codes"),
+            histogram,
+            32));
+
+        /* The closest images to every image get kept around, once built. */
+        database.addIndex("frequencyProfile", new NeighborGraph("knn$frequencyProfile", frequencyProfile, 16));
+        database.addIndex("histogram", new NeighborGraph("knn$histogram", histogram, 16));
     }
 
-    private static Connection connect(String path) {
+    private static WalConnectionPool connect(String path) {
         try {
-            return DriverManager.getConnection("jdbc:sqlite:" + Path.of(path));
+            /* One reader per core, reads are what parallel work mostly does. */
+            return new WalConnectionPool(
+                Path.of(path),
+                Runtime.getRuntime().availableProcessors(),
+                SqlFunctions::install);
         } catch (SQLException e) {
             System.err.println("Unable to open database file:");
             e.printStackTrace();
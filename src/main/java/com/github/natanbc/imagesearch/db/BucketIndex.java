@@ -0,0 +1,15 @@
+package com.github.natanbc.imagesearch.db;
+
+/** A {@link TagIndex} which puts every image into one or more buckets, kept in
+ * a table of the database, such that images with similar tags are likely to
+ * share at least one of them. */
+public interface BucketIndex extends TagIndex {
+    /** The table holding the buckets, which has a row for every image in every
+     * bucket, with the rowid of the image in its {@code image} column. */
+    String getTable();
+
+    /** The columns that make up the key of a bucket in the table, separated by
+     * commas, which the table should be ordered by, so that it can be read one
+     * bucket at a time without having to be sorted. */
+    String getBucketColumns();
+}
@@ -0,0 +1,29 @@
+package com.github.natanbc.imagesearch.db;
+
+/** What came out of grouping the images of the database into clusters. */
+public final class ClusterSummary {
+    private final long clusters;
+    private final long images;
+    private final long skippedBuckets;
+
+    public ClusterSummary(long clusters, long images, long skippedBuckets) {
+        this.clusters = clusters;
+        this.images = images;
+        this.skippedBuckets = skippedBuckets;
+    }
+
+    /** The number of clusters with more than one image in them. */
+    public long getClusters() {
+        return clusters;
+    }
+
+    /** The number of images in those clusters. */
+    public long getImages() {
+        return images;
+    }
+
+    /** The number of buckets that were too large to be verified. */
+    public long getSkippedBuckets() {
+        return skippedBuckets;
+    }
+}
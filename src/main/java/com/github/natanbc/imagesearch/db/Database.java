@@ -1,38 +1,100 @@
 package com.github.natanbc.imagesearch.db;
 
 import com.github.darkryu550.imagesearch.Tagger;
+import com.github.natanbc.imagesearch.db.index.FeatureStore;
+import com.github.natanbc.imagesearch.db.index.NeighborGraph;
+import com.github.natanbc.imagesearch.db.index.QuantizedIndex;
+import com.github.natanbc.imagesearch.db.pool.ConnectionHandle;
 import com.github.natanbc.imagesearch.db.pool.ConnectionPool;
 
 import javax.imageio.ImageIO;
 import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.nio.file.Path;
+import java.sql.Connection;
 import java.sql.SQLException;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.Predicate;
 
 public class Database {
     public static final String IMAGES_TABLE = "images";
+    /** The view joining the images with the values of all of their tags. */
+    public static final String IMAGES_VIEW = "images_tagged";
+    /** The table holding how the distances of every tagger are spread out. */
+    public static final String STATS_TABLE = "distance_stats";
     protected final ConnectionPool database;
 
     /* Map of taggers, indexed by a given name. This name will be used for the
      * columns their tags will fill in the table. So keep them consistent. */
     protected HashMap<String, Tagger> taggers;
 
-     /** Given an existing connection to a database, initialize this manager. */
+    /* Indices kept over the values of the taggers, by tagger name. */
+    protected HashMap<String, List<TagIndex>> indices;
+
+    /* Side tables in the database, along with the types of their values,
+     * read from the schema when the database is opened. Selections get told
+     * which columns hold text through them. */
+    protected final Map<String, String> tagTables;
+
+    /* Versions of the taggers behind the values of the side tables, read along
+     * with them, and the taggers whose values got thrown out for having been
+     * computed by another version, whose indices need emptying. */
+    protected final Map<String, String> tagVersions;
+    protected final Set<String> invalidated;
+
+    /* Distance functions installed into every connection, by tagger name. */
+    protected final Map<Connection, Set<String>> distances;
+
+    /* Columns we know to have been indexed for selections. */
+    protected final Set<String> indexed;
+
+    /** Default number of images read from the database at a time. */
+    public static final int DEFAULT_FETCH_SIZE = 256;
+    /* Number of images cursors read from the database at a time. */
+    protected int fetchSize = DEFAULT_FETCH_SIZE;
+
+    /* Smallest range of rowids worth scanning on a connection of its own. */
+    private static final long MIN_PARTITION_SIZE = 4096;
+    /* How many more images than asked for approximate searches rank by their
+     * actual distances, and how many they rank at the very least. */
+    private static final int RERANK_FACTOR = 16;
+    private static final int RERANK_MINIMUM = 64;
+    /* How many pairs of images clustering compares in every task, and how
+     * many tasks it keeps in flight for every thread. */
+    private static final long CLUSTER_BATCH_PAIRS = 4096;
+    private static final int CLUSTER_BATCHES_PER_THREAD = 4;
+    /* Number of images in every block of a neighbor graph build. */
+    private static final int GRAPH_BLOCK_SIZE = 4096;
+    /* Number of values the spread of distances gets measured between, every
+     * pair of them, and the fewest images combined searches look at first. */
+    private static final int STATS_SAMPLES = 128;
+    private static final int COMBINED_MINIMUM_DEPTH = 16;
+
+    /** Given an existing connection to a database, initialize this manager.
+     * Every connection in the pool must have had {@link SqlFunctions} installed
+     * into it beforehand. */
     public Database(ConnectionPool database) throws InterruptedException, SQLException {
         this.database = database;
         this.taggers = new HashMap<>();
+        this.indices = new HashMap<>();
+        this.indexed = ConcurrentHashMap.newKeySet();
+        this.distances = new WeakHashMap<>();
+        this.invalidated = ConcurrentHashMap.newKeySet();
 
-        /* Initialize the database if needed. */
-        try(var handle = this.database.take()) {
-            var connection = handle.getConnection();
-            var statement = connection.createStatement();
-            var query = String.format(
-                    "create table if not exists %s(id STRING, path STRING)",
-                    IMAGES_TABLE);
-            statement.execute(query);
-            statement.close();
+        /* Initialize the database if needed, or bring it up to date. */
+        try(var handle = this.database.takeWriter()) {
+            Schema.migrate(handle.getConnection(), IMAGES_TABLE);
+            Schema.createStatsTable(handle.getConnection(), STATS_TABLE);
+            this.tagTables = new ConcurrentHashMap<>(Schema.tagTables(handle.getConnection()));
+            this.tagVersions = Schema.tagVersions(handle.getConnection());
+            Schema.refreshView(handle.getConnection(), IMAGES_TABLE, IMAGES_VIEW, this.tagTables);
         }
     }
 
@@ -45,7 +107,8 @@ public class Database {
      * {@link Pass} object.
      *
      * @param key The name that will be given to the tagger. The same name will
-     *            be used as the column name for the tags generated by it.
+     *            be used as the column name for the tags generated by it, and
+     *            for the table they are stored in.
      * @param tagger The tagger object itself.
      * @return A {@link Pass} object that, when run, will execute the
      * registered tagger over the entire range of elements already present in
@@ -55,36 +118,45 @@ public class Database {
      * @throws SQLException Upon failure of a SQL operation.
      */
     public Pass register(String key, Tagger tagger) throws InterruptedException, SQLException {
-        try(var handle = this.database.take()) {
-            var connection = handle.getConnection();
-            var statement = connection.createStatement();
-            var column = Database.taggerColumnName(key);
-
-            /* We have to test and see if the table exists before we register it.
-             * it would be better to do this in a transaction, but eh, too much
-             * effort for what this is setting out to do. Nonetheless:
-             * TODO: Make conditional new column addition into a transaction.
-             */
-            var query = String.format(
-                    "alter table %s add column %s %s",
-                    IMAGES_TABLE,
-                    column,
-                    tagger.getType().getName());
-            var test = String.format(
-                    "select %s from %s",
-                    column,
-                    IMAGES_TABLE);
+        /* Every tagger gets a table of its own, so that large values never
+         * get in the way of scans over the small ones. We already know which
+         * of them exist, so registering a known tagger costs nothing. */
+        var column = Database.taggerColumnName(key);
+        if(!this.tagTables.containsKey(column)) {
+            var type = tagger.getType().getName();
+            try(var handle = this.database.takeWriter()) {
+                var connection = handle.getConnection();
+                Schema.createTagTable(connection, column, type);
+                this.tagTables.put(column, Schema.columnType(type));
+                Schema.refreshView(connection, IMAGES_TABLE, IMAGES_VIEW, this.tagTables);
+            }
+        }
 
-            try {
-                statement.execute(test);
-            } catch(SQLException e) {
-                /* Assume this error is caused by table not existing. */
-                statement.execute(query);
+        /* Values computed by another version of the tagger can't be compared
+         * with the ones it computes now, so they have to go, along with
+         * everything that was worked out from them. */
+        if(!tagger.getVersion().equals(this.tagVersions.getOrDefault(column, ""))) {
+            try(var handle = this.database.takeWriter()) {
+                var connection = handle.getConnection();
+                if(!Schema.checkTagVersion(connection, column, tagger.getVersion())) {
+                    this.invalidated.add(key);
+                    try(var statement = connection.prepareStatement(
+                        "delete from " + STATS_TABLE + " where tagger=?")) {
+                        statement.setString(1, key);
+                        statement.execute();
+                    }
+                }
             }
-            statement.close();
+            this.tagVersions.put(column, tagger.getVersion());
         }
 
         this.taggers.put(key, tagger);
+        /* Functions installed for a tagger this one replaces are stale. */
+        synchronized(this.distances) {
+            for(var installed : this.distances.values())
+                installed.remove(key);
+        }
+
         /* Create the pass for this tagger, over the whole column. */
         var isolate = new HashMap<String, Tagger>();
         isolate.put(key, tagger);
@@ -92,16 +164,47 @@ public class Database {
         return new Pass(
             this.database,
             isolate,
-            IMAGES_TABLE,
+            this.indices,
+            this.tagTables,
+            IMAGES_VIEW,
             null
         );
     }
 
+    /** Adds an index over the values of a registered tagger, creating it in
+     * the database if it doesn't exist yet. From then on, the index is kept up
+     * to date by every {@link Pass} that runs the tagger.
+     *
+     * @param key The name of the tagger whose values will be indexed.
+     * @param index The index.
+     * @throws IllegalArgumentException When no tagger with the given name has
+     * been registered.
+     * @throws InterruptedException When a connection to the database could not
+     * be acquired from the pool.
+     * @throws SQLException Upon failure of a SQL operation.
+     */
+    public void addIndex(String key, TagIndex index) throws InterruptedException, SQLException {
+        if(!this.taggers.containsKey(key))
+            throw new IllegalArgumentException("No registered tagger matches \"" + key + "\"");
+
+        try(var handle = this.database.takeWriter()) {
+            index.create(handle, IMAGES_VIEW, Database.taggerColumnName(key));
+            if(this.invalidated.contains(key))
+                index.invalidate(handle);
+        }
+        this.indices.computeIfAbsent(key, (k) -> new ArrayList<>()).add(index);
+    }
+
     /** The taggers currently registered in this database. */
     public Map<String, Tagger> getTaggers() {
         return taggers;
     }
 
+    /** The indices kept over the values of the given tagger. */
+    public List<TagIndex> getIndices(String key) {
+        return this.indices.getOrDefault(key, List.of());
+    }
+
     public interface PassFilter {
         /** Whether this tagger should be run. */
         boolean shouldRun(String key, Tagger tagger);
@@ -119,7 +222,9 @@ public class Database {
         return new Pass(
             this.database,
             selected,
-            IMAGES_TABLE,
+            this.indices,
+            this.tagTables,
+            IMAGES_VIEW,
             null
         );
     }
@@ -136,7 +241,9 @@ public class Database {
         return Optional.of(new Pass(
             this.database,
             isolate,
-            IMAGES_TABLE,
+            this.indices,
+            this.tagTables,
+            IMAGES_VIEW,
             null
         ));
     }
@@ -146,7 +253,9 @@ public class Database {
         return new Pass(
             this.database,
             this.taggers,
-            IMAGES_TABLE,
+            this.indices,
+            this.tagTables,
+            IMAGES_VIEW,
             null
         );
     }
@@ -172,16 +281,14 @@ public class Database {
         ImageIO.read(canonical.toFile());
 
         /* It's valid, add the entry to the database. */
-        try(var handle = this.database.take()) {
-            var connection = handle.getConnection();
-            var statement = connection.createStatement();
+        try(var handle = this.database.takeWriter()) {
             var query = String.format(
-                    "insert into %s(id, path) values (\"%s\", \"%s\")",
-                    IMAGES_TABLE,
-                    id.toString(),
-                    path.toString());
-            statement.execute(query);
-            statement.close();
+                    "insert into %s(id, path) values (?, ?)",
+                    IMAGES_TABLE);
+            var statement = handle.prepare(query);
+            statement.setBytes(1, Database.uuidToBytes(id));
+            statement.setString(2, path.toString());
+            statement.execute();
         }
 
         return Selection.equals("id", id);
@@ -195,76 +302,1535 @@ public class Database {
      * @throws SQLException Upon failure of a SQL operation.
      * */
     public Optional<Image> getImageById(UUID id) throws InterruptedException, SQLException {
-        try(var handle = this.database.take()) {
-            var connection = handle.getConnection();
-            var statement = connection.createStatement();
+        try(var handle = this.database.takeReader()) {
             var query = String.format(
-                    "select * from %s where id=\"%s\"",
-                    IMAGES_TABLE,
-                    id.toString());
-            if (!statement.execute(query))
-                /* This statement having failed to execute is a bug. */
-                throw new RuntimeException(
-                        "Could not submit query: " + query,
-                        statement.getWarnings());
-
-            var result = statement.getResultSet();
-            if (!result.next())
-                return Optional.empty();
+                    "select * from %s where id=?",
+                    IMAGES_VIEW);
+            var statement = handle.prepare(query);
+            statement.setBytes(1, Database.uuidToBytes(id));
 
-            var uuid_str = result.getString("id");
-            var path_str = result.getString("path");
-            if (!id.toString().equals(uuid_str))
-                throw new RuntimeException("Entry queried with ID has different " +
-                        "ID value: Expected \"" + id.toString() + "\", got \""
-                        + uuid_str + "\"");
+            try(var result = statement.executeQuery()) {
+                if (!result.next())
+                    return Optional.empty();
 
-            if (path_str == null)
-                /* This statement having failed to execute is a bug. */
-                throw new RuntimeException("Required field \"path\" has a null value");
+                var image = Image.fromResultSet(result, this.taggers).orElseThrow();
+                if (!id.equals(image.getId()))
+                    throw new RuntimeException("Entry queried with ID has different " +
+                            "ID value: Expected \"" + id.toString() + "\", got \""
+                            + image.getId().toString() + "\"");
 
-            HashMap<String, Object> tags = new HashMap<>(this.taggers.size());
-            for (var name : this.taggers.keySet()) {
-                var column = Database.taggerColumnName(name);
-                var value = result.getObject(column);
-
-                tags.put(name, value);
+                return Optional.of(image);
             }
-            statement.close();
-
-            return Optional.of(new Image(id, Path.of(path_str), tags));
         }
     }
 
-    /** Query all the images in the selection.
+    /** Query all the images in the selection, all at once. Only meant for
+     * selections known to be small, larger ones should be gone through with a
+     * cursor, from {@link #getCursor(Selection)}.
      * @param selection The selection of images that will be queried.
      * @return The set of all images this selection managed to hit.
      * @throws InterruptedException When acquisition of the database fails.
      * @throws SQLException When an SQL query fails.
      */
     public Set<Image> getImages(Selection selection) throws InterruptedException, SQLException {
-        try(var handle = this.database.take()) {
+        return this.getImages(selection, this.taggers.keySet());
+    }
+
+    /** Query all the images in the selection, all at once, along with the
+     * values of the given tags only.
+     * @param selection The selection of images that will be queried.
+     * @param tags The names of the taggers whose values will be read.
+     * @return The set of all images this selection managed to hit.
+     * @throws InterruptedException When acquisition of the database fails.
+     * @throws SQLException When an SQL query fails.
+     */
+    public Set<Image> getImages(Selection selection, Collection<String> tags) throws InterruptedException, SQLException {
+        /* Keep the order the rows came in, some selections are ranked. */
+        LinkedHashSet<Image> images = new LinkedHashSet<>();
+        try(var cursor = this.getCursor(selection, tags)) {
+            while(cursor.next())
+                images.add(cursor.get());
+        }
+        return images;
+    }
+
+    /** Open a cursor over the images in the selection, which reads them from
+     * the database lazily, a page at a time.
+     * @param selection The selection of images that will be queried.
+     * @return The cursor, which must be closed once it is no longer needed.
+     * @throws InterruptedException When acquisition of the database fails.
+     * @throws SQLException When an SQL query fails.
+     */
+    public ImageCursor getCursor(Selection selection) throws InterruptedException, SQLException {
+        return this.getCursor(selection, this.taggers.keySet());
+    }
+
+    /** Open a cursor over the images in the selection, which reads them from
+     * the database lazily, a page at a time, along with the values of the
+     * given tags only. Reading fewer tags means reading fewer tables.
+     * @param selection The selection of images that will be queried.
+     * @param tags The names of the taggers whose values will be read.
+     * @return The cursor, which must be closed once it is no longer needed.
+     * @throws IllegalArgumentException When no tagger has been registered
+     * under one of the given names.
+     * @throws InterruptedException When acquisition of the database fails.
+     * @throws SQLException When an SQL query fails.
+     */
+    public ImageCursor getCursor(Selection selection, Collection<String> tags) throws InterruptedException, SQLException {
+        var projected = new HashMap<String, Tagger>(tags.size());
+        for(var tag : tags) {
+            var tagger = this.taggers.get(tag);
+            if(tagger == null)
+                throw new IllegalArgumentException("No registered tagger matches \"" + tag + "\"");
+            projected.put(tag, tagger);
+        }
+
+        this.index(selection);
+        return new ImageCursor(this.database, projected, this.tagTables, selection, this.fetchSize);
+    }
+
+    /** Search the images in the selection for those whose tag is the closest
+     * to the given one, entirely within the database. The distance function of
+     * the tagger runs on the stored values as they are scanned, so only the
+     * closest images ever leave it.
+     * @param selection The selection of images that will be searched.
+     * @param key The name of the tagger whose distance function is used.
+     * @param tag The tag the images are compared against.
+     * @param limit The maximum number of images, or a negative number for all.
+     * @param bound The largest distance of any image that will be returned.
+     * @return The closest images, closest first.
+     * @throws IllegalArgumentException When no tagger has been registered
+     * under the given name.
+     * @throws InterruptedException When acquisition of the database fails.
+     * @throws SQLException When an SQL query fails.
+     */
+    public List<Neighbor> getNearest(Selection selection, String key, Object tag, int limit, double bound)
+        throws InterruptedException, SQLException {
+
+        var reference = this.getReference(key, tag);
+        this.index(selection);
+
+        return this.getNearest(selection, key, reference, limit, bound, Long.MIN_VALUE, Long.MAX_VALUE);
+    }
+
+    /** Search the images in the selection for those whose tag is the closest
+     * to the given one, splitting the search up into ranges of rowids, each of
+     * which gets scanned on a read connection of its own, on the given
+     * executor. Every range only keeps its own closest images, which then get
+     * merged, so the results are the same as those of a single scan.
+     * <br><br>
+     * Taggers with a {@link FeatureStore} get their vectors scanned straight
+     * from it, instead of from the database.
+     * @param executor The executor the scans will be run on.
+     * @param selection The selection of images that will be searched.
+     * @param key The name of the tagger whose distance function is used.
+     * @param tag The tag the images are compared against.
+     * @param limit The maximum number of images, or a negative number for all.
+     * @param bound The largest distance of any image that will be returned.
+     * @return The closest images, closest first.
+     * @throws IllegalArgumentException When no tagger has been registered
+     * under the given name.
+     * @throws InterruptedException When acquisition of the database fails.
+     * @throws SQLException When an SQL query fails.
+     * @throws ExecutionException When a scan failed with an exception other
+     * than an {@link SQLException}.
+     */
+    public List<Neighbor> getNearest(
+        ExecutorService executor,
+        Selection selection,
+        String key,
+        Object tag,
+        int limit,
+        double bound) throws InterruptedException, SQLException, ExecutionException {
+
+        var reference = this.getReference(key, tag);
+        this.index(selection);
+
+        /* Vectors kept in a feature store can be scanned without going through
+         * the database at all. */
+        var store = this.getFeatureStore(key);
+        if(store.isPresent()) {
+            float[] vector = null;
+            try {
+                vector = store.get().getTagger().toVector(tag);
+            } catch(IllegalArgumentException e) {
+                /* Not a vector the store can compare, let the database do it. */
+            }
+            if(vector != null)
+                return this.getNearest(executor, selection, store.get(), vector, limit, bound);
+        }
+
+        long first, last;
+        try(var handle = this.database.takeReader()) {
+            var statement = handle.prepare(String.format(
+                "select min(rowid), max(rowid) from %s",
+                IMAGES_TABLE));
+            try(var result = statement.executeQuery()) {
+                result.next();
+                first = result.getLong(1);
+                if(result.wasNull())
+                    return new ArrayList<>();
+                last = result.getLong(2);
+            }
+        }
+
+        return this.partition(
+            executor,
+            this.database.getReaderCount(),
+            first,
+            last,
+            limit,
+            (from, to) -> this.getNearest(selection, key, reference, limit, bound, from, to));
+    }
+
+    /** Search the feature store of a tagger for the vectors closest to the
+     * given one, then check the closest of them against the selection, going
+     * further down the store for as long as too few of them are in it. */
+    protected List<Neighbor> getNearest(
+        ExecutorService executor,
+        Selection selection,
+        FeatureStore store,
+        float[] vector,
+        int limit,
+        double bound) throws InterruptedException, SQLException, ExecutionException {
+
+        /* Most selections only rule out a few images, so a few more than we
+         * need is usually all it takes. */
+        var fetch = limit < 0 ? -1 : Math.max(2 * limit, limit + 16);
+        while(true) {
+            var count = fetch;
+            var candidates = this.partition(
+                executor,
+                Runtime.getRuntime().availableProcessors(),
+                0,
+                store.getCapacity() - 1,
+                count,
+                (from, to) -> store.nearest(vector, count, bound, from, to));
+
+            var neighbors = this.resolve(selection, candidates);
+            if(limit < 0 || neighbors.size() >= limit || fetch < 0 || candidates.size() < fetch) {
+                if(limit >= 0 && neighbors.size() > limit)
+                    return new ArrayList<>(neighbors.subList(0, limit));
+                return neighbors;
+            }
+            fetch = fetch > Integer.MAX_VALUE / 4 ? -1 : fetch * 4;
+        }
+    }
+
+    /** Search the images in the selection for those whose tag is about the
+     * closest to the given one, using the {@link QuantizedIndex} of the tagger.
+     * <br><br>
+     * The codes in the index get scanned on the executor for the images that
+     * are approximately the closest, a few times more of them than asked for,
+     * which then get ranked by their actual distances, in the database. Images
+     * whose codes are off by more than that can be missed, which is the price
+     * paid for never looking at the rest of them.
+     * <br><br>
+     * Searches the index can't help with, either because the tagger has no
+     * trained index, or because there's no limit to the number of images,
+     * are made with {@link #getNearest(ExecutorService, Selection, String, Object, int, double)}.
+     * @param executor The executor the scans will be run on.
+     * @param selection The selection of images that will be searched.
+     * @param key The name of the tagger whose distance function is used.
+     * @param tag The tag the images are compared against.
+     * @param limit The maximum number of images, or a negative number for all.
+     * @param bound The largest distance of any image that will be returned.
+     * @return The closest images that were found, closest first.
+     * @throws IllegalArgumentException When no tagger has been registered
+     * under the given name.
+     * @throws InterruptedException When acquisition of the database fails.
+     * @throws SQLException When an SQL query fails.
+     * @throws ExecutionException When a scan failed with an exception other
+     * than an {@link SQLException}.
+     */
+    public List<Neighbor> getApproximateNearest(
+        ExecutorService executor,
+        Selection selection,
+        String key,
+        Object tag,
+        int limit,
+        double bound) throws InterruptedException, SQLException, ExecutionException {
+
+        var reference = this.getReference(key, tag);
+
+        var index = this.getQuantizedIndex(key);
+        float[] table = null;
+        if(limit > 0 && limit <= Integer.MAX_VALUE / RERANK_FACTOR
+            && index.isPresent() && index.get().isTrained()) {
+            try {
+                table = index.get().table(index.get().getTagger().toVector(tag));
+            } catch(IllegalArgumentException e) {
+                /* Not a vector the index can compare, search exhaustively. */
+            }
+        }
+        if(table == null)
+            return this.getNearest(executor, selection, key, tag, limit, bound);
+
+        this.index(selection);
+
+        var codes = table;
+        var fetch = Math.max(RERANK_FACTOR * limit, limit + RERANK_MINIMUM);
+        while(true) {
+            var count = fetch;
+            var candidates = this.partition(
+                executor,
+                Runtime.getRuntime().availableProcessors(),
+                0,
+                index.get().getCapacity() - 1,
+                count,
+                (from, to) -> index.get().nearest(codes, count, from, to));
+            if(candidates.isEmpty())
+                return new ArrayList<>();
+
+            var neighbors = this.getNearest(
+                selection.intersect(Database.among(candidates)),
+                key,
+                reference,
+                limit,
+                bound,
+                Long.MIN_VALUE,
+                Long.MAX_VALUE);
+
+            /* Go further down the codes while the selection, or the bound,
+             * ruled out too many of them, and there's more to go through. */
+            var farthest = candidates.get(candidates.size() - 1).getDistance();
+            if(neighbors.size() >= limit || candidates.size() < fetch || farthest > bound)
+                return neighbors;
+            if(fetch > Integer.MAX_VALUE / 4)
+                return this.getNearest(executor, selection, key, tag, limit, bound);
+            fetch *= 4;
+        }
+    }
+
+    /** Search the images in the selection for those whose tags are, taken
+     * together, the closest to the given ones, with every tagger weighing in
+     * on how close they are as much as it was given.
+     * <br><br>
+     * Same as {@link #getCombinedNearest(ExecutorService, Selection, UUID, Map, Map, int)},
+     * for tags that don't come from an image in the database.
+     */
+    public List<Neighbor> getCombinedNearest(
+        ExecutorService executor,
+        Selection selection,
+        Map<String, Double> weights,
+        Map<String, Object> tags,
+        int limit) throws InterruptedException, SQLException, ExecutionException {
+
+        return this.getCombinedNearest(executor, selection, null, weights, tags, limit);
+    }
+
+    /** Search the images in the selection for those whose tags are, taken
+     * together, the closest to the given ones, with every tagger weighing in
+     * on how close they are as much as it was given.
+     * <br><br>
+     * The distances of every tagger get put on the same scale by how spread
+     * out they are, as given by {@link #getDistanceStats(String)}, and the
+     * score of an image is the sum of its weighted distances on that scale.
+     * Only images with a value for every one of the taggers get a score.
+     * <br><br>
+     * Scores get worked out by the threshold algorithm: the images get read
+     * from every tagger in order, closest first, and every image read from
+     * any of them gets its distances by the taggers it wasn't read from
+     * computed. No image that wasn't read can then score better than the last
+     * distances read from every tagger would, so once that many images score
+     * at least as well, the search is over. Images get read in rounds, every
+     * one of them going four times as deep as the one before, and getting all
+     * of its missing distances computed in one go.
+     * <br><br>
+     * Taggers with a {@link NeighborGraph} are read from the closest images
+     * to the given image first, when the graph holds them, which takes no
+     * distances to be computed at all. Going any deeper than that, or deeper
+     * than the round before, takes a search for the closest images down to
+     * the new depth, as made by {@link #getNearest(ExecutorService, Selection, String, Object, int, double)},
+     * skipping the ones already read. Such a search still computes the
+     * distance of every image, but only keeps as many of them as the depth,
+     * and once there are enough scored images, it is bounded by the largest
+     * distance an image that wasn't read could have by that tagger and still
+     * score better than them, which taggers that can give up on a distance
+     * early make the most of, and which ends the search once no image within
+     * it is left. Unless the graphs hold every image the search needs, then,
+     * what the algorithm saves over scoring every image is memory, along with
+     * the distances that taggers can give up on, rather than the scans.
+     * @param executor The executor the scans will be run on.
+     * @param selection The selection of images that will be searched.
+     * @param id The ID of the image the tags are from, if any.
+     * @param weights The weights of the taggers, by their names, which must
+     *                all be positive.
+     * @param tags The tags the images are compared against, by the names of
+     *             their taggers.
+     * @param limit The maximum number of images, or a negative number for all.
+     * @return The images with the best scores, best first, as neighbors whose
+     * distances are their scores.
+     * @throws IllegalArgumentException When no tagger has been registered
+     * under one of the names, when a weight isn't positive, or when a tagger
+     * has no tag to compare against.
+     * @throws InterruptedException When acquisition of the database fails.
+     * @throws SQLException When an SQL query fails.
+     * @throws ExecutionException When a scan failed with an exception other
+     * than an {@link SQLException}.
+     */
+    public List<Neighbor> getCombinedNearest(
+        ExecutorService executor,
+        Selection selection,
+        UUID id,
+        Map<String, Double> weights,
+        Map<String, Object> tags,
+        int limit) throws InterruptedException, SQLException, ExecutionException {
+
+        if(weights.isEmpty())
+            throw new IllegalArgumentException("At least one tagger must be weighed in");
+
+        var stats = new HashMap<String, DistanceStats>();
+        var references = new HashMap<String, Object>();
+        for(var entry : weights.entrySet()) {
+            var key = entry.getKey();
+            if(!this.taggers.containsKey(key))
+                throw new IllegalArgumentException("No registered tagger matches \"" + key + "\"");
+            if(!(entry.getValue() > 0) || Double.isInfinite(entry.getValue()))
+                throw new IllegalArgumentException("The weight of \"" + key + "\" must be a positive number");
+            if(tags.get(key) == null)
+                throw new IllegalArgumentException("There is no tag to compare against for \"" + key + "\"");
+        }
+        if(limit == 0)
+            return new ArrayList<>();
+
+        for(var key : weights.keySet()) {
+            stats.put(key, this.getDistanceStats(key));
+            references.put(key, this.getReference(key, tags.get(key)));
+        }
+        this.index(selection);
+
+        /* Graphs never hold the image itself, which gets scored from the
+         * start, in case the selection holds it. */
+        var streams = new HashMap<String, SortedAccess>();
+        var graphed = false;
+        for(var key : weights.keySet()) {
+            var tag = tags.get(key);
+            List<Neighbor> closest = null;
+            if(id != null && this.getNeighborGraph(key).isPresent()) {
+                var graph = this.getNeighborGraph(key).get();
+                closest = this.getGraphNeighbors(key, id, graph.getNeighbors(), Double.POSITIVE_INFINITY)
+                    .orElse(null);
+            }
+            if(closest != null) {
+                closest = this.resolve(selection, closest);
+                graphed = true;
+            }
+            streams.put(key, new SortedAccess(closest, (depth, bound) ->
+                this.getNearest(executor, selection, key, tag, depth, bound)));
+        }
+
+        var scored = new ArrayList<Neighbor>();
+        var seen = new HashSet<Long>();
+        if(graphed) {
+            scored.addAll(this.score(selection.intersect(Selection.equals("id", id)), weights, stats, references, Map.of(), seen));
+            for(var stream : streams.values())
+                seen.forEach(stream::skip);
+        }
+
+        var depth = limit < 0 ? -1 : Math.max(limit, COMBINED_MINIMUM_DEPTH);
+        while(true) {
+            var bounds = this.bound(weights, stats, streams, scored, limit);
+
+            /* Sorted access, down to the current depth of every tagger, along
+             * with the distances of the images found in this round that they
+             * give away. */
+            var exhausted = false;
+            var found = new ArrayList<Neighbor>();
+            var fresh = new HashSet<Long>();
+            var known = new HashMap<String, List<Neighbor>>();
+            for(var entry : weights.entrySet()) {
+                var key = entry.getKey();
+                var stream = streams.get(key);
+                var given = new ArrayList<Neighbor>();
+                while(depth < 0 || stream.getRead() < depth) {
+                    var neighbor = stream.next(depth, bounds.get(key));
+                    if(neighbor == null) break;
+                    if(seen.add(neighbor.getRowid())) {
+                        found.add(neighbor);
+                        fresh.add(neighbor.getRowid());
+                    }
+                    if(fresh.contains(neighbor.getRowid()))
+                        given.add(neighbor);
+                }
+                known.put(key, given);
+
+                /* A tagger that ran out has given every image with a value
+                 * that could still make it, and images without one can't get
+                 * a score. */
+                if(stream.isExhausted())
+                    exhausted = true;
+            }
+
+            /* Random access, for every image found for the first time. */
+            if(!found.isEmpty())
+                scored.addAll(this.score(selection.intersect(Database.among(found)), weights, stats, references, known, seen));
+            scored.sort(Neighbor.CLOSEST_FIRST);
+
+            var threshold = 0.0;
+            for(var entry : weights.entrySet())
+                threshold += entry.getValue() * stats.get(entry.getKey()).normalize(streams.get(entry.getKey()).getLast());
+
+            var certain = limit >= 0
+                && scored.size() >= limit
+                && scored.get(limit - 1).getDistance() <= threshold;
+            if(exhausted || certain) {
+                if(limit >= 0 && scored.size() > limit)
+                    return new ArrayList<>(scored.subList(0, limit));
+                return scored;
+            }
+            depth = depth > Integer.MAX_VALUE / 4 ? -1 : depth * 4;
+        }
+    }
+
+    /** Work out the largest distance by every tagger an image that wasn't
+     * read yet could have, and still score better than the worst of the best
+     * images scored so far, which is no bound at all until there are enough
+     * of them. Such an image is at least as far as the last image read by
+     * every other tagger, which is what it's taken to be by them. */
+    protected Map<String, Double> bound(
+        Map<String, Double> weights,
+        Map<String, DistanceStats> stats,
+        Map<String, SortedAccess> streams,
+        List<Neighbor> scored,
+        int limit) {
+
+        var bounds = new HashMap<String, Double>();
+        for(var key : weights.keySet())
+            bounds.put(key, Double.POSITIVE_INFINITY);
+        if(limit < 0 || scored.size() < limit)
+            return bounds;
+
+        var worst = scored.get(limit - 1).getDistance();
+        for(var key : weights.keySet()) {
+            var rest = 0.0;
+            for(var other : weights.entrySet())
+                if(!other.getKey().equals(key))
+                    rest += other.getValue() * stats.get(other.getKey()).normalize(streams.get(other.getKey()).getLast());
+
+            /* Leave some room for rounding, so that ties still make it. */
+            var bound = stats.get(key).denormalize((worst - rest) / weights.get(key));
+            if(!Double.isNaN(bound))
+                bounds.put(key, bound + (Math.abs(bound) + 1) * 1e-9);
+        }
+        return bounds;
+    }
+
+    /** Work out the scores of the images in the selection, by all of the
+     * taggers, leaving out the images without a value for every one of them.
+     * Every image in the selection is added to the ones that have been seen.
+     * @param known The images whose distances by a tagger are already known,
+     *              by the name of the tagger, which don't get them computed
+     *              again. All of them must be in the selection.
+     */
+    protected List<Neighbor> score(
+        Selection selection,
+        Map<String, Double> weights,
+        Map<String, DistanceStats> stats,
+        Map<String, Object> references,
+        Map<String, List<Neighbor>> known,
+        Set<Long> seen) throws InterruptedException, SQLException {
+
+        var scores = new HashMap<Long, Double>();
+        var counts = new HashMap<Long, Integer>();
+        var ids = new HashMap<Long, UUID>();
+        for(var entry : weights.entrySet()) {
+            var key = entry.getKey();
+            var given = known.getOrDefault(key, List.of());
+            var distances = new ArrayList<>(given);
+            distances.addAll(this.getNearest(
+                given.isEmpty() ? selection : selection.intersect(Database.among(given).negate()),
+                key,
+                references.get(key),
+                -1,
+                Double.POSITIVE_INFINITY,
+                Long.MIN_VALUE,
+                Long.MAX_VALUE));
+            for(var neighbor : distances) {
+                var score = entry.getValue() * stats.get(key).normalize(neighbor.getDistance());
+                scores.merge(neighbor.getRowid(), score, Double::sum);
+                counts.merge(neighbor.getRowid(), 1, Integer::sum);
+                ids.put(neighbor.getRowid(), neighbor.getId());
+            }
+        }
+
+        var scored = new ArrayList<Neighbor>();
+        for(var entry : counts.entrySet()) {
+            seen.add(entry.getKey());
+            if(entry.getValue() == weights.size())
+                scored.add(new Neighbor(entry.getKey(), ids.get(entry.getKey()), scores.get(entry.getKey())));
+        }
+        return scored;
+    }
+
+    /** A search for the closest images, down to a depth. */
+    protected interface SortedSearch {
+        List<Neighbor> search(int limit, double bound) throws InterruptedException, SQLException, ExecutionException;
+    }
+
+    /** The images closest to a tag, read one at a time, closest first, from a
+     * list of the closest few of them, and then from searches going deeper
+     * and deeper, skipping the ones already read. */
+    protected static final class SortedAccess {
+        private final SortedSearch search;
+        private final Set<Long> read;
+        private List<Neighbor> list;
+        private int position;
+        /* How deep the last search went, and whether it found everything
+         * there was to find within its bound. */
+        private int searched;
+        private boolean complete;
+        private double last = Double.NEGATIVE_INFINITY;
+        private boolean exhausted;
+
+        /** @param closest The closest few images, if they are known.
+         *  @param search The search for the closest images, made once the
+         *                closest few run out, or once they need to go deeper
+         *                than the search before. */
+        SortedAccess(List<Neighbor> closest, SortedSearch search) {
+            this.list = closest;
+            this.search = search;
+            this.read = new HashSet<>();
+        }
+
+        /** The next closest image, or null once none is left within the given
+         * depth, or once none is left at all, which exhausts it.
+         * @param depth How deep any search made goes, or a negative number
+         *              for no limit.
+         * @param bound The largest distance of any image worth reading, with
+         *              anything farther exhausting it. It must never grow. */
+        Neighbor next(int depth, double bound) throws InterruptedException, SQLException, ExecutionException {
+            while(true) {
+                if(this.exhausted) return null;
+                if(this.list != null && this.position < this.list.size()) {
+                    var neighbor = this.list.get(this.position++);
+                    if(neighbor.getDistance() > bound) {
+                        this.exhausted = true;
+                        return null;
+                    }
+                    /* Images tied at the depth of a search can come in any
+                     * order, so the search after it can't just pick up from
+                     * where it left off. */
+                    if(!this.read.add(neighbor.getRowid()))
+                        continue;
+                    this.last = neighbor.getDistance();
+                    return neighbor;
+                }
+                if(this.complete) {
+                    this.exhausted = true;
+                    return null;
+                }
+                if(depth >= 0 && depth <= this.searched)
+                    return null;
+
+                this.list = this.search.search(depth, bound);
+                this.position = 0;
+                this.searched = depth;
+                this.complete = depth < 0 || this.list.size() < depth;
+            }
+        }
+
+        /** Never read the given image, which has been dealt with already. */
+        void skip(long rowid) {
+            this.read.add(rowid);
+        }
+
+        /** The number of images read, or skipped, so far. */
+        int getRead() {
+            return this.read.size();
+        }
+
+        /** The distance of the last image read. */
+        double getLast() {
+            return this.last;
+        }
+
+        /** Whether every image worth reading has been read. */
+        boolean isExhausted() {
+            return this.exhausted;
+        }
+    }
+
+    /** Find out how spread out the distances of a tagger are, measuring them
+     * between every pair of a random sample of the values in the database.
+     * Measurements get kept in the database, and are only taken again once
+     * the number of images with a value has doubled, or halved.
+     * @param key The name of the tagger.
+     * @return How spread out its distances are.
+     * @throws IllegalArgumentException When no tagger has been registered
+     * under the given name.
+     * @throws InterruptedException When acquisition of the database fails.
+     * @throws SQLException When an SQL query fails.
+     */
+    public DistanceStats getDistanceStats(String key) throws InterruptedException, SQLException {
+        var tagger = this.taggers.get(key);
+        if(tagger == null)
+            throw new IllegalArgumentException("No registered tagger matches \"" + key + "\"");
+
+        long images;
+        DistanceStats stats = null;
+        var samples = new ArrayList<Object>(STATS_SAMPLES);
+        try(var handle = this.database.takeReader()) {
+            var count = handle.prepare(String.format(
+                "select count(*) from %s where value is not null",
+                Database.taggerColumnName(key)));
+            try(var result = count.executeQuery()) {
+                result.next();
+                images = result.getLong(1);
+            }
+
+            var select = handle.prepare(String.format(
+                "select images, mean, deviation from %s where tagger=?",
+                STATS_TABLE));
+            select.setString(1, key);
+            try(var result = select.executeQuery()) {
+                if(result.next())
+                    stats = new DistanceStats(result.getLong(1), result.getDouble(2), result.getDouble(3));
+            }
+            if(stats != null && images <= 2 * stats.getImages() && 2 * images >= stats.getImages())
+                return stats;
+
+            var column = Database.taggerColumnName(key);
+            var sample = handle.prepare(String.format(
+                "select %s from %s where %s is not null order by random() limit %d",
+                column,
+                IMAGES_VIEW,
+                column,
+                STATS_SAMPLES));
+            try(var result = sample.executeQuery()) {
+                while(result.next()) {
+                    try {
+                        samples.add(SqlFunctions.fromStorage(tagger, result.getObject(1)));
+                    } catch(IllegalArgumentException e) {
+                        /* Values that can't be read can't be compared either. */
+                    }
+                }
+            }
+        }
+
+        /* Welford's method, which doesn't lose precision to large means. */
+        var pairs = 0L;
+        var mean = 0.0;
+        var squares = 0.0;
+        for(int i = 0; i < samples.size(); ++i)
+            for(int j = i + 1; j < samples.size(); ++j) {
+                var distance = tagger.getTagDistance(samples.get(i), samples.get(j));
+                if(distance.isEmpty()) continue;
+
+                ++pairs;
+                var delta = distance.get() - mean;
+                mean += delta / pairs;
+                squares += delta * (distance.get() - mean);
+            }
+        stats = new DistanceStats(images, mean, pairs > 1 ? Math.sqrt(squares / (pairs - 1)) : 0);
+
+        try(var handle = this.database.takeWriter()) {
+            var statement = handle.prepare(String.format(
+                "insert or replace into %s(tagger, images, mean, deviation) values (?, ?, ?, ?)",
+                STATS_TABLE));
+            statement.setString(1, key);
+            statement.setLong(2, stats.getImages());
+            statement.setDouble(3, stats.getMean());
+            statement.setDouble(4, stats.getDeviation());
+            statement.execute();
+        }
+        return stats;
+    }
+
+    /** Check images found outside of the database against the selection,
+     * filling in their IDs and keeping only the ones in it, in order. */
+    protected List<Neighbor> resolve(Selection selection, List<Neighbor> candidates)
+        throws InterruptedException, SQLException {
+
+        if(candidates.isEmpty())
+            return new ArrayList<>();
+
+        var ids = new HashMap<Long, UUID>(candidates.size());
+        var narrowed = selection.intersect(Database.among(candidates));
+        try(var handle = this.database.takeReader()) {
+            var statement = narrowed.getStatement(
+                handle,
+                IMAGES_VIEW,
+                this.tagTables,
+                String.format("%s.rowid, %s.id", IMAGES_VIEW, IMAGES_VIEW));
+            try(var result = statement.executeQuery()) {
+                while(result.next())
+                    ids.put(result.getLong(1), Database.uuidFromBytes(result.getBytes(2)));
+            }
+        }
+
+        var neighbors = new ArrayList<Neighbor>(ids.size());
+        for(var candidate : candidates) {
+            var id = ids.get(candidate.getRowid());
+            if(id != null)
+                neighbors.add(new Neighbor(candidate.getRowid(), id, candidate.getDistance()));
+        }
+        return neighbors;
+    }
+
+    /** Group the images whose tags are within the given distance of one
+     * another into clusters, writing them to the given table.
+     * <br><br>
+     * Rather than comparing every image with every other one, images only get
+     * compared with the ones they share a bucket with, in the
+     * {@link BucketIndex} of the tagger, so images within the distance that
+     * share no bucket will be missed. Buckets get read from the database in
+     * order, along with the values in them, and gathered into batches, which
+     * are compared on the executor, with only a few of them in flight at once.
+     * Memory use is then bounded by the largest bucket, plus four bytes for
+     * every rowid. Images found to be within the distance of one another get
+     * merged into the same cluster, which ends up holding every image linked to
+     * another in it through a chain of such images.
+     * <br><br>
+     * The table gets a row for every image in a cluster of more than one, with
+     * the rowid of the image in its {@code image} column, and the smallest
+     * rowid in its cluster, which identifies it, in its {@code cluster} column.
+     * @param executor The executor the comparisons will be run on.
+     * @param key The name of the tagger whose distance function is used.
+     * @param bound The largest distance between images that get merged.
+     * @param table The table the clusters get written to, which gets replaced
+     *              if it already holds clusters.
+     * @param maxBucket The largest bucket that gets compared. Larger ones
+     *                  usually hold images that can't be told apart, such as
+     *                  blank ones, and get skipped.
+     * @return What came out of it.
+     * @throws IllegalArgumentException When no tagger has been registered
+     * under the given name, when it has no bucket index, or when the table
+     * can't be used to hold clusters.
+     * @throws InterruptedException When acquisition of the database fails.
+     * @throws SQLException When an SQL query fails.
+     * @throws ExecutionException When a comparison failed with an exception.
+     */
+    public ClusterSummary cluster(
+        ExecutorService executor,
+        String key,
+        double bound,
+        String table,
+        int maxBucket) throws InterruptedException, SQLException, ExecutionException {
+
+        var tagger = this.taggers.get(key);
+        if(tagger == null)
+            throw new IllegalArgumentException("No registered tagger matches \"" + key + "\"");
+
+        BucketIndex buckets = null;
+        for(var index : this.getIndices(key))
+            if(index instanceof BucketIndex) {
+                buckets = (BucketIndex) index;
+                break;
+            }
+        if(buckets == null)
+            throw new IllegalArgumentException("The tagger \"" + key + "\" has no bucket index");
+        if(!table.matches("[A-Za-z_][A-Za-z0-9_]*"))
+            throw new IllegalArgumentException("Invalid table name: " + table);
+
+        long first, last;
+        try(var handle = this.database.takeReader()) {
+            this.checkClusterTable(handle.getConnection(), table);
+
+            var statement = handle.prepare(String.format(
+                "select min(rowid), max(rowid) from %s",
+                IMAGES_TABLE));
+            try(var result = statement.executeQuery()) {
+                result.next();
+                first = result.getLong(1);
+                last = result.wasNull() ? first - 1 : result.getLong(2);
+            }
+        }
+        if(last - first + 1 > Integer.MAX_VALUE)
+            throw new SQLException("Too many images to be clustered at once");
+        var sets = new DisjointSets((int) (last - first + 1));
+
+        /* The values come along with the buckets, so comparisons never have
+         * to go back to the database. */
+        var columns = buckets.getBucketColumns();
+        var query = String.format(
+            "select %s, b.image, v.%s from %s b join %s v on v.rowid = b.image order by %s, b.image",
+            columns,
+            Database.taggerColumnName(key),
+            buckets.getTable(),
+            IMAGES_VIEW,
+            columns);
+
+        var parallelism = Runtime.getRuntime().availableProcessors();
+        var inFlight = new Semaphore(CLUSTER_BATCHES_PER_THREAD * parallelism);
+        var failure = new AtomicReference<Exception>();
+        var skipped = 0L;
+
+        try(var handle = this.database.takeReader()) {
+            var statement = handle.prepare(query);
+            statement.setFetchSize(this.fetchSize);
+            try(var result = statement.executeQuery()) {
+                var keys = result.getMetaData().getColumnCount() - 2;
+
+                List<Object> current = null;
+                var bucket = new ArrayList<Object[]>();
+                var oversized = false;
+                var batch = new ArrayList<List<Object[]>>();
+                var pairs = 0L;
+
+                while(failure.get() == null) {
+                    var more = result.next();
+
+                    List<Object> next = null;
+                    if(more) {
+                        next = new ArrayList<>(keys);
+                        for(int i = 1; i <= keys; ++i)
+                            next.add(result.getObject(i));
+                    }
+
+                    /* A bucket is over once the key changes. */
+                    if(current != null && !current.equals(next)) {
+                        if(oversized)
+                            ++skipped;
+                        else if(bucket.size() > 1) {
+                            pairs += (long) bucket.size() * (bucket.size() - 1) / 2;
+                            batch.add(bucket);
+                        }
+                        bucket = new ArrayList<>();
+                        oversized = false;
+                    }
+                    current = next;
+
+                    if(pairs >= CLUSTER_BATCH_PAIRS || (!more && !batch.isEmpty())) {
+                        var submitted = batch;
+                        inFlight.acquire();
+                        try {
+                            executor.execute(() -> {
+                                try {
+                                    this.compare(tagger, submitted, bound, sets, first);
+                                } catch(RuntimeException e) {
+                                    failure.compareAndSet(null, e);
+                                } finally {
+                                    inFlight.release();
+                                }
+                            });
+                        } catch(RuntimeException e) {
+                            inFlight.release();
+                            throw e;
+                        }
+                        batch = new ArrayList<>();
+                        pairs = 0;
+                    }
+                    if(!more) break;
+
+                    if(bucket.size() >= maxBucket)
+                        oversized = true;
+                    else
+                        bucket.add(new Object[] { result.getLong(keys + 1), result.getObject(keys + 2) });
+                }
+            }
+        } finally {
+            /* Wait for every batch still being compared. */
+            inFlight.acquireUninterruptibly(CLUSTER_BATCHES_PER_THREAD * parallelism);
+        }
+        if(failure.get() != null)
+            throw new ExecutionException(failure.get());
+
+        return this.writeClusters(table, sets, first, skipped);
+    }
+
+    /** Compare every pair of images in every bucket of a batch, merging the
+     * ones that are within the bound. */
+    protected void compare(Tagger tagger, List<List<Object[]>> batch, double bound, DisjointSets sets, long first) {
+        for(var bucket : batch) {
+            var rowids = new int[bucket.size()];
+            var tags = new Object[bucket.size()];
+            for(int i = 0; i < tags.length; ++i) {
+                rowids[i] = (int) ((Long) bucket.get(i)[0] - first);
+                var value = bucket.get(i)[1];
+                tags[i] = value == null ? null : SqlFunctions.fromStorage(tagger, value);
+            }
+
+            for(int i = 0; i < tags.length; ++i)
+                for(int j = i + 1; j < tags.length; ++j) {
+                    /* Images already in the same cluster need no comparing. */
+                    if(sets.find(rowids[i]) == sets.find(rowids[j])) continue;
+                    if(tagger.getTagDistance(tags[i], tags[j], bound).isPresent())
+                        sets.union(rowids[i], rowids[j]);
+                }
+        }
+    }
+
+    /** Make sure a table is either missing or one that holds clusters, which
+     * are the only tables clustering may replace. */
+    protected void checkClusterTable(Connection connection, String table) throws SQLException {
+        try(var statement = connection.prepareStatement(
+            "select group_concat(name) from (select name from pragma_table_info(?) order by cid)")) {
+            statement.setString(1, table);
+            try(var result = statement.executeQuery()) {
+                result.next();
+                var columns = result.getString(1);
+                if(columns != null && !columns.equals("image,cluster"))
+                    throw new IllegalArgumentException("The table \"" + table + "\" doesn't hold clusters");
+            }
+        }
+    }
+
+    /** Replace the contents of a table with the clusters of more than one
+     * image, in a single transaction. */
+    protected ClusterSummary writeClusters(String table, DisjointSets sets, long first, long skipped)
+        throws InterruptedException, SQLException {
+
+        /* Roots only ever point to themselves, so the images in clusters are
+         * the ones that don't, along with the roots they point to. */
+        var clustered = new BitSet(sets.size());
+        for(int i = 0; i < sets.size(); ++i) {
+            var root = sets.find(i);
+            if(root != i) {
+                clustered.set(i);
+                clustered.set(root);
+            }
+        }
+
+        var clusters = 0L;
+        try(var handle = this.database.takeWriter()) {
             var connection = handle.getConnection();
-            HashSet<Image> images = new HashSet<>();
+            connection.setAutoCommit(false);
+            try {
+                try(var statement = connection.createStatement()) {
+                    statement.execute(String.format("drop table if exists %s", table));
+                    statement.execute(String.format(
+                        "create table %s(image INTEGER PRIMARY KEY, cluster INTEGER NOT NULL)",
+                        table));
+                    statement.execute(String.format(
+                        "create index %s_cluster on %s(cluster)",
+                        table,
+                        table));
+                }
+
+                try(var insert = connection.prepareStatement(String.format(
+                    "insert into %s(image, cluster) values (?, ?)",
+                    table))) {
+                    var pending = 0;
+                    for(var i = clustered.nextSetBit(0); i >= 0; i = clustered.nextSetBit(i + 1)) {
+                        var root = sets.find(i);
+                        if(root == i) ++clusters;
+
+                        insert.setLong(1, first + i);
+                        insert.setLong(2, first + root);
+                        insert.addBatch();
+                        if(++pending == this.fetchSize) {
+                            insert.executeBatch();
+                            pending = 0;
+                        }
+                    }
+                    insert.executeBatch();
+                }
+                connection.commit();
+            } catch(SQLException e) {
+                connection.rollback();
+                throw e;
+            } finally {
+                connection.setAutoCommit(true);
+            }
+        }
+        return new ClusterSummary(clusters, clustered.cardinality(), skipped);
+    }
 
-            for(var selector : selection.selectors) {
-                try(var statement = selector.getStatement(connection, IMAGES_TABLE, "*")) {
-                    /* Extract all of the images we are able to gather from this statement. */
-                    statement.execute();
-                    var result = statement.getResultSet();
+    /** Build the {@link NeighborGraph} of a tagger from scratch, finding the
+     * closest images to every image in the database.
+     * <br><br>
+     * Every image gets compared with every other one, a block of images at a
+     * time: a block of images gets read from the database, then every block of
+     * images, this one included, gets read after it and compared with it on
+     * the executor, with every thread keeping the closest images to its own
+     * share of the block. Only two blocks are ever held in memory at once,
+     * at the price of reading all of the values once for every block. The
+     * closest images to the images in a block get written once it is done
+     * with, in a single transaction, so an interrupted build leaves a graph
+     * that's only missing the images that come after it.
+     * @param executor The executor the comparisons will be run on.
+     * @param key The name of the tagger whose graph is built.
+     * @return The number of images in the graph.
+     * @throws IllegalArgumentException When no tagger has been registered
+     * under the given name, or when it has no neighbor graph.
+     * @throws InterruptedException When acquisition of the database fails.
+     * @throws SQLException When an SQL query fails.
+     * @throws ExecutionException When a comparison failed with an exception
+     * other than an {@link SQLException}.
+     */
+    public long buildNeighborGraph(ExecutorService executor, String key)
+        throws InterruptedException, SQLException, ExecutionException {
+
+        var tagger = this.taggers.get(key);
+        if(tagger == null)
+            throw new IllegalArgumentException("No registered tagger matches \"" + key + "\"");
+        var graph = this.getNeighborGraph(key).orElseThrow(() ->
+            new IllegalArgumentException("The tagger \"" + key + "\" has no neighbor graph"));
+
+        try(var handle = this.database.takeWriter()) {
+            graph.clear(handle);
+        }
+
+        var parallelism = Runtime.getRuntime().availableProcessors();
+        var images = 0L;
+        var after = Long.MIN_VALUE;
+        while(true) {
+            var rows = this.readGraphBlock(tagger, key, after);
+            if(rows.isEmpty()) break;
+            after = (Long) rows.get(rows.size() - 1)[0];
+
+            var closest = new ArrayList<PriorityQueue<Neighbor>>(rows.size());
+            for(int i = 0; i < rows.size(); ++i)
+                closest.add(new PriorityQueue<>(Neighbor.CLOSEST_FIRST.reversed()));
+
+            var columnsAfter = Long.MIN_VALUE;
+            while(true) {
+                var columns = this.readGraphBlock(tagger, key, columnsAfter);
+                if(columns.isEmpty()) break;
+                columnsAfter = (Long) columns.get(columns.size() - 1)[0];
+
+                /* Every thread gets rows of its own, so none of them ever
+                 * touch the same queue. */
+                var slices = Math.min(parallelism, rows.size());
+                var futures = new ArrayList<Future<?>>(slices);
+                for(int i = 0; i < slices; ++i) {
+                    var from = i * rows.size() / slices;
+                    var to = (i + 1) * rows.size() / slices;
+                    futures.add(executor.submit(() ->
+                        this.compareGraphBlock(tagger, graph.getNeighbors(), rows, columns, closest, from, to)));
+                }
+                try {
+                    for(var future : futures)
+                        future.get();
+                } finally {
+                    for(var future : futures)
+                        future.cancel(false);
+                }
+            }
 
-                    while(result.next()) {
-                        var value = Image.fromResultSet(result, this.taggers);
-                        value.ifPresent(images::add);
+            try(var handle = this.database.takeWriter()) {
+                var connection = handle.getConnection();
+                connection.setAutoCommit(false);
+                try {
+                    for(int i = 0; i < rows.size(); ++i) {
+                        var list = new ArrayList<>(closest.get(i));
+                        list.sort(Neighbor.CLOSEST_FIRST);
+                        graph.write(handle, (Long) rows.get(i)[0], list);
                     }
+                    connection.commit();
+                } catch(SQLException e) {
+                    connection.rollback();
+                    throw e;
+                } finally {
+                    connection.setAutoCommit(true);
                 }
             }
-            return images;
+            images += rows.size();
         }
+        return images;
+    }
+
+    /** Read the block of values of a tagger that comes after the given rowid,
+     * as pairs of rowids and tags, in order. Values the tagger can't read get
+     * left out. */
+    protected List<Object[]> readGraphBlock(Tagger tagger, String key, long after)
+        throws InterruptedException, SQLException {
+
+        var column = Database.taggerColumnName(key);
+        var block = new ArrayList<Object[]>(GRAPH_BLOCK_SIZE);
+        try(var handle = this.database.takeReader()) {
+            var statement = handle.prepare(String.format(
+                "select rowid, %s from %s where %s is not null and rowid > ? order by rowid limit %d",
+                column,
+                IMAGES_VIEW,
+                column,
+                GRAPH_BLOCK_SIZE));
+            statement.setFetchSize(this.fetchSize);
+            statement.setLong(1, after);
+            try(var result = statement.executeQuery()) {
+                while(result.next()) {
+                    try {
+                        block.add(new Object[] { result.getLong(1), SqlFunctions.fromStorage(tagger, result.getObject(2)) });
+                    } catch(IllegalArgumentException e) {
+                        /* Values that can't be read can't be compared either. */
+                    }
+                }
+            }
+        }
+        return block;
+    }
+
+    /** Compare a range of the rows of a block with every column, keeping the
+     * closest images to every row. */
+    protected void compareGraphBlock(
+        Tagger tagger,
+        int neighbors,
+        List<Object[]> rows,
+        List<Object[]> columns,
+        List<PriorityQueue<Neighbor>> closest,
+        int from,
+        int to) {
+
+        for(int i = from; i < to; ++i) {
+            long rowid = (Long) rows.get(i)[0];
+            var tag = rows.get(i)[1];
+            var queue = closest.get(i);
+            var bound = queue.size() == neighbors ? queue.peek().getDistance() : Double.POSITIVE_INFINITY;
+
+            for(var column : columns) {
+                long other = (Long) column[0];
+                if(other == rowid) continue;
+
+                var distance = tagger.getTagDistance(tag, column[1], bound);
+                if(distance.isEmpty()) continue;
+
+                queue.add(new Neighbor(other, null, distance.get()));
+                if(queue.size() > neighbors)
+                    queue.poll();
+                if(queue.size() == neighbors)
+                    bound = queue.peek().getDistance();
+            }
+        }
+    }
+
+    /** Look the closest images to an image up in the {@link NeighborGraph} of
+     * a tagger, which only works when the graph is sure to hold all of them.
+     * That is the case when it holds at least as many as asked for, or when
+     * it holds as many as it can, and the farthest of them is past the bound.
+     * <br><br>
+     * Images marked as stale by the graph are in it at distances that may no
+     * longer hold, or missing from it, so they get compared with the image,
+     * and put where they belong. Images whose list could be missing more than
+     * those, as their own is stale, have to be searched for.
+     * @param key The name of the tagger whose graph is used.
+     * @param id The ID of the image.
+     * @param limit The maximum number of images, or a negative number for all.
+     * @param bound The largest distance of any image that will be returned.
+     * @return The closest images, closest first, or nothing, if they have to
+     * be searched for.
+     * @throws InterruptedException When acquisition of the database fails.
+     * @throws SQLException When an SQL query fails.
+     */
+    public Optional<List<Neighbor>> getGraphNeighbors(String key, UUID id, int limit, double bound)
+        throws InterruptedException, SQLException {
+
+        var graph = this.getNeighborGraph(key);
+        if(graph.isEmpty())
+            return Optional.empty();
+        var tagger = graph.get().getTagger();
+        var column = Database.taggerColumnName(key);
+
+        var list = new ArrayList<Neighbor>();
+        var stale = new HashSet<Long>();
+        var moved = new ArrayList<Neighbor>();
+        try(var handle = this.database.takeReader()) {
+            Object value;
+            var image = handle.prepare(String.format(
+                "select v.rowid, v.%s, exists(select 1 from %s where image = v.rowid) " +
+                    "from %s v where v.id = ?",
+                column,
+                graph.get().getStaleTable(),
+                IMAGES_VIEW));
+            image.setBytes(1, Database.uuidToBytes(id));
+            long rowid;
+            try(var result = image.executeQuery()) {
+                if(!result.next() || result.getBoolean(3) || result.getObject(2) == null)
+                    return Optional.empty();
+                rowid = result.getLong(1);
+                value = result.getObject(2);
+            }
+
+            var statement = handle.prepare(String.format(
+                "select g.neighbor, i.id, g.distance from %s g " +
+                    "join %s i on i.rowid = g.neighbor " +
+                    "where g.image = ? order by g.rank",
+                graph.get().getTable(),
+                IMAGES_TABLE));
+            statement.setLong(1, rowid);
+            try(var result = statement.executeQuery()) {
+                while(result.next())
+                    list.add(new Neighbor(
+                        result.getLong(1),
+                        Database.uuidFromBytes(result.getBytes(2)),
+                        result.getDouble(3)));
+            }
+
+            /* Stale images with no value left are still stale, as the graph
+             * may still hold them. */
+            var others = handle.prepare(String.format(
+                "select s.image, v.id, v.%s from %s s left join %s v on v.rowid = s.image " +
+                    "where s.image != ?",
+                column,
+                graph.get().getStaleTable(),
+                IMAGES_VIEW));
+            others.setLong(1, rowid);
+            try(var result = others.executeQuery()) {
+                if(result.next()) {
+                    var tag = SqlFunctions.fromStorage(tagger, value);
+                    do {
+                        stale.add(result.getLong(1));
+                        if(result.getObject(3) == null) continue;
+                        try {
+                            var distance = tagger.getTagDistance(tag, SqlFunctions.fromStorage(tagger, result.getObject(3)));
+                            if(distance.isPresent())
+                                moved.add(new Neighbor(
+                                    result.getLong(1),
+                                    Database.uuidFromBytes(result.getBytes(2)),
+                                    distance.get()));
+                        } catch(IllegalArgumentException e) {
+                            /* Values that can't be read are nowhere near. */
+                        }
+                    } while(result.next());
+                }
+            } catch(IllegalArgumentException e) {
+                /* Neither is anything to the image, if its own value can't be
+                 * read, so it has to be searched for. */
+                return Optional.empty();
+            }
+        }
+
+        /* Every image the graph holds that isn't stale is at the right
+         * distance, and no image that isn't held can come before the
+         * farthest of them. Stale images can go anywhere up to there. */
+        var full = list.size() == graph.get().getNeighbors();
+        var exact = new ArrayList<Neighbor>();
+        for(var neighbor : list)
+            if(!stale.contains(neighbor.getRowid()))
+                exact.add(neighbor);
+        if(!stale.isEmpty()) {
+            list = new ArrayList<>(exact);
+            list.addAll(moved);
+            list.sort(Neighbor.CLOSEST_FIRST);
+            if(full) {
+                var farthest = exact.isEmpty() ? Double.NEGATIVE_INFINITY : exact.get(exact.size() - 1).getDistance();
+                list.removeIf((n) -> n.getDistance() > farthest);
+            }
+        }
+
+        var neighbors = new ArrayList<Neighbor>();
+        for(var neighbor : list)
+            if(neighbor.getDistance() <= bound && (limit < 0 || neighbors.size() < limit))
+                neighbors.add(neighbor);
+
+        var past = full && !exact.isEmpty()
+            && exact.get(exact.size() - 1).getDistance() > bound;
+        if((limit >= 0 && neighbors.size() >= limit) || past)
+            return Optional.of(neighbors);
+        return Optional.empty();
+    }
+
+    /** A selection of the images found outside of the database. */
+    protected static Selection among(List<Neighbor> candidates) {
+        var rowids = new StringBuilder("[");
+        for(var candidate : candidates) {
+            if(rowids.length() > 1) rowids.append(',');
+            rowids.append(candidate.getRowid());
+        }
+        rowids.append(']');
+
+        return Selection.rowidIn("select value from json_each(?)", rowids.toString());
+    }
+
+    /** A search over a range of rowids. */
+    protected interface RangeSearch {
+        List<Neighbor> search(long from, long to) throws InterruptedException, SQLException;
+    }
+
+    /** Split a range of rowids up into at most the given number of ranges,
+     * searching each one of them on the executor, then merge the closest
+     * images each of them found.
+     * @return The closest images, closest first.
+     */
+    protected List<Neighbor> partition(
+        ExecutorService executor,
+        int parallelism,
+        long first,
+        long last,
+        int limit,
+        RangeSearch search) throws InterruptedException, SQLException, ExecutionException {
+
+        if(last < first)
+            return new ArrayList<>();
+
+        /* Rowids are handed out in order, so ranges of the same width hold
+         * about the same number of images. Small ranges aren't worth the
+         * trouble of splitting up. */
+        var span = last - first + 1;
+        var partitions = (int) Math.max(1, Math.min(parallelism, span / MIN_PARTITION_SIZE));
+        var width = span / partitions;
+
+        var futures = new ArrayList<Future<List<Neighbor>>>(partitions);
+        for(int i = 0; i < partitions; ++i) {
+            var from = first + i * width;
+            var to = i == partitions - 1 ? last : from + width - 1;
+            futures.add(executor.submit(() -> search.search(from, to)));
+        }
+
+        var neighbors = new ArrayList<Neighbor>();
+        try {
+            for(var future : futures)
+                neighbors.addAll(future.get());
+        } catch(ExecutionException e) {
+            if(e.getCause() instanceof SQLException)
+                throw (SQLException) e.getCause();
+            throw e;
+        } finally {
+            for(var future : futures)
+                future.cancel(false);
+        }
+
+        neighbors.sort(Neighbor.CLOSEST_FIRST);
+        if(limit >= 0 && neighbors.size() > limit)
+            return new ArrayList<>(neighbors.subList(0, limit));
+        return neighbors;
+    }
+
+    /** The feature store kept over the values of the given tagger, if any. */
+    protected Optional<FeatureStore> getFeatureStore(String key) {
+        for(var index : this.getIndices(key))
+            if(index instanceof FeatureStore)
+                return Optional.of((FeatureStore) index);
+        return Optional.empty();
+    }
+
+    /** The quantized index kept over the values of the given tagger, if any. */
+    protected Optional<QuantizedIndex> getQuantizedIndex(String key) {
+        for(var index : this.getIndices(key))
+            if(index instanceof QuantizedIndex)
+                return Optional.of((QuantizedIndex) index);
+        return Optional.empty();
+    }
+
+    /** The neighbor graph kept over the values of the given tagger, if any. */
+    protected Optional<NeighborGraph> getNeighborGraph(String key) {
+        for(var index : this.getIndices(key))
+            if(index instanceof NeighborGraph)
+                return Optional.of((NeighborGraph) index);
+        return Optional.empty();
+    }
+
+    /** Convert a tag into the value it is compared against in the database. */
+    protected Object getReference(String key, Object tag) {
+        var tagger = this.taggers.get(key);
+        if(tagger == null)
+            throw new IllegalArgumentException("No registered tagger matches \"" + key + "\"");
+        return tagger.toStorage(tag);
+    }
+
+    /** Search the images in a range of rowids for those whose value is the
+     * closest to the given reference, on a read connection of its own. */
+    protected List<Neighbor> getNearest(
+        Selection selection,
+        String key,
+        Object reference,
+        int limit,
+        double bound,
+        long from,
+        long to) throws InterruptedException, SQLException {
+
+        var neighbors = new ArrayList<Neighbor>();
+        try(var handle = this.database.takeReader()) {
+            var function = this.installDistance(handle, key);
+            var distance = String.format(
+                "%s(%s.%s, ?, ?)",
+                function,
+                IMAGES_VIEW,
+                Database.taggerColumnName(key));
+
+            /* An infinite bound can't be bound, but no bound is the same. */
+            var parameters = new ArrayList<>(2);
+            parameters.add(reference);
+            parameters.add(Double.isInfinite(bound) ? null : bound);
+
+            var statement = selection.getNearestStatement(
+                handle,
+                IMAGES_VIEW,
+                this.tagTables,
+                distance,
+                parameters,
+                from,
+                to,
+                limit);
+            try(var result = statement.executeQuery()) {
+                while(result.next()) {
+                    var d = result.getObject("distance$");
+                    if(d == null) break;
+
+                    neighbors.add(new Neighbor(
+                        result.getLong("rowid"),
+                        Database.uuidFromBytes(result.getBytes("id")),
+                        ((Number) d).doubleValue()));
+                }
+            }
+        }
+        return neighbors;
+    }
+
+    /** Make sure the distance function of the given tagger is installed into
+     * the connection behind the handle, installing it if it isn't.
+     * @return The name of the function.
+     */
+    protected String installDistance(ConnectionHandle handle, String key) throws SQLException {
+        var name = Database.distanceFunctionName(key);
+        var connection = handle.getConnection();
+
+        synchronized(this.distances) {
+            var installed = this.distances.computeIfAbsent(connection, (c) -> new HashSet<>());
+            if(!installed.contains(key)) {
+                SqlFunctions.installDistance(connection, name, this.taggers.get(key));
+                installed.add(key);
+            }
+        }
+        return name;
+    }
+
+    /** Set the number of images cursors read from the database at a time. */
+    public void setFetchSize(int fetchSize) {
+        if(fetchSize < 1) throw new IllegalArgumentException("The fetch " +
+            "size must be equal to or greater than one");
+        this.fetchSize = fetchSize;
+    }
+
+    /** Make sure every column the selection filters on is indexed. */
+    protected void index(Selection selection) throws InterruptedException, SQLException {
+        /* Creating indices takes the writer, which may be busy with a pass, so
+         * only go for it when there's a column we haven't indexed yet. */
+        var columns = selection.getColumns();
+        if(this.indexed.containsAll(columns))
+            return;
+
+        try(var handle = this.database.takeWriter()) {
+            selection.index(handle.getConnection());
+        }
+        this.indexed.addAll(columns);
+    }
+
+    /** Convert a UUID into the 16 bytes it is stored as. */
+    public static byte[] uuidToBytes(UUID id) {
+        return ByteBuffer.allocate(16)
+            .putLong(id.getMostSignificantBits())
+            .putLong(id.getLeastSignificantBits())
+            .array();
+    }
+
+    /** Convert the 16 bytes a UUID is stored as back into it. */
+    public static UUID uuidFromBytes(byte[] bytes) {
+        if(bytes == null || bytes.length != 16)
+            throw new IllegalArgumentException("Expected 16 bytes of UUID");
+
+        var buffer = ByteBuffer.wrap(bytes);
+        return new UUID(buffer.getLong(), buffer.getLong());
+    }
+
+    /** Convert a value into one that can be bound to a statement, comparable
+     * to the way it is stored in the database. */
+    protected static Object toSqlValue(Object value) {
+        if(value instanceof UUID)
+            return Database.uuidToBytes((UUID) value);
+        if(value instanceof Path)
+            return value.toString();
+        return value;
     }
 
     /** Given the name of a tagger, format it into its column name. */
     public static String taggerColumnName(String name) {
         return "tag$" + name;
     }
+
+    /** Given the name of a tagger, format it into the name of the SQL function
+     * computing its distances. */
+    public static String distanceFunctionName(String name) {
+        return "distance$" + name;
+    }
 }
@@ -0,0 +1,53 @@
+package com.github.natanbc.imagesearch.db;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/** A thread-safe union-find structure over a range of integers, in which the
+ * representative of every set is its smallest element.
+ * <br><br>
+ * It takes no locks. Elements only ever point to smaller ones, so parents only
+ * ever go down, and a set only gets merged into another by swapping the parent
+ * of its representative from itself to the other representative, which fails,
+ * and gets tried again, if some other thread got to it first. */
+final class DisjointSets {
+    private final AtomicIntegerArray parents;
+
+    DisjointSets(int size) {
+        this.parents = new AtomicIntegerArray(size);
+        for(int i = 0; i < size; ++i)
+            this.parents.set(i, i);
+    }
+
+    int size() {
+        return this.parents.length();
+    }
+
+    /** The representative of the set holding the given element. */
+    int find(int element) {
+        /* Halve the path on the way up, so that it stays short. Losing the
+         * race to another thread only means the path stays longer for now. */
+        var parent = this.parents.get(element);
+        while(parent != element) {
+            var grandparent = this.parents.get(parent);
+            if(grandparent != parent)
+                this.parents.compareAndSet(element, parent, grandparent);
+            element = grandparent;
+            parent = this.parents.get(element);
+        }
+        return element;
+    }
+
+    /** Merge the sets holding the given elements. */
+    void union(int a, int b) {
+        while(true) {
+            var ra = this.find(a);
+            var rb = this.find(b);
+            if(ra == rb) return;
+
+            /* Only a representative can still be its own parent, so the
+             * swap fails if the larger one got merged in the meantime. */
+            if(ra < rb ? this.parents.compareAndSet(rb, rb, ra) : this.parents.compareAndSet(ra, ra, rb))
+                return;
+        }
+    }
+}
@@ -0,0 +1,49 @@
+package com.github.natanbc.imagesearch.db;
+
+/** How the distances of a tagger are spread out, as measured between pairs of
+ * images sampled from the database, so that distances of taggers with nothing
+ * in common can be put on the same scale. */
+public final class DistanceStats {
+    private final long images;
+    private final double mean;
+    private final double deviation;
+
+    public DistanceStats(long images, double mean, double deviation) {
+        this.images = images;
+        this.mean = mean;
+        this.deviation = deviation;
+    }
+
+    /** The number of images with a value there were when the pairs got
+     * sampled. */
+    public long getImages() {
+        return images;
+    }
+
+    /** The mean distance between the pairs. */
+    public double getMean() {
+        return mean;
+    }
+
+    /** The standard deviation of the distances between the pairs. */
+    public double getDeviation() {
+        return deviation;
+    }
+
+    /** The number of standard deviations a distance is away from the mean,
+     * which only ever goes up along with the distance. */
+    public double normalize(double distance) {
+        /* Taggers that always give the same distance have nothing to scale. */
+        if(this.deviation == 0 || Double.isNaN(this.deviation))
+            return distance - this.mean;
+        return (distance - this.mean) / this.deviation;
+    }
+
+    /** The distance that is the given number of standard deviations away from
+     * the mean, which undoes {@link #normalize(double)}. */
+    public double denormalize(double deviations) {
+        if(this.deviation == 0 || Double.isNaN(this.deviation))
+            return deviations + this.mean;
+        return deviations * this.deviation + this.mean;
+    }
+}
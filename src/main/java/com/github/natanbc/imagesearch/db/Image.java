@@ -10,15 +10,33 @@ import java.util.*;
 public class Image {
     protected final UUID id;
     protected final Path path;
+    /* Tags that have already been decoded. */
     protected final HashMap<String, Object> tags;
+    /* Tags as they are stored in the database, which get decoded by their
+     * taggers the first time they are asked for. */
+    protected final HashMap<String, Object> raw;
+    protected final Map<String, Tagger> taggers;
 
     public Image(UUID id, Path path, HashMap<String, Object> tags) {
+        this(id, path, tags, new HashMap<>(), Map.of());
+    }
+
+    protected Image(
+        UUID id,
+        Path path,
+        HashMap<String, Object> tags,
+        HashMap<String, Object> raw,
+        Map<String, Tagger> taggers) {
+
         this.id = id;
         this.path = path;
         this.tags = tags;
+        this.raw = raw;
+        this.taggers = taggers;
     }
 
-    /** Tries to get an image from a result set.
+    /** Tries to get an image from a result set. Only the values of the given
+     * taggers are read, and none of them are decoded until they're needed.
      *
      * @param set The result set.
      * @param taggers The set of taggers whose values will be queried.
@@ -27,31 +45,26 @@ public class Image {
      * @throws IllegalArgumentException When the next element in the given
      * {@link ResultSet} does not store a valid {@link Image}.
      */
-    protected static Optional<Image> fromResultSet(ResultSet set, HashMap<String, Tagger> taggers) throws SQLException {
-        var uuid_str = set.getString("id");
+    protected static Optional<Image> fromResultSet(ResultSet set, Map<String, Tagger> taggers) throws SQLException {
+        var uuid_raw = set.getBytes("id");
         var path_str = set.getString("path");
-        if (uuid_str == null)
+        if (uuid_raw == null)
             throw new IllegalArgumentException("Required field \"id\" has a null value");
 
         if (path_str == null)
             /* This statement having failed to execute is a bug. */
             throw new IllegalArgumentException("Required field \"path\" has a null value");
 
-        HashMap<String, Object> tags = new HashMap<>(taggers.size());
-        for (var entries: taggers.entrySet()) {
-            var name = entries.getKey();
-            var column = Database.taggerColumnName(name);
-            var value = set.getObject(column);
-            if(value instanceof String) {
-                /* Happens that some values get converted to string when they get
-                 * stored in the database. Here, we have to convert them back. */
-                value = entries.getValue().getTagFromString((String) value);
-            }
+        HashMap<String, Object> raw = new HashMap<>(taggers.size());
+        for (var name : taggers.keySet())
+            raw.put(name, set.getObject(Database.taggerColumnName(name)));
 
-            tags.put(name, value);
-        }
-
-        return Optional.of(new Image(UUID.fromString(uuid_str), Path.of(path_str), tags));
+        return Optional.of(new Image(
+            Database.uuidFromBytes(uuid_raw),
+            Path.of(path_str),
+            new HashMap<>(taggers.size()),
+            raw,
+            taggers));
     }
 
     public UUID getId() {
@@ -62,24 +75,42 @@ public class Image {
         return path;
     }
 
-    public Optional<Object> getTag(String name) {
+    /** Get the value of a tag, decoding it if this is the first time it is
+     * asked for. Tags that weren't read from the database along with the image
+     * are never present. */
+    public synchronized Optional<Object> getTag(String name) {
+        if(!this.tags.containsKey(name) && this.raw.containsKey(name)) {
+            var value = this.raw.remove(name);
+            if(value != null) {
+                /* Happens that some values get converted when they get stored
+                 * in the database. Here, we have to convert them back. */
+                value = SqlFunctions.fromStorage(this.taggers.get(name), value);
+            }
+            this.tags.put(name, value);
+        }
         return Optional.ofNullable(this.tags.get(name));
     }
 
-    public Map<String, Object> getTags() { return this.tags; }
+    /** Get the values of all the tags read along with this image, decoding
+     * the ones that haven't been yet. */
+    public synchronized Map<String, Object> getTags() {
+        for(var name : new ArrayList<>(this.raw.keySet()))
+            this.getTag(name);
+        return this.tags;
+    }
 
+    /** Images are the same if they have the same ID, whatever tags they were
+     * read along with. */
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
         if (o == null || getClass() != o.getClass()) return false;
         Image image = (Image) o;
-        return Objects.equals(id, image.id) &&
-            Objects.equals(path, image.path) &&
-            Objects.equals(tags, image.tags);
+        return Objects.equals(id, image.id);
     }
 
     @Override
     public int hashCode() {
-        return Objects.hash(id, path, tags);
+        return Objects.hash(id);
     }
 }
@@ -0,0 +1,171 @@
+package com.github.natanbc.imagesearch.db;
+
+import com.github.darkryu550.imagesearch.Tagger;
+import com.github.natanbc.imagesearch.db.pool.ConnectionHandle;
+import com.github.natanbc.imagesearch.db.pool.ConnectionPool;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/** A lazy cursor over the images in a selection, which only ever keeps a
+ * bounded number of them in memory, no matter how many the selection has, and
+ * which only reads the tags it has been asked for.
+ * <br><br>
+ * Selections are read in pages, by rowid, with every page being read in a
+ * short transaction of its own, so that long running consumers never get in
+ * the way of the database checkpointing its log. Ranked selections can't be
+ * paged by rowid, those are read straight through a single statement, which
+ * holds on to its connection until the cursor is closed or exhausted. */
+public class ImageCursor implements AutoCloseable {
+    protected final ConnectionPool database;
+    protected final Map<String, Tagger> taggers;
+    protected final Map<String, String> tags;
+    protected final String columns;
+    protected final Selection selection;
+    protected final int fetchSize;
+
+    /* The rows of the current page, along with their rowids. */
+    protected final ArrayDeque<Image> page;
+    protected final ArrayDeque<Long> rowids;
+    protected long after;
+    protected boolean exhausted;
+
+    /* Used by ranked selections only. */
+    protected ConnectionHandle handle;
+    protected ResultSet result;
+
+    protected Image current;
+    protected long currentRowid;
+
+    protected ImageCursor(
+        ConnectionPool database,
+        Map<String, Tagger> taggers,
+        Map<String, String> tags,
+        Selection selection,
+        int fetchSize) {
+
+        if(fetchSize < 1) throw new IllegalArgumentException("The fetch " +
+            "size must be equal to or greater than one");
+
+        this.database = database;
+        this.taggers = taggers;
+        this.tags = tags;
+        this.selection = selection;
+
+        /* Only read the columns of the taggers we've been asked for. */
+        var table = Database.IMAGES_VIEW;
+        var columns = new StringBuilder(String.format("%s.rowid, %s.id, %s.path", table, table, table));
+        for(var name : taggers.keySet())
+            columns.append(", ").append(table).append('.').append(Database.taggerColumnName(name));
+        this.columns = columns.toString();
+        this.fetchSize = fetchSize;
+        this.page = new ArrayDeque<>(fetchSize);
+        this.rowids = new ArrayDeque<>(fetchSize);
+        this.after = Long.MIN_VALUE;
+        this.exhausted = false;
+    }
+
+    /** Move on to the next image in the selection.
+     * @return Whether there was a next image.
+     * @throws InterruptedException When a connection to the database could not
+     * be acquired from the pool.
+     * @throws SQLException Upon failure of a SQL operation.
+     */
+    public boolean next() throws InterruptedException, SQLException {
+        this.current = null;
+        if(this.selection.isRanked())
+            return this.nextRanked();
+
+        if(this.page.isEmpty() && !this.exhausted)
+            this.fetch();
+        if(this.page.isEmpty())
+            return false;
+
+        this.current = this.page.poll();
+        this.currentRowid = this.rowids.poll();
+        return true;
+    }
+
+    /** The image the cursor currently points at.
+     * @throws NoSuchElementException When {@link #next()} has not been called
+     * yet, or when it has returned false. */
+    public Image get() {
+        if(this.current == null)
+            throw new NoSuchElementException("The cursor does not point at any image");
+        return this.current;
+    }
+
+    /** The rowid of the image the cursor currently points at. */
+    public long getRowid() {
+        this.get();
+        return this.currentRowid;
+    }
+
+    protected void fetch() throws InterruptedException, SQLException {
+        var rows = 0;
+        try(var handle = this.database.takeReader()) {
+            var statement = this.selection.getPageStatement(
+                handle,
+                Database.IMAGES_VIEW,
+                this.tags,
+                this.columns,
+                this.after,
+                this.fetchSize);
+            try(var result = statement.executeQuery()) {
+                while(result.next()) {
+                    var rowid = result.getLong("rowid");
+                    this.after = rowid;
+                    ++rows;
+
+                    var image = Image.fromResultSet(result, this.taggers);
+                    if(image.isEmpty()) continue;
+
+                    this.page.add(image.get());
+                    this.rowids.add(rowid);
+                }
+            }
+        }
+
+        if(rows < this.fetchSize)
+            this.exhausted = true;
+    }
+
+    protected boolean nextRanked() throws InterruptedException, SQLException {
+        if(this.exhausted) return false;
+        if(this.handle == null) {
+            this.handle = this.database.takeReader();
+            this.result = this.selection
+                .getStatement(this.handle, Database.IMAGES_VIEW, this.tags, this.columns)
+                .executeQuery();
+        }
+
+        while(this.result.next()) {
+            var image = Image.fromResultSet(this.result, this.taggers);
+            if(image.isEmpty()) continue;
+
+            this.current = image.get();
+            this.currentRowid = this.result.getLong("rowid");
+            return true;
+        }
+
+        /* Let go of the connection as soon as we're done with it. */
+        this.exhausted = true;
+        this.close();
+        return false;
+    }
+
+    @Override
+    public void close() throws SQLException {
+        if(this.handle == null) return;
+        try {
+            this.result.close();
+        } finally {
+            this.handle.close();
+            this.handle = null;
+            this.result = null;
+        }
+    }
+}
@@ -0,0 +1,53 @@
+package com.github.natanbc.imagesearch.db;
+
+import java.util.Comparator;
+import java.util.Objects;
+import java.util.UUID;
+
+/** An image found by a nearest neighbor search, along with its distance to
+ * the tag the search was made for. */
+public final class Neighbor {
+    /** Orders neighbors from the closest to the farthest. */
+    public static final Comparator<Neighbor> CLOSEST_FIRST =
+        Comparator.comparingDouble(Neighbor::getDistance).thenComparingLong(Neighbor::getRowid);
+
+    private final long rowid;
+    private final UUID id;
+    private final double distance;
+
+    public Neighbor(long rowid, UUID id, double distance) {
+        this.rowid = rowid;
+        this.id = id;
+        this.distance = distance;
+    }
+
+    /** The rowid of the image. */
+    public long getRowid() {
+        return rowid;
+    }
+
+    /** The ID of the image. */
+    public UUID getId() {
+        return id;
+    }
+
+    /** The distance from the image to the tag the search was made for. */
+    public double getDistance() {
+        return distance;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        Neighbor neighbor = (Neighbor) o;
+        return rowid == neighbor.rowid &&
+            Double.compare(neighbor.distance, distance) == 0 &&
+            Objects.equals(id, neighbor.id);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(rowid, id, distance);
+    }
+}
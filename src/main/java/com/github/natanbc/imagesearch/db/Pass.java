@@ -7,26 +7,56 @@ import com.github.natanbc.imagesearch.db.pool.ConnectionPool;
 import javax.imageio.ImageIO;
 import java.io.File;
 import java.io.IOException;
-import java.sql.PreparedStatement;
 import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Objects;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Future;
 
 public class Pass {
+    /** Default number of images tagged at a time. */
+    public static final int DEFAULT_PAGE_SIZE = 32;
+
     protected ConnectionPool database;
     protected HashMap<String, Tagger> taggers;
+    protected Map<String, List<TagIndex>> indices;
+    /* Types of the side tables, which selections get compiled against. */
+    protected Map<String, String> tags;
     protected String table;
     protected String constraint;
+    /* How many images are tagged at a time. */
+    protected int pageSize;
+
+    protected Pass(
+        ConnectionPool database,
+        HashMap<String, Tagger> taggers,
+        Map<String, List<TagIndex>> indices,
+        Map<String, String> tags,
+        String table,
+        String constraint) {
 
-    protected Pass(ConnectionPool database, HashMap<String, Tagger> taggers, String table, String constraint) {
         this.database = database;
         this.taggers = taggers;
+        this.indices = indices;
+        this.tags = tags;
         this.table = table;
         this.constraint = constraint;
+        this.pageSize = DEFAULT_PAGE_SIZE;
+    }
+
+    /** Set how many images are read into memory and tagged at a time. Larger
+     * pages keep the executor busier, at the cost of more memory. */
+    public Pass setPageSize(int pageSize) {
+        if(pageSize < 1) throw new IllegalArgumentException("The page " +
+            "size must be equal to or greater than one");
+
+        this.pageSize = pageSize;
+        return this;
     }
 
     /** Runs this pass of the tagger on the given executor service.
@@ -48,68 +78,137 @@ public class Pass {
         throws SQLException, InterruptedException,
         IOException, ExecutionException, TaggingException {
 
-        try(var handle = this.database.take()) {
-            var connection = handle.getConnection();
-            var selected = selection.perform(connection, this.table, "id, path");
-
-            /* Execute the taggers on the results of the query. */
-            var futures = new ArrayList<Future<TagResult>>(taggers.size());
-
-            for(var part : selected) {
-                var result = part.getResultSet();
-                while (result.next()) {
-                    /* We only need to open and buffer the image once. */
-                    var path = result.getString("path");
-                    var imid = result.getString("id");
-                    var file = new File(path);
-                    var buff = ImageIO.read(file);
-
-                    for (var entry : taggers.entrySet()) {
-                        var name = entry.getKey();
-                        var tagger = entry.getValue();
-
-                        futures.add(executor.submit(() -> {
-                            try {
-                                var packet = new Packet(
-                                    name,
-                                    imid,
-                                    /* We should submit a null value to the database. */
-                                    tagger.tag(buff).orElse(null));
-                                return new TagResult(null, packet);
-                            } catch (TaggingException e) {
-                                return new TagResult(e, null);
-                            }
-                        }));
+        try(var handle = this.database.takeWriter()) {
+            selection.index(handle.getConnection());
+        }
+
+        /* Go over the selection a page at a time, so that we never have more
+         * than a page worth of images in memory. */
+        var after = Long.MIN_VALUE;
+        while(true) {
+            var rows = new ArrayList<Long>(this.pageSize);
+            var paths = new ArrayList<String>(this.pageSize);
+            try(var handle = this.database.takeReader()) {
+                var statement = selection.getPageStatement(
+                    handle,
+                    this.table,
+                    this.tags,
+                    this.table + ".rowid, path",
+                    after,
+                    this.pageSize);
+                try(var result = statement.executeQuery()) {
+                    while(result.next()) {
+                        rows.add(result.getLong("rowid"));
+                        paths.add(result.getString("path"));
                     }
                 }
-                part.close();
             }
+            if(rows.isEmpty())
+                break;
+
+            this.runOnPage(executor, rows, paths);
+            after = rows.get(rows.size() - 1);
+
+            if(rows.size() < this.pageSize)
+                break;
+        }
+    }
+
+    protected void runOnPage(ExecutorService executor, List<Long> rows, List<String> paths)
+        throws SQLException, InterruptedException,
+        IOException, ExecutionException, TaggingException {
+
+        /* Execute the taggers on the images in the page. */
+        var futures = new ArrayList<Future<TagResult>>(rows.size() * taggers.size());
+        for(int i = 0; i < rows.size(); ++i) {
+            /* We only need to open and buffer the image once. */
+            var row  = rows.get(i);
+            var file = new File(paths.get(i));
+            var buff = ImageIO.read(file);
+
+            for (var entry : taggers.entrySet()) {
+                var name = entry.getKey();
+                var tagger = entry.getValue();
 
-            /* Every column needs a prepared statement for itself. */
-            HashMap<String, PreparedStatement> statements = new HashMap<>();
-            for(var tagger : taggers.keySet()) {
-                var name = Database.taggerColumnName(tagger);
-                var statementQuery0 = "update " + this.table + " set " + name + "=? where id=?";
-                var statementQuery = connection.prepareStatement(statementQuery0);
-                statements.put(tagger, statementQuery);
+                futures.add(executor.submit(() -> {
+                    try {
+                        var packet = new Packet(
+                            name,
+                            row,
+                            /* We should submit a null value to the database. */
+                            tagger.tag(buff).map(tagger::toStorage).orElse(null));
+                        return new TagResult(null, packet);
+                    } catch (TaggingException e) {
+                        return new TagResult(e, null);
+                    }
+                }));
             }
+        }
 
-            /* Collect the results and submit them to the database. */
-            for (var future : futures) {
-                var tag = future.get().getTag();
+        /* Wait on the taggers before taking the writer, so that other writers
+         * don't have to wait on them too. */
+        var packets = new ArrayList<Packet>(futures.size());
+        for(var future : futures)
+            packets.add(future.get().getTag());
 
-                var updateStatement = statements.get(tag.tag);
-                assert(updateStatement != null);
+        try(var handle = this.database.takeWriter()) {
+            var connection = handle.getConnection();
 
-                updateStatement.setObject(1, tag.data);
-                updateStatement.setString(2, tag.id);
+            /* Every tagger needs a statement for its own table. They are looked
+             * up in the cache every time, rather than held on to, as the cache
+             * is free to evict them while the indices get updated. */
+            HashMap<String, String> statements = new HashMap<>();
+            HashSet<String> compressed = new HashSet<>();
+            for(var entry : taggers.entrySet()) {
+                var name = Database.taggerColumnName(entry.getKey());
+                var statementQuery0 = "insert or replace into " + name + "(image, value) values (?, ?)";
+                statements.put(entry.getKey(), statementQuery0);
 
-                updateStatement.execute();
+                if(SqlFunctions.isText(entry.getValue()))
+                    compressed.add(entry.getKey());
             }
 
+            /* Submit the whole page in a single transaction, which moves the
+             * generation of every table it touches on. */
+            var generations = new HashMap<String, Long>();
+            connection.setAutoCommit(false);
+            try {
+                for (var tag : packets) {
+                    generations.put(tag.tag, null);
+                    var statementQuery = statements.get(tag.tag);
+                    assert(statementQuery != null);
+                    var updateStatement = handle.prepare(statementQuery);
+
+                    var data = tag.data;
+                    if(data instanceof String && compressed.contains(tag.tag))
+                        data = SqlFunctions.compress((String) data);
+
+                    updateStatement.setLong(1, tag.row);
+                    updateStatement.setObject(2, data);
+
+                    updateStatement.execute();
+
+                    for(var index : this.indices.getOrDefault(tag.tag, List.of()))
+                        index.update(handle, tag.row, tag.data);
+                }
+                for(var entry : generations.entrySet())
+                    entry.setValue(Schema.nextGeneration(connection, Database.taggerColumnName(entry.getKey())));
+                connection.commit();
+            } catch(SQLException | RuntimeException e) {
+                connection.rollback();
+                for(var tag : generations.keySet())
+                    for(var index : this.indices.getOrDefault(tag, List.of()))
+                        index.rolledBack();
+                throw e;
+            } finally {
+                connection.setAutoCommit(true);
+            }
 
-            for(var q : statements.entrySet())
-                q.getValue().close();
+            /* Only now can the indices kept outside of the database catch up,
+             * before anyone else gets to write. */
+            for(var entry : generations.entrySet())
+                for(var index : this.indices.getOrDefault(entry.getKey(), List.of()))
+                    index.committed(handle, entry.getValue());
         }
     }
 
@@ -136,12 +235,12 @@ public class Pass {
     /** Complete task packet. */
     private static final class Packet {
         public final String tag;
-        public final String id;
+        public final long row;
         public final Object data;
 
-        private Packet(String tag, String id, Object data) {
+        private Packet(String tag, long row, Object data) {
             this.tag = tag;
-            this.id = id;
+            this.row = row;
             this.data = data;
         }
     }
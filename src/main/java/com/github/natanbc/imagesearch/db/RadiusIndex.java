@@ -0,0 +1,20 @@
+package com.github.natanbc.imagesearch.db;
+
+import java.util.Optional;
+
+/** A {@link TagIndex} which can narrow a search for the images within a given
+ * distance of a tag down to a few candidates, which then need to have their
+ * actual distances checked. */
+public interface RadiusIndex extends TagIndex {
+    /** Create a selection of all the images whose tag may be within the given
+     * distance of the given one.
+     *
+     * @param tag The tag the images are being compared to.
+     * @param radius The maximum distance.
+     * @throws IllegalArgumentException If the tag isn't one the index knows
+     * how to handle.
+     * @return The selection of candidates, or nothing, if the index can't rule
+     * out any image at that distance.
+     */
+    Optional<Selection> candidates(Object tag, double radius);
+}
@@ -0,0 +1,522 @@
+package com.github.natanbc.imagesearch.db;
+
+import org.sqlite.Function;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.UUID;
+
+/** Versioning of the database schema, and migration of databases created by
+ * older versions of this program, in place.
+ * <br><br>
+ * The version of a database is kept in its {@code user_version} pragma.
+ * Version {@code 0} is the original schema, in which {@code images} has no
+ * primary key and both its {@code id} and {@code path} columns are of the
+ * made up {@code STRING} type, which SQLite gives numeric affinity. Version
+ * {@code 1} gives {@code images} a primary key and proper types, but still
+ * keeps every tag as a column of its own in it.
+ * <br><br>
+ * Since version {@code 2}, {@code images} only holds the IDs and paths of the
+ * images, and the values of every tagger live in a side table of their own,
+ * keyed by the rowid of the image they belong to. The tags are put back
+ * together under their usual column names by a view, whose joins SQLite drops
+ * for the columns a query doesn't use, so that scans over some of the tags
+ * never have to touch the pages holding the others. The view shows the values
+ * just as they are stored, compressed text included, so that it can be read
+ * without any of the functions in {@link SqlFunctions}.
+ * <br><br>
+ * Since version {@code 3}, the version of the tagger behind the values in every
+ * side table is kept in a table of its own, so that values from versions of a
+ * tagger that compute them differently never get compared with one another.
+ * Side tables from before it count as having been filled in by the first
+ * version of their taggers.
+ * <br><br>
+ * Since version {@code 4}, that table also keeps the generation of every side
+ * table, which goes up with every transaction that changes its values, so
+ * that copies of the values kept outside of the database can tell whether
+ * they are up to date by comparing the generation they were last brought up
+ * to with it, rather than by going over the values. */
+public final class Schema {
+    /** The version of the schema this program creates and expects. */
+    public static final int CURRENT_VERSION = 4;
+    /** The table holding the version of the tagger behind every side table,
+     * along with its generation. */
+    public static final String VERSIONS_TABLE = "tag_versions";
+
+    private Schema() {}
+
+    /** Bring the database behind the given connection up to the current
+     * version of the schema, creating it if it is empty.
+     *
+     * @param connection The connection to the database.
+     * @param table The name of the table holding the images.
+     * @throws SQLException Upon failure of a SQL operation, in which case the
+     * database is left untouched. Also thrown when the database was created
+     * by a newer version of this program.
+     */
+    public static void migrate(Connection connection, String table) throws SQLException {
+        var version = Schema.version(connection);
+        if(version == CURRENT_VERSION)
+            return;
+        if(version > CURRENT_VERSION)
+            throw new SQLException("The database has schema version " + version
+                + ", but this program only supports up to version " + CURRENT_VERSION);
+
+        var autoCommit = connection.getAutoCommit();
+        connection.setAutoCommit(false);
+        try {
+            if(!Schema.exists(connection, table)) {
+                Schema.create(connection, table);
+                Schema.createVersionsTable(connection);
+            } else {
+                if(version < 1) Schema.migrateFromVersion0(connection, table);
+                if(version < 2) Schema.migrateFromVersion1(connection, table);
+                if(version < 3) Schema.createVersionsTable(connection);
+                else if(version < 4) Schema.migrateFromVersion3(connection);
+            }
+
+            try(var statement = connection.createStatement()) {
+                statement.execute("pragma user_version = " + CURRENT_VERSION);
+            }
+            connection.commit();
+        } catch(SQLException e) {
+            connection.rollback();
+            throw e;
+        } finally {
+            connection.setAutoCommit(autoCommit);
+        }
+    }
+
+    /** The schema version of the database behind the given connection. */
+    public static int version(Connection connection) throws SQLException {
+        try(var statement = connection.createStatement();
+            var result = statement.executeQuery("pragma user_version")) {
+            result.next();
+            return result.getInt(1);
+        }
+    }
+
+    /** Given the SQL type name of a tagger, get the column type its values are
+     * stored with. Unknown types get stored as text, as their values get
+     * converted to strings when they are bound. */
+    public static String columnType(String type) {
+        return switch(type.toUpperCase()) {
+            case "REAL", "DOUBLE", "FLOAT" -> "REAL";
+            case "INTEGER", "INT", "BIGINT" -> "INTEGER";
+            case "BLOB" -> "BLOB";
+            default -> "TEXT";
+        };
+    }
+
+    /** Create the side table holding the values of a tagger, if it doesn't
+     * exist yet. Callers must then call {@link #refreshView} in order for the
+     * values to show up in the view.
+     *
+     * @param connection The connection to the database.
+     * @param column The name of the column of the tagger, which is also the
+     *               name of its side table.
+     * @param type The SQL type name of the tagger.
+     * @throws SQLException Upon failure of a SQL operation.
+     */
+    public static void createTagTable(Connection connection, String column, String type) throws SQLException {
+        try(var statement = connection.createStatement()) {
+            statement.execute(String.format(
+                "create table if not exists %s(image INTEGER PRIMARY KEY, value %s)",
+                column,
+                Schema.columnType(type)));
+        }
+    }
+
+    /** Make sure the values in the side table of a tagger were computed by the
+     * given version of it, throwing all of them out if they weren't, in a
+     * single transaction. Callers must then have anything built from those
+     * values thrown out as well.
+     *
+     * @param connection The connection to the database.
+     * @param column The name of the side table.
+     * @param version The version of the tagger, as given by
+     *                {@link com.github.darkryu550.imagesearch.Tagger#getVersion()}.
+     * @return Whether the values were kept.
+     * @throws SQLException Upon failure of a SQL operation.
+     */
+    public static boolean checkTagVersion(Connection connection, String column, String version) throws SQLException {
+        var stored = "";
+        try(var statement = connection.prepareStatement(
+            "select version from " + VERSIONS_TABLE + " where tag=?")) {
+            statement.setString(1, column);
+            try(var result = statement.executeQuery()) {
+                if(result.next())
+                    stored = result.getString(1);
+            }
+        }
+        if(stored.equals(version))
+            return true;
+
+        var autoCommit = connection.getAutoCommit();
+        connection.setAutoCommit(false);
+        try {
+            try(var statement = connection.createStatement()) {
+                statement.execute("delete from " + column);
+            }
+            try(var statement = connection.prepareStatement(String.format(
+                "insert into %s(tag, version, generation) values (?, ?, 1) " +
+                    "on conflict(tag) do update set version = excluded.version, generation = generation + 1",
+                VERSIONS_TABLE))) {
+                statement.setString(1, column);
+                statement.setString(2, version);
+                statement.execute();
+            }
+            connection.commit();
+        } catch(SQLException e) {
+            connection.rollback();
+            throw e;
+        } finally {
+            connection.setAutoCommit(autoCommit);
+        }
+        return false;
+    }
+
+    /** The versions of the taggers behind every side table that has one,
+     * by the names of the side tables.
+     *
+     * @param connection The connection to the database.
+     * @throws SQLException Upon failure of a SQL operation.
+     */
+    public static Map<String, String> tagVersions(Connection connection) throws SQLException {
+        var versions = new HashMap<String, String>();
+        try(var statement = connection.createStatement();
+            var result = statement.executeQuery("select tag, version from " + VERSIONS_TABLE)) {
+            while(result.next())
+                versions.put(result.getString(1), result.getString(2));
+        }
+        return versions;
+    }
+
+    /** Move the generation of a side table on, as part of the transaction
+     * changing its values, which must already be open.
+     *
+     * @param connection The connection to the database.
+     * @param column The name of the side table.
+     * @return The new generation of the side table, which it will be at once
+     * the transaction gets committed.
+     * @throws SQLException Upon failure of a SQL operation.
+     */
+    public static long nextGeneration(Connection connection, String column) throws SQLException {
+        /* Side tables with no row yet are still at the first version. */
+        try(var statement = connection.prepareStatement(String.format(
+            "insert into %s(tag, version, generation) values (?, '', 1) " +
+                "on conflict(tag) do update set generation = generation + 1",
+            VERSIONS_TABLE))) {
+            statement.setString(1, column);
+            statement.execute();
+        }
+        return Schema.generation(connection, column);
+    }
+
+    /** The generation of a side table, which is {@code 0} for side tables
+     * whose values have never been changed since it started being kept.
+     *
+     * @param connection The connection to the database.
+     * @param column The name of the side table.
+     * @throws SQLException Upon failure of a SQL operation.
+     */
+    public static long generation(Connection connection, String column) throws SQLException {
+        try(var statement = connection.prepareStatement(
+            "select generation from " + VERSIONS_TABLE + " where tag=?")) {
+            statement.setString(1, column);
+            try(var result = statement.executeQuery()) {
+                return result.next() ? result.getLong(1) : 0;
+            }
+        }
+    }
+
+    /** Create the table holding how the distances of every tagger are spread
+     * out, if it doesn't exist yet.
+     *
+     * @param connection The connection to the database.
+     * @param table The name of the table.
+     * @throws SQLException Upon failure of a SQL operation.
+     */
+    public static void createStatsTable(Connection connection, String table) throws SQLException {
+        try(var statement = connection.createStatement()) {
+            statement.execute(String.format(
+                "create table if not exists %s(" +
+                    "tagger TEXT PRIMARY KEY, " +
+                    "images INTEGER NOT NULL, " +
+                    "mean REAL NOT NULL, " +
+                    "deviation REAL NOT NULL)",
+                table));
+        }
+    }
+
+    /** Make sure the view over the images has a column for every side table
+     * in the database, recreating it if it doesn't.
+     *
+     * @param connection The connection to the database.
+     * @param table The name of the table holding the images.
+     * @param view The name of the view.
+     * @throws SQLException Upon failure of a SQL operation.
+     */
+    public static void refreshView(Connection connection, String table, String view) throws SQLException {
+        Schema.refreshView(connection, table, view, Schema.tagTables(connection));
+    }
+
+    /** Make sure the view over the images has a column for every one of the
+     * given side tables, recreating it if it doesn't.
+     *
+     * @param connection The connection to the database.
+     * @param table The name of the table holding the images.
+     * @param view The name of the view.
+     * @param tags The side tables, as given by {@link #tagTables}.
+     * @throws SQLException Upon failure of a SQL operation.
+     */
+    public static void refreshView(Connection connection, String table, String view, Map<String, String> tags)
+        throws SQLException {
+
+        var columns = new StringBuilder();
+        var joins = new StringBuilder();
+        for(var tag : new TreeMap<>(tags).keySet()) {
+            /* Values are shown as they are stored, compressed or not, so that
+             * the view never calls on any of our functions. */
+            columns.append(String.format(", %s.value as %s", tag, tag));
+            joins.append(String.format(" left join %s on %s.image = %s.rowid", tag, tag, table));
+        }
+        var definition = String.format(
+            "CREATE VIEW %s as select %s.rowid as rowid, %s.id as id, %s.path as path%s from %s%s",
+            view,
+            table, table, table,
+            columns,
+            table,
+            joins);
+
+        try(var select = connection.prepareStatement(
+            "select sql from sqlite_master where type='view' and name=?")) {
+            select.setString(1, view);
+            try(var result = select.executeQuery()) {
+                if(result.next() && definition.equals(result.getString(1)))
+                    return;
+            }
+        }
+        try(var statement = connection.createStatement()) {
+            statement.execute("drop view if exists " + view);
+            statement.execute(definition);
+        }
+    }
+
+    /** All of the side tables in the database, along with the column type
+     * their values are stored with, read from the schema in a single query,
+     * no matter how many of them there are.
+     *
+     * @param connection The connection to the database.
+     * @return The types of the side tables, by their names.
+     * @throws SQLException Upon failure of a SQL operation.
+     */
+    public static Map<String, String> tagTables(Connection connection) throws SQLException {
+        var tables = new HashMap<String, String>();
+        try(var statement = connection.prepareStatement(
+            "select m.name, p.type from sqlite_master m, pragma_table_info(m.name) p " +
+                "where m.type='table' and m.name glob ? and p.name='value'")) {
+            statement.setString(1, Database.taggerColumnName("*"));
+            try(var result = statement.executeQuery()) {
+                while(result.next())
+                    tables.put(result.getString(1), Schema.columnType(result.getString(2)));
+            }
+        }
+        return tables;
+    }
+
+    /** Make sure the given column of the images is indexed, creating the
+     * index if it doesn't exist yet.
+     *
+     * @param connection The connection to the database.
+     * @param table The name of the table holding the images.
+     * @param column The column, as it is named in the view.
+     * @throws SQLException Upon failure of a SQL operation.
+     */
+    public static void index(Connection connection, String table, String column) throws SQLException {
+        /* The ID is indexed from the start. */
+        if(column.equals("id")) return;
+
+        try(var statement = connection.createStatement()) {
+            if(!column.startsWith(Database.taggerColumnName(""))) {
+                statement.execute(String.format(
+                    "create index if not exists %s_%s on %s(%s)",
+                    table, column,
+                    table, column));
+                return;
+            }
+
+            /* Text values are only ever compared through the expression that
+             * inflates the compressed ones, which no index over the stored
+             * values can help with. */
+            if(Schema.tagTableType(connection, column).equals("TEXT"))
+                return;
+            statement.execute(String.format(
+                "create index if not exists %s_value on %s(value)",
+                column,
+                column));
+        }
+    }
+
+    /** The column type the values in the given side table are stored with. */
+    private static String tagTableType(Connection connection, String tag) throws SQLException {
+        try(var statement = connection.createStatement();
+            var result = statement.executeQuery("pragma table_info(" + tag + ")")) {
+            while(result.next())
+                if(result.getString("name").equals("value"))
+                    return Schema.columnType(result.getString("type"));
+        }
+        throw new SQLException("Side table " + tag + " has no value column");
+    }
+
+    private static boolean exists(Connection connection, String table) throws SQLException {
+        try(var statement = connection.prepareStatement(
+            "select count(*) from sqlite_master where type='table' and name=?")) {
+            statement.setString(1, table);
+            try(var result = statement.executeQuery()) {
+                result.next();
+                return result.getInt(1) > 0;
+            }
+        }
+    }
+
+    private static void create(Connection connection, String table) throws SQLException {
+        try(var statement = connection.createStatement()) {
+            statement.execute(String.format(
+                "create table %s(rowid INTEGER PRIMARY KEY, id BLOB NOT NULL, path TEXT NOT NULL)",
+                table));
+            statement.execute(String.format(
+                "create unique index %s_id on %s(id)",
+                table,
+                table));
+        }
+    }
+
+    private static void createVersionsTable(Connection connection) throws SQLException {
+        try(var statement = connection.createStatement()) {
+            statement.execute(String.format(
+                "create table %s(tag TEXT PRIMARY KEY, version TEXT NOT NULL, generation INTEGER NOT NULL DEFAULT 0)",
+                VERSIONS_TABLE));
+        }
+    }
+
+    /** Start keeping the generation of every side table. Copies of the values
+     * made before it don't know which generation they are at, and will get
+     * rebuilt. */
+    private static void migrateFromVersion3(Connection connection) throws SQLException {
+        try(var statement = connection.createStatement()) {
+            statement.execute(String.format(
+                "alter table %s add column generation INTEGER NOT NULL DEFAULT 0",
+                VERSIONS_TABLE));
+        }
+    }
+
+    /** Rebuild the original table with the current schema, keeping the rowids
+     * of its rows, which may already be referenced by indices. */
+    private static void migrateFromVersion0(Connection connection, String table) throws SQLException {
+        var old = table + "_v0";
+        var columns = new ArrayList<String>();
+        var types = new ArrayList<String>();
+        try(var statement = connection.createStatement();
+            var result = statement.executeQuery("pragma table_info(" + table + ")")) {
+            while(result.next()) {
+                var name = result.getString("name");
+                if(name.equals("id") || name.equals("path")) continue;
+
+                columns.add(name);
+                types.add(Schema.columnType(result.getString("type")));
+            }
+        }
+
+        /* Old IDs are stored as strings, the new ones as raw bytes. */
+        Function.create(connection, "uuid_blob", new Function() {
+            @Override
+            protected void xFunc() throws SQLException {
+                result(Database.uuidToBytes(UUID.fromString(value_text(0))));
+            }
+        });
+
+        try(var statement = connection.createStatement()) {
+            statement.execute(String.format("alter table %s rename to %s", table, old));
+            Schema.create(connection, table);
+            for(int i = 0; i < columns.size(); ++i)
+                statement.execute(String.format(
+                    "alter table %s add column %s %s",
+                    table,
+                    columns.get(i),
+                    types.get(i)));
+
+            var list = new StringBuilder();
+            for(var column : columns)
+                list.append(", ").append(column);
+            statement.execute(String.format(
+                "insert into %s(rowid, id, path%s) select rowid, uuid_blob(id), path%s from %s",
+                table,
+                list,
+                list,
+                old));
+            statement.execute("drop table " + old);
+        } finally {
+            Function.destroy(connection, "uuid_blob");
+        }
+    }
+
+    /** Move every tag column out of the images table and into a side table of
+     * its own, then rebuild the images table without them. Rowids are kept,
+     * as they are what the side tables and indices refer to. */
+    private static void migrateFromVersion1(Connection connection, String table) throws SQLException {
+        var old = table + "_v1";
+        var columns = new ArrayList<String>();
+        var types = new ArrayList<String>();
+        try(var statement = connection.createStatement();
+            var result = statement.executeQuery("pragma table_info(" + table + ")")) {
+            while(result.next()) {
+                var name = result.getString("name");
+                if(name.equals("rowid") || name.equals("id") || name.equals("path")) continue;
+
+                columns.add(name);
+                types.add(result.getString("type"));
+            }
+        }
+
+        /* Renaming the table carries its indices along with it, and their names
+         * would clash with the ones of the new table. */
+        var indices = new ArrayList<String>();
+        try(var statement = connection.prepareStatement(
+            "select name from sqlite_master where type='index' and tbl_name=? and sql is not null")) {
+            statement.setString(1, table);
+            try(var result = statement.executeQuery()) {
+                while(result.next())
+                    indices.add(result.getString(1));
+            }
+        }
+
+        try(var statement = connection.createStatement()) {
+            for(var index : indices)
+                statement.execute("drop index " + index);
+            statement.execute(String.format("alter table %s rename to %s", table, old));
+            Schema.create(connection, table);
+            statement.execute(String.format(
+                "insert into %s(rowid, id, path) select rowid, id, path from %s",
+                table,
+                old));
+
+            /* Values already in the database stay uncompressed, both forms
+             * get read just the same. */
+            for(int i = 0; i < columns.size(); ++i) {
+                Schema.createTagTable(connection, columns.get(i), types.get(i));
+                statement.execute(String.format(
+                    "insert into %s(image, value) select rowid, %s from %s where %s is not null",
+                    columns.get(i),
+                    columns.get(i),
+                    old,
+                    columns.get(i)));
+            }
+            statement.execute("drop table " + old);
+        }
+    }
+}
@@ -1,58 +1,181 @@
 package com.github.natanbc.imagesearch.db;
 
+import com.github.natanbc.imagesearch.db.pool.ConnectionHandle;
+
 import java.sql.Connection;
 import java.sql.PreparedStatement;
-import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Objects;
+import java.util.Optional;
 import java.util.Set;
 
+/** A selection of rows, in the form of a tree of predicates, which gets
+ * compiled into the {@code WHERE} clause of a single statement. That way
+ * SQLite gets to see the whole predicate at once, picking the indices that
+ * suit it best and going over every row at most once. */
 public class Selection {
-    /* What selectors should this selection run? */
-    protected final HashSet<Selector> selectors;
+    /* The predicate rows must satisfy in order to be selected. */
+    protected final Selector root;
 
-    protected Selection(HashSet<Selector> selectors) {
-        this.selectors = selectors;
+    protected Selection(Selector root) {
+        this.root = root;
     }
 
-    private static Selection fromSingleSelector(Selector s) {
-        HashSet<Selector> selectors = new HashSet<>();
-        selectors.add(s);
+    /** Compile this selection into a prepared statement.
+     * @param handle The connection the statement will be created in. The
+     *               statement comes from its cache, so it must not be closed.
+     * @param table The table that will be queried.
+     * @param tags The column types of the side tables, as given by
+     *             {@link Schema#tagTables}.
+     * @param columns The columns that will be queried.
+     * @return A prepared statement, making the selection, with all of its
+     * parameters bound.
+     * @throws SQLException When creation of the statement fails.
+     */
+    protected PreparedStatement getStatement(ConnectionHandle handle, String table, Map<String, String> tags, String columns)
+        throws SQLException {
+
+        var query = new Query(table, tags);
+        query.sql.append("select ").append(columns).append(" from ").append(table);
+
+        /* A full text match all rows have to satisfy gets to rank them. */
+        query.ranked = this.root.getRanking().orElse(null);
+        if(query.ranked != null) {
+            query.sql.append(String.format(
+                " join (select rowid as match$rowid, bm25(%s) as match$rank from %s where %s match ?) " +
+                    "on %s.rowid = match$rowid",
+                query.ranked.index, query.ranked.index, query.ranked.index,
+                table));
+            query.parameters.add(query.ranked.query);
+        }
+
+        query.sql.append(" where ");
+        this.root.compile(query);
+        if(query.ranked != null)
+            query.sql.append(" order by match$rank");
 
-        return new Selection(selectors);
+        return query.prepare(handle);
     }
 
+    /** Compile one page of this selection into a prepared statement. Pages are
+     * ordered by rowid, rather than by rank, and are picked up right after the
+     * last row of the previous page, which is cheap no matter how deep into the
+     * selection the page is.
+     * @param handle The connection the statement will be created in. The
+     *               statement comes from its cache, so it must not be closed.
+     * @param table The table that will be queried.
+     * @param tags The column types of the side tables, as given by
+     *             {@link Schema#tagTables}.
+     * @param columns The columns that will be queried, which must include the
+     *                rowid of the table, so the next page can be had.
+     * @param after The rowid of the last row of the previous page.
+     * @param size The maximum number of rows in the page.
+     * @return A prepared statement, making the selection, with all of its
+     * parameters bound.
+     * @throws SQLException When creation of the statement fails.
+     */
+    protected PreparedStatement getPageStatement(
+        ConnectionHandle handle,
+        String table,
+        Map<String, String> tags,
+        String columns,
+        long after,
+        int size) throws SQLException {
 
+        var query = new Query(table, tags);
+        query.sql.append("select ").append(columns).append(" from ").append(table).append(" where ");
+        this.root.compile(query);
+        query.sql.append(String.format(" and %s.rowid > ? order by %s.rowid limit ?", table, table));
+        query.parameters.add(after);
+        query.parameters.add(size);
 
-    /** Performs this selection.
-     * @param connection The connection that will be used for the query.
+        return query.prepare(handle);
+    }
+
+    /** Compile a search for the rows in this selection, within a range of
+     * rowids, closest to a reference into a prepared statement, which yields
+     * the rowid, the ID and the distance of at most the given number of rows,
+     * closest first. Rows with no distance come last, if at all, and should be
+     * skipped.
+     * @param handle The connection the statement will be created in. The
+     *               statement comes from its cache, so it must not be closed.
      * @param table The table that will be queried.
-     * @param columns The columns that will be queried.
-     * @return A set of {@link Selected} objects, each containing both the
-     * statement and its result set, which should be used in try-with-value
-     * statements.
-     * @throws SQLException When creation of a selection fails.
+     * @param tags The column types of the side tables, as given by
+     *             {@link Schema#tagTables}.
+     * @param distance The SQL expression for the distance of a row.
+     * @param parameters The values bound to the parameters of the expression.
+     * @param from The smallest rowid of any row in the search.
+     * @param to The largest rowid of any row in the search.
+     * @param limit The maximum number of rows, or a negative number for all.
+     * @return A prepared statement, making the search, with all of its
+     * parameters bound.
+     * @throws SQLException When creation of the statement fails.
      */
-    protected Set<Selected> perform(Connection connection, String table, String columns) throws SQLException {
-        HashSet<Selected> selected = new HashSet<>();
-        for(var selector : this.selectors) {
-            var statement = selector.getStatement(connection, table, columns);
-            statement.execute();
-            var results = statement.getResultSet();
-            selected.add(new Selected(statement, results));
-        }
+    protected PreparedStatement getNearestStatement(
+        ConnectionHandle handle,
+        String table,
+        Map<String, String> tags,
+        String distance,
+        List<Object> parameters,
+        long from,
+        long to,
+        int limit) throws SQLException {
 
-        return selected;
+        /* The distance is only ever computed once per row, SQLite keeps the
+         * closest rows in a sorter bounded by the limit. */
+        var query = new Query(table, tags);
+        query.sql.append(String.format(
+            "select %s.rowid as rowid, %s.id as id, %s as distance$ from %s where ",
+            table, table, distance, table));
+        query.parameters.addAll(parameters);
+        this.root.compile(query);
+        query.sql.append(String.format(
+            " and %s.rowid between ? and ? order by distance$ nulls last limit ?",
+            table));
+        query.parameters.add(from);
+        query.parameters.add(to);
+        query.parameters.add(limit);
+
+        return query.prepare(handle);
+    }
+
+    /** Whether the rows in this selection are ranked, in which case they can
+     * only be had in their proper order with {@link #getStatement}. */
+    protected boolean isRanked() {
+        return this.root.getRanking().isPresent();
+    }
+
+    /** Make sure every column this selection filters on is indexed, creating
+     * the indices that are missing. Selections are what drives which columns
+     * get indexed, so that we only pay for the indices we actually use.
+     * @param connection The connection the indices will be created in.
+     * @throws SQLException When creation of an index fails.
+     */
+    protected void index(Connection connection) throws SQLException {
+        for(var column : this.getColumns())
+            Schema.index(connection, Database.IMAGES_TABLE, column);
+    }
+
+    /** The columns this selection filters on that may be indexed. */
+    protected Set<String> getColumns() {
+        var columns = new HashSet<String>();
+        this.root.collectColumns(columns);
+
+        return columns;
     }
 
     /** Create a new selector, which selects any row. */
     public static Selection all() {
-        return Selection.fromSingleSelector(new All());
+        return new Selection(new All());
     }
     /** Create a new selector, which selects no row. */
     public static Selection none() {
-        return new Selection(new HashSet<>());
+        return new Selection(new None());
     }
     /** Create a new selector, which selects all rows whose value in the given
      * column equal that of the given element.
@@ -61,7 +184,7 @@ public class Selection {
      * @param value The value which will be compared against for equality.
      */
     public static Selection equals(String column, Object value) {
-        return Selection.fromSingleSelector(new Equal(column, value));
+        return new Selection(new Equal(column, value));
     }
     /** Create a new selector, which selects all rows whose value in the given
      * column differ from that of the given element.
@@ -70,7 +193,7 @@ public class Selection {
      * @param value The value which will be compared against for inequality.
      */
     public static Selection differs(String column, Object value) {
-        return Selection.fromSingleSelector(new NotEqual(column, value));
+        return new Selection(new NotEqual(column, value));
     }
     /** Create a new selector, which selects all rows whose value in the given
      * column are less than that of the given element.
@@ -79,7 +202,7 @@ public class Selection {
      * @param value The value which will be compared against for size.
      */
     public static Selection lessThan(String column, Object value) {
-        return Selection.fromSingleSelector(new Less(column, value));
+        return new Selection(new Less(column, value));
     }
     /** Create a new selector, which selects all rows whose value in the given
      * column are greater than that of the given element.
@@ -88,7 +211,7 @@ public class Selection {
      * @param value The value which will be compared against for size.
      */
     public static Selection greaterThan(String column, Object value) {
-        return Selection.fromSingleSelector(new Greater(column, value));
+        return new Selection(new Greater(column, value));
     }
     /** Create a new selector, which selects all rows whose value in the given
      * column are less or equal than that of the given element.
@@ -97,7 +220,7 @@ public class Selection {
      * @param value The value which will be compared against for size.
      */
     public static Selection lessThanOrEqualTo(String column, Object value) {
-        return Selection.fromSingleSelector(new LessOrEqual(column, value));
+        return new Selection(new LessOrEqual(column, value));
     }
     /** Create a new selector, which selects all rows whose value in the given
      * column are greater or equal than that of the given element.
@@ -106,7 +229,7 @@ public class Selection {
      * @param value The value which will be compared against for size.
      */
     public static Selection greaterThanOrEqualTo(String column, Object value) {
-        return Selection.fromSingleSelector(new GreaterOrEqual(column, value));
+        return new Selection(new GreaterOrEqual(column, value));
     }
     /** Create a new selector, which selects all rows whose value in the given
      * column and that of the given element are alike.
@@ -115,7 +238,7 @@ public class Selection {
      * @param value The value which will be compared against for likeness.
      */
     public static Selection like(String column, Object value) {
-        return Selection.fromSingleSelector(new Like(column, value));
+        return new Selection(new Like(column, value));
     }
     /** Create a new selector, which selects all rows whose value in the given
      * column is between the values of the given elements.
@@ -125,7 +248,27 @@ public class Selection {
      * @param b The value which will be used as un upper bound.
      */
     public static Selection between(String column, Object a, Object b) {
-        return Selection.fromSingleSelector(new Between(column, a, b));
+        return new Selection(new Between(column, a, b));
+    }
+    /** Create a new selector, which selects all rows whose rowid is produced by
+     * the given SQL query. This is the hook through which indices narrow
+     * selections down, so it should not be fed any user input.
+     *
+     * @param subquery A query producing a single column of rowids.
+     * @param parameters The values bound to the parameters of the query.
+     */
+    public static Selection rowidIn(String subquery, Object... parameters) {
+        return new Selection(new RowidIn(subquery, parameters));
+    }
+    /** Create a new selector, which selects all rows matching the given full
+     * text query, ranked from most to least relevant.
+     *
+     * @param index The full text table the query will be run against.
+     * @param query The FTS5 query, which may contain tokens, phrases and the
+     *              other operators supported by FTS5.
+     */
+    public static Selection matches(String index, String query) {
+        return new Selection(new Match(index, query));
     }
 
     /** Join the ranges of two selections into a new selection, leaving the
@@ -137,30 +280,173 @@ public class Selection {
      * range found in {@code other}.
      */
     public Selection join(Selection other) {
-        var selectors = new HashSet<>(this.selectors);
-        selectors.addAll(other.selectors);
+        return new Selection(new Or(this.root, other.root));
+    }
+    /** Intersect the ranges of two selections into a new selection, leaving
+     * the original ranges in both selections unchanged.
+     *
+     * @param other The second selection with which the ranges in this selection
+     *              should be intersected.
+     * @return The selection whose range is made up of the rows found both in
+     * this and in the range found in {@code other}.
+     */
+    public Selection intersect(Selection other) {
+        return new Selection(new And(this.root, other.root));
+    }
+    /** Create a new selection, whose range is made up of every row not in the
+     * range of this one. Rows whose values in the tested columns are null are
+     * not selected by either. */
+    public Selection negate() {
+        return new Selection(new Not(this.root));
+    }
 
-        return new Selection(selectors);
+    /** The statement a selection is being compiled into. */
+    protected static final class Query {
+        protected final String table;
+        protected final Map<String, String> tags;
+        protected final StringBuilder sql = new StringBuilder();
+        protected final List<Object> parameters = new ArrayList<>();
+        /* The match whose rank orders the rows, if any. */
+        protected Match ranked;
+
+        private Query(String table, Map<String, String> tags) {
+            this.table = table;
+            this.tags = tags;
+        }
+
+        /** The SQL expression for the values of a column, as they get
+         * compared. Text tags may be compressed, and have to be compared as
+         * the text they stand for. */
+        protected String column(String column) {
+            if("TEXT".equals(this.tags.get(column)))
+                return SqlFunctions.textExpression(column);
+            return column;
+        }
+
+        private PreparedStatement prepare(ConnectionHandle handle) throws SQLException {
+            var statement = handle.prepare(this.sql.toString());
+            for(int i = 0; i < this.parameters.size(); ++i)
+                statement.setObject(i + 1, Database.toSqlValue(this.parameters.get(i)));
+
+            return statement;
+        }
     }
 
     protected interface Selector {
-        /** Get the current state of the object and return a prepared statement
-         * for the selection it represents.
-         * @param connection The SQL database connection the statement must be
-         *                   created in.
-         * @param table The table that will be queried.
-         * @param columns The columns that will be queried.
-         * @return A prepared statement, making a selection.
-         * @throws SQLException When creation of the selection fails.
+        /** Append the SQL expression for this predicate to the query, along
+         * with the values of its parameters.
+         * @param query The query being compiled.
          */
-        PreparedStatement getStatement(Connection connection, String table, String columns) throws SQLException;
+        void compile(Query query);
+
+        /** Add the columns this predicate filters on, which may be indexed, to
+         * the given set. */
+        default void collectColumns(Set<String> columns) {}
+
+        /** The full text match every row selected by this predicate must
+         * satisfy, if any, which can then be used to rank them. */
+        default Optional<Match> getRanking() {
+            return Optional.empty();
+        }
     }
     /* Selector types. */
-    protected static class All implements Selector {
+    protected static final class All implements Selector {
+        @Override
+        public void compile(Query query) {
+            query.sql.append("1");
+        }
+    }
+    protected static final class None implements Selector {
+        @Override
+        public void compile(Query query) {
+            query.sql.append("0");
+        }
+    }
+    protected static final class And implements Selector {
+        private final Selector a;
+        private final Selector b;
+
+        public And(Selector a, Selector b) {
+            this.a = a;
+            this.b = b;
+        }
+
+        @Override
+        public void compile(Query query) {
+            query.sql.append('(');
+            this.a.compile(query);
+            query.sql.append(" and ");
+            this.b.compile(query);
+            query.sql.append(')');
+        }
+
+        @Override
+        public void collectColumns(Set<String> columns) {
+            this.a.collectColumns(columns);
+            this.b.collectColumns(columns);
+        }
+
+        @Override
+        public Optional<Match> getRanking() {
+            var ranking = this.a.getRanking();
+            if(ranking.isPresent()) return ranking;
+            return this.b.getRanking();
+        }
+    }
+    protected static final class Or implements Selector {
+        private final Selector a;
+        private final Selector b;
+
+        public Or(Selector a, Selector b) {
+            this.a = a;
+            this.b = b;
+        }
+
+        @Override
+        public void compile(Query query) {
+            query.sql.append('(');
+            this.a.compile(query);
+            query.sql.append(" or ");
+            this.b.compile(query);
+            query.sql.append(')');
+        }
+
+        @Override
+        public void collectColumns(Set<String> columns) {
+            this.a.collectColumns(columns);
+            this.b.collectColumns(columns);
+        }
+
         @Override
-        public PreparedStatement getStatement(Connection connection, String table, String columns) throws SQLException {
-            String query = String.format("select %s from %s", columns, table);
-            return connection.prepareStatement(query);
+        public Optional<Match> getRanking() {
+            /* Rows only need to satisfy one side, but a side that selects
+             * nothing doesn't get in the way of the other. */
+            if(this.a instanceof None) return this.b.getRanking();
+            if(this.b instanceof None) return this.a.getRanking();
+            return Optional.empty();
+        }
+    }
+    protected static final class Not implements Selector {
+        private final Selector inner;
+
+        public Not(Selector inner) {
+            this.inner = inner;
+        }
+
+        @Override
+        public void compile(Query query) {
+            query.sql.append("not ");
+            /* Rows satisfying the negated match are exactly the ones the ranking
+             * join would drop, so it must not rank them. */
+            var ranked = query.ranked;
+            query.ranked = null;
+            this.inner.compile(query);
+            query.ranked = ranked;
+        }
+
+        @Override
+        public void collectColumns(Set<String> columns) {
+            this.inner.collectColumns(columns);
         }
     }
     protected static class UnarySelector implements Selector {
@@ -175,12 +461,14 @@ public class Selection {
         }
 
         @Override
-        public PreparedStatement getStatement(Connection connection, String table, String columns) throws SQLException {
-            String query = String.format("select %s from %s where %s%s?", columns, table, this.column, this.operator);
-            var stmt = connection.prepareStatement(query);
-            stmt.setObject(1, this.target);
+        public void compile(Query query) {
+            query.sql.append(query.column(this.column)).append(this.operator).append('?');
+            query.parameters.add(this.target);
+        }
 
-            return stmt;
+        @Override
+        public void collectColumns(Set<String> columns) {
+            columns.add(this.column);
         }
 
         @Override
@@ -232,6 +520,11 @@ public class Selection {
         public Like(String column, Object target) {
             super(column, " LIKE ", target);
         }
+
+        @Override
+        public void collectColumns(Set<String> columns) {
+            /* LIKE is case insensitive, so it can't make use of an index. */
+        }
     }
     protected static final class Between implements Selector {
         private final String column;
@@ -245,14 +538,15 @@ public class Selection {
         }
 
         @Override
-        public PreparedStatement getStatement(Connection connection, String table, String columns) throws SQLException {
-            String query = String.format("select %s from %s where %s between ? and ?", columns, table, this.column);
-            var stmt = connection.prepareStatement(query);
-
-            stmt.setObject(1, this.a);
-            stmt.setObject(2, this.b);
+        public void compile(Query query) {
+            query.sql.append(query.column(this.column)).append(" between ? and ?");
+            query.parameters.add(this.a);
+            query.parameters.add(this.b);
+        }
 
-            return stmt;
+        @Override
+        public void collectColumns(Set<String> columns) {
+            columns.add(this.column);
         }
 
         @Override
@@ -271,41 +565,76 @@ public class Selection {
         }
     }
 
-    protected static class Selected implements AutoCloseable {
-        protected final PreparedStatement statement;
-        protected final ResultSet resultSet;
+    protected static final class RowidIn implements Selector {
+        private final String subquery;
+        private final Object[] parameters;
 
-        public Selected(PreparedStatement statement, ResultSet resultSet) {
-            this.statement = statement;
-            this.resultSet = resultSet;
+        public RowidIn(String subquery, Object[] parameters) {
+            this.subquery = subquery;
+            this.parameters = parameters;
         }
 
-        public PreparedStatement getStatement() {
-            return statement;
+        @Override
+        public void compile(Query query) {
+            query.sql.append(String.format("%s.rowid in (%s)", query.table, this.subquery));
+            query.parameters.addAll(Arrays.asList(this.parameters));
         }
 
-        public ResultSet getResultSet() {
-            return resultSet;
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            RowidIn rowidIn = (RowidIn) o;
+            return Objects.equals(subquery, rowidIn.subquery) &&
+                Arrays.equals(parameters, rowidIn.parameters);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(subquery, Arrays.hashCode(parameters));
+        }
+    }
+    protected static final class Match implements Selector {
+        private final String index;
+        private final String query;
+
+        public Match(String index, String query) {
+            this.index = index;
+            this.query = query;
+        }
+
+        @Override
+        public void compile(Query query) {
+            /* The ranking join already does the filtering for us. */
+            if(query.ranked == this) {
+                query.sql.append("1");
+                return;
+            }
+            query.sql.append(String.format(
+                "%s.rowid in (select rowid from %s where %s match ?)",
+                query.table,
+                this.index,
+                this.index));
+            query.parameters.add(this.query);
         }
 
         @Override
-        public void close() throws SQLException {
-            resultSet.close();
-            statement.close();
+        public Optional<Match> getRanking() {
+            return Optional.of(this);
         }
 
         @Override
         public boolean equals(Object o) {
             if (this == o) return true;
             if (o == null || getClass() != o.getClass()) return false;
-            Selected selected = (Selected) o;
-            return Objects.equals(statement, selected.statement) &&
-                Objects.equals(resultSet, selected.resultSet);
+            Match match = (Match) o;
+            return Objects.equals(index, match.index) &&
+                Objects.equals(query, match.query);
         }
 
         @Override
         public int hashCode() {
-            return Objects.hash(statement, resultSet);
+            return Objects.hash(index, query);
         }
     }
 }
@@ -0,0 +1,218 @@
+package com.github.natanbc.imagesearch.db;
+
+import com.github.darkryu550.imagesearch.Tagger;
+import org.sqlite.Function;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.Objects;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/** The functions our schema relies on, which have to be installed into every
+ * connection to the database before it gets used, along with the ones exposing
+ * the distance functions of the taggers, which get installed on demand.
+ * <br><br>
+ * Large text tags are stored deflated, as blobs, in their side tables. They
+ * are told apart from the values stored as they are by their storage class
+ * alone, so a text column may freely mix both. The view over the images shows
+ * them just as they are stored, so that the database can still be read by
+ * anything that doesn't have these functions, and they get inflated on our
+ * side instead, by {@link #fromStorage} as they are read, and by
+ * {@link #textExpression} as they are compared, only ever for the values that
+ * actually are compressed. */
+public final class SqlFunctions {
+    /** Size, in bytes of UTF-8, past which text values get compressed. */
+    public static final int COMPRESSION_THRESHOLD = 1024;
+
+    /* Fundamental datatype codes SQLite uses for its values. */
+    private static final int SQLITE_INTEGER = 1;
+    private static final int SQLITE_FLOAT = 2;
+    private static final int SQLITE_BLOB = 4;
+    private static final int SQLITE_NULL = 5;
+
+    private SqlFunctions() {}
+
+    /** Install the functions into the given connection.
+     * @throws SQLException When the functions could not be created.
+     */
+    public static void install(Connection connection) throws SQLException {
+        /* inflate(value): the text a stored value stands for. */
+        Function.create(connection, "inflate", new Function() {
+            @Override
+            protected void xFunc() throws SQLException {
+                if(value_type(0) != SQLITE_BLOB) {
+                    result(value_text(0));
+                    return;
+                }
+                result(SqlFunctions.inflate(value_blob(0)));
+            }
+        }, 1, Function.FLAG_DETERMINISTIC);
+    }
+
+    /** Install the distance function of a tagger into the given connection,
+     * under the given name. The function takes a value of the tagger, as it is
+     * read from the view, and a reference value, as it would be stored, along
+     * with an optional bound, and gives back the distance from the tag of the
+     * reference to the one of the value,
+     * or null when there is none, or when it is greater than the bound.
+     * <br><br>
+     * The reference is usually the same for every row in a statement, so the
+     * last one to have been decoded is kept around.
+     *
+     * @param connection The connection the function will be created in.
+     * @param name The name of the function.
+     * @param tagger The tagger whose distance function is being exposed.
+     * @throws SQLException When the function could not be created.
+     */
+    public static void installDistance(Connection connection, String name, Tagger tagger) throws SQLException {
+        Function.create(connection, name, new Function() {
+            private Object reference;
+            private Object referenceTag;
+
+            @Override
+            protected void xFunc() throws SQLException {
+                var args = args();
+                if(args != 2 && args != 3)
+                    throw new SQLException(name + " takes a value, a reference and an optional bound");
+
+                var value = this.value(0);
+                var reference = this.value(1);
+                if(value == null || reference == null) {
+                    result();
+                    return;
+                }
+
+                try {
+                    if(!SqlFunctions.sameValue(reference, this.reference)) {
+                        this.referenceTag = tagger.fromStorage(reference);
+                        this.reference = reference;
+                    }
+
+                    /* Distances are taken from the reference to the value. */
+                    var tag = SqlFunctions.fromStorage(tagger, value);
+                    var distance = args == 3 && value_type(2) != SQLITE_NULL
+                        ? tagger.getTagDistance(this.referenceTag, tag, value_double(2))
+                        : tagger.getTagDistance(this.referenceTag, tag);
+
+                    if(distance.isPresent())
+                        result(distance.get());
+                    else
+                        result();
+                } catch(IllegalArgumentException e) {
+                    throw new SQLException("Could not compute distance: " + e.getMessage(), e);
+                }
+            }
+
+            private Object value(int index) throws SQLException {
+                return switch(value_type(index)) {
+                    case SQLITE_INTEGER -> value_long(index);
+                    case SQLITE_FLOAT -> value_double(index);
+                    case SQLITE_BLOB -> value_blob(index);
+                    case SQLITE_NULL -> null;
+                    default -> value_text(index);
+                };
+            }
+        }, -1, Function.FLAG_DETERMINISTIC);
+    }
+
+    /** Whether the values of a tagger are stored as text, in which case the
+     * larger ones get compressed. */
+    public static boolean isText(Tagger tagger) {
+        return Schema.columnType(tagger.getType().getName()).equals("TEXT");
+    }
+
+    /** Convert a value read back from the database into the tag it stands
+     * for, inflating it first if it was compressed.
+     * @throws IllegalArgumentException When the value is not a valid value of
+     * the tagger, or not valid compressed text.
+     */
+    public static Object fromStorage(Tagger tagger, Object value) {
+        if(value instanceof byte[] && SqlFunctions.isText(tagger)) {
+            try {
+                value = SqlFunctions.inflate((byte[]) value);
+            } catch(SQLException e) {
+                throw new IllegalArgumentException(e.getMessage(), e);
+            }
+        }
+        return tagger.fromStorage(value);
+    }
+
+    /** The text a value read back from a text column stands for, inflating it
+     * if it was compressed, or nothing, if there is no value.
+     * @throws SQLException When the value is not valid compressed text.
+     */
+    public static String text(Object value) throws SQLException {
+        if(value == null)
+            return null;
+        if(value instanceof byte[])
+            return SqlFunctions.inflate((byte[]) value);
+        return value.toString();
+    }
+
+    /** The SQL expression for the text the values in a text column stand for,
+     * which only calls on {@code inflate} for the ones that were compressed. */
+    public static String textExpression(String column) {
+        return String.format("(case when typeof(%1$s) = 'blob' then inflate(%1$s) else %1$s end)", column);
+    }
+
+    private static boolean sameValue(Object a, Object b) {
+        if(a instanceof byte[] && b instanceof byte[])
+            return Arrays.equals((byte[]) a, (byte[]) b);
+        return Objects.equals(a, b);
+    }
+
+    /** Convert a text value into the value it should be stored as, which is
+     * either the text itself or, if it is large enough for it to be worth it,
+     * its deflated UTF-8 encoding. */
+    public static Object compress(String text) {
+        var bytes = text.getBytes(StandardCharsets.UTF_8);
+        if(bytes.length < COMPRESSION_THRESHOLD)
+            return text;
+
+        var deflater = new Deflater(Deflater.BEST_SPEED);
+        deflater.setInput(bytes);
+        deflater.finish();
+
+        var output = new ByteArrayOutputStream(bytes.length / 2);
+        var buffer = new byte[4096];
+        while(!deflater.finished()) {
+            var count = deflater.deflate(buffer);
+            output.write(buffer, 0, count);
+        }
+        deflater.end();
+
+        /* Text that doesn't compress well is better left readable. */
+        if(output.size() >= bytes.length)
+            return text;
+        return output.toByteArray();
+    }
+
+    /** Recover the text a deflated value was created from.
+     * @throws SQLException When the value is not valid deflated data.
+     */
+    public static String inflate(byte[] value) throws SQLException {
+        var inflater = new Inflater();
+        inflater.setInput(value);
+
+        var output = new ByteArrayOutputStream(value.length * 3);
+        var buffer = new byte[4096];
+        try {
+            while(!inflater.finished()) {
+                var count = inflater.inflate(buffer);
+                if(count == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+                    throw new SQLException("Truncated compressed value");
+                output.write(buffer, 0, count);
+            }
+        } catch(DataFormatException e) {
+            throw new SQLException("Invalid compressed value", e);
+        } finally {
+            inflater.end();
+        }
+        return output.toString(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,62 @@
+package com.github.natanbc.imagesearch.db;
+
+import com.github.natanbc.imagesearch.db.pool.ConnectionHandle;
+
+import java.sql.SQLException;
+
+/** An auxiliary structure built over the values of a tag, which gets kept in
+ * sync with them by every {@link Pass} that runs the tagger it indexes. */
+public interface TagIndex {
+    /** Create the structures backing this index, if they don't exist yet,
+     * filling them in with the values already in the database.
+     *
+     * @param handle The connection the structures will be created in.
+     * @param table The view holding the images along with their tags.
+     * @param column The column holding the values of the indexed tag.
+     * @throws SQLException Upon failure of a SQL operation.
+     */
+    void create(ConnectionHandle handle, String table, String column) throws SQLException;
+
+    /** Update the index after the tag of an image has been changed, within
+     * the transaction changing it. Indices kept outside of the database must
+     * hold on to the change until {@link #committed} gets called, as the
+     * transaction may yet be rolled back.
+     *
+     * @param handle The connection the index will be updated in. Statements
+     *               should be prepared through its cache.
+     * @param image The rowid of the image whose tag has been changed.
+     * @param value The new value of the tag, as stored in the database, or
+     *              {@code null}, if the image no longer has the tag.
+     * @throws SQLException Upon failure of a SQL operation.
+     */
+    void update(ConnectionHandle handle, long image, Object value) throws SQLException;
+
+    /** Called once the transaction every update since the last call to this,
+     * or to {@link #rolledBack()}, was made in has been committed, while the
+     * writer is still held, so that changes reach indices kept outside of the
+     * database in the same order as they reached the database.
+     *
+     * @param handle The writer the transaction was made in, no longer in a
+     *               transaction.
+     * @param generation The generation of the tag the transaction brought it
+     *                   up to, as given by {@link Schema#nextGeneration}.
+     * @throws SQLException Upon failure of a SQL operation, or of a write to
+     * an index kept outside of the database, in which case that index is out
+     * of date until it gets created again.
+     */
+    default void committed(ConnectionHandle handle, long generation) throws SQLException {}
+
+    /** Called once the transaction every update since the last call to this,
+     * or to {@link #committed}, was made in has been rolled back, so that any
+     * change held on to can be forgotten. */
+    default void rolledBack() {}
+
+    /** Throw out everything the index has built, after every value of the tag
+     * has been thrown out, for having been computed by another version of its
+     * tagger. Only ever called after {@link #create}.
+     *
+     * @param handle The connection the index will be emptied in.
+     * @throws SQLException Upon failure of a SQL operation.
+     */
+    default void invalidate(ConnectionHandle handle) throws SQLException {}
+}
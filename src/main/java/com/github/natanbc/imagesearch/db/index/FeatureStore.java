@@ -0,0 +1,219 @@
+package com.github.natanbc.imagesearch.db.index;
+
+import com.github.darkryu550.imagesearch.VectorTagger;
+import com.github.natanbc.imagesearch.db.Neighbor;
+import com.github.natanbc.imagesearch.db.Schema;
+import com.github.natanbc.imagesearch.db.TagIndex;
+import com.github.natanbc.imagesearch.db.pool.ConnectionHandle;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/** A columnar copy of the values of a vector tagger, kept in a file of its own,
+ * next to the database, which is mapped into memory.
+ * <br><br>
+ * Every image gets a slot of a fixed size in the file, at an offset given by
+ * its rowid, holding its state followed by the elements of its vector, as
+ * little-endian floats. Scans over the vectors of the images then go over
+ * contiguous memory, which lives in the page cache of the operating system
+ * rather than in the heap, without going through the database at all.
+ * <br><br>
+ * The store only ever grows. Changes only get written to it once the
+ * transaction making them has been committed, after which it takes on the
+ * generation the transaction brought the values up to. It gets rebuilt from
+ * the database whenever its generation disagrees with the one there, which is
+ * what happens when the file is new, or when the program stopped before the
+ * changes of a transaction made it into the file. */
+public class FeatureStore implements TagIndex {
+    /* "FEAT", in ASCII. */
+    private static final int MAGIC = 0x46454154;
+    private static final int VERSION = 3;
+
+    protected final VectorTagger tagger;
+    protected final SlotFile slots;
+
+    /* Where the values of the tagger are, which is only known once created. */
+    protected String column;
+    /* Changes made by the transaction in progress, in the order they were
+     * made, which only get written once it is committed. */
+    protected final LinkedHashMap<Long, Object> pending;
+
+    /** Create a new feature store, backed by the given file.
+     * @param file The file holding the vectors, which gets created if it
+     *             doesn't exist yet.
+     * @param tagger The tagger whose values are being stored.
+     */
+    public FeatureStore(Path file, VectorTagger tagger) {
+        this.tagger = tagger;
+        /* The state takes up a whole float, to keep the vector aligned. */
+        this.slots = new SlotFile(file, MAGIC, (tagger.getDimensions() + 1) * Float.BYTES);
+        this.pending = new LinkedHashMap<>();
+    }
+
+    public Path getFile() {
+        return slots.getFile();
+    }
+
+    public VectorTagger getTagger() {
+        return tagger;
+    }
+
+    /** The number of rowids there currently are slots for. */
+    public long getCapacity() {
+        return this.slots.getCapacity();
+    }
+
+    @Override
+    public synchronized void create(ConnectionHandle handle, String table, String column) throws SQLException {
+        this.column = column;
+        this.pending.clear();
+        this.open();
+
+        /* The generation gets read before the values, so that values changed
+         * in between get them rebuilt again, rather than taken as current. */
+        var generation = Schema.generation(handle.getConnection(), column);
+        if(this.slots.matches(VERSION, generation, this.tagger.getDimensions()))
+            return;
+
+        this.slots.reset(VERSION, this.tagger.getDimensions());
+
+        /* Fill it back in with all of the values already in the database. */
+        var query = String.format(
+            "select rowid, %s from %s where %s is not null",
+            column,
+            table,
+            column);
+        try(var select = handle.getConnection().createStatement();
+            var result = select.executeQuery(query)) {
+            while(result.next())
+                this.put(result.getLong(1), result.getObject(2));
+        }
+        this.slots.setGeneration(generation);
+    }
+
+    @Override
+    public synchronized void update(ConnectionHandle handle, long image, Object value) {
+        this.pending.put(image, value);
+    }
+
+    @Override
+    public synchronized void committed(ConnectionHandle handle, long generation) throws SQLException {
+        try {
+            this.open();
+            for(var entry : this.pending.entrySet())
+                this.put(entry.getKey(), entry.getValue());
+        } finally {
+            this.pending.clear();
+        }
+        this.slots.setGeneration(generation);
+    }
+
+    @Override
+    public synchronized void rolledBack() {
+        this.pending.clear();
+    }
+
+    @Override
+    public synchronized void invalidate(ConnectionHandle handle) throws SQLException {
+        this.pending.clear();
+        this.slots.reset(VERSION, this.tagger.getDimensions());
+        this.slots.setGeneration(Schema.generation(handle.getConnection(), this.column));
+    }
+
+    /** Search a range of rowids for the vectors closest to the given one.
+     *
+     * @param vector The vector the others are compared against.
+     * @param limit The maximum number of images, or a negative number for all.
+     * @param bound The largest distance of any image that will be returned.
+     * @param from The smallest rowid of any image in the search.
+     * @param to The largest rowid of any image in the search.
+     * @return The closest images, closest first, without their IDs, which
+     * the store knows nothing about.
+     */
+    public List<Neighbor> nearest(float[] vector, int limit, double bound, long from, long to) {
+        if(vector.length != this.tagger.getDimensions())
+            throw new IllegalArgumentException("Expected a vector with "
+                + this.tagger.getDimensions() + " dimensions");
+
+        if(limit == 0)
+            return new ArrayList<>();
+
+        var segments = this.slots.getSegments();
+        var rowsPerSegment = this.slots.getRowsPerSegment();
+        from = Math.max(from, 0);
+        to = Math.min(to, (long) segments.length * rowsPerSegment - 1);
+
+        /* Keep the farthest of the closest images on top, so that it can be
+         * given up as soon as a closer one comes along. */
+        var closest = new PriorityQueue<Neighbor>(Neighbor.CLOSEST_FIRST.reversed());
+        var unbounded = new ArrayList<Neighbor>();
+        var limitBound = bound;
+
+        for(var rowid = from; rowid <= to; ++rowid) {
+            var segment = segments[(int) (rowid / rowsPerSegment)];
+            var offset = this.slots.offset(rowid);
+            if(!SlotFile.isPresent(segment, offset)) continue;
+
+            var distance = this.tagger.getVectorDistance(vector, segment, offset + Float.BYTES);
+            if(distance > limitBound || !SlotFile.wasPresent(segment, offset)) continue;
+
+            var neighbor = new Neighbor(rowid, null, distance);
+            if(limit < 0) {
+                unbounded.add(neighbor);
+                continue;
+            }
+
+            closest.add(neighbor);
+            if(closest.size() > limit)
+                closest.poll();
+            if(closest.size() == limit)
+                limitBound = Math.min(bound, closest.peek().getDistance());
+        }
+
+        var neighbors = limit < 0 ? unbounded : new ArrayList<>(closest);
+        neighbors.sort(Neighbor.CLOSEST_FIRST);
+        return neighbors;
+    }
+
+    /** Write the value of an image into its slot, growing the file if needed. */
+    protected void put(long image, Object value) throws SQLException {
+        var state = SlotFile.ABSENT;
+        float[] vector = null;
+        if(value != null) {
+            try {
+                vector = this.tagger.toVector(this.tagger.fromStorage(value));
+                state = SlotFile.PRESENT;
+            } catch(IllegalArgumentException e) {
+                state = SlotFile.REJECTED;
+            }
+        }
+
+        try {
+            var segment = this.slots.segment(image);
+            var offset = this.slots.offset(image);
+            if(vector != null) {
+                /* Scans must not read the old vector while it's half replaced. */
+                this.slots.setState(image, SlotFile.ABSENT);
+                for(int i = 0; i < vector.length; ++i)
+                    segment.putFloat(offset + (i + 1) * Float.BYTES, vector[i]);
+            }
+            this.slots.setState(image, state);
+        } catch(IOException e) {
+            throw new SQLException("Could not write to the feature store at " + this.getFile(), e);
+        }
+    }
+
+    /** Open the file, if that hasn't been done yet. */
+    protected void open() throws SQLException {
+        try {
+            this.slots.open();
+        } catch(IOException e) {
+            throw new SQLException("Could not open the feature store at " + this.getFile(), e);
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package com.github.natanbc.imagesearch.db.index;
+
+import com.github.natanbc.imagesearch.db.SqlFunctions;
+import com.github.natanbc.imagesearch.db.TagIndex;
+import com.github.natanbc.imagesearch.db.pool.ConnectionHandle;
+
+import java.sql.SQLException;
+
+/** Keeps the values of a text tag in an FTS5 virtual table, keyed by the rowid
+ * of the images they belong to, so that they can be searched by token and by
+ * phrase, rather than with a {@code LIKE} over every row. */
+public class FullTextIndex implements TagIndex {
+    protected final String table;
+
+    /** Create a new full text index, backed by the given virtual table. */
+    public FullTextIndex(String table) {
+        this.table = table;
+    }
+
+    public String getTable() {
+        return table;
+    }
+
+    @Override
+    public void create(ConnectionHandle handle, String images, String column) throws SQLException {
+        var connection = handle.getConnection();
+        try(var statement = connection.prepareStatement(
+            "select count(*) from sqlite_master where type='table' and name=?")) {
+            statement.setString(1, this.table);
+            try(var result = statement.executeQuery()) {
+                result.next();
+                if(result.getInt(1) > 0) return;
+            }
+        }
+
+        try(var statement = connection.createStatement()) {
+            statement.execute(String.format(
+                "create virtual table %s using fts5(text)",
+                this.table));
+
+            /* Index all of the values already in the database, as the text
+             * they stand for, rather than as they are stored. */
+            statement.execute(String.format(
+                "insert into %s(rowid, text) select rowid, %s from %s where %s is not null",
+                this.table,
+                SqlFunctions.textExpression(column),
+                images,
+                column));
+        }
+    }
+
+    @Override
+    public void invalidate(ConnectionHandle handle) throws SQLException {
+        try(var statement = handle.getConnection().createStatement()) {
+            statement.execute("delete from " + this.table);
+        }
+    }
+
+    @Override
+    public void update(ConnectionHandle handle, long image, Object value) throws SQLException {
+        var delete = handle.prepare("delete from " + this.table + " where rowid=?");
+        delete.setLong(1, image);
+        delete.execute();
+        if(value == null) return;
+
+        var insert = handle.prepare("insert into " + this.table + "(rowid, text) values (?, ?)");
+        insert.setLong(1, image);
+        insert.setString(2, value.toString());
+        insert.execute();
+    }
+}
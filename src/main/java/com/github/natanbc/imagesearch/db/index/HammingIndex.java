@@ -0,0 +1,169 @@
+package com.github.natanbc.imagesearch.db.index;
+
+import com.github.natanbc.imagesearch.db.BucketIndex;
+import com.github.natanbc.imagesearch.db.RadiusIndex;
+import com.github.natanbc.imagesearch.db.Selection;
+import com.github.natanbc.imagesearch.db.pool.ConnectionHandle;
+
+import java.sql.SQLException;
+import java.util.Optional;
+
+/** A multi-index hashing index over 64-bit hashes, which finds the images
+ * whose hashes are within a given Hamming distance of a given one.
+ * <br><br>
+ * Hashes are split up into {@value #CHUNKS} chunks of {@value #CHUNK_BITS}
+ * bits, every one of which is indexed on its own. By the pigeonhole
+ * principle, two hashes within {@code r} bits of one another have at least
+ * one chunk within {@code r / 4} bits of one another, so only the images with
+ * a chunk that close to one of the query's need to be looked at, and those can
+ * be looked up by enumerating every value that close to its chunks. */
+public class HammingIndex implements RadiusIndex, BucketIndex {
+    /** Number of chunks hashes get split into. */
+    public static final int CHUNKS = 4;
+    /** Number of bits in every chunk. */
+    public static final int CHUNK_BITS = Long.SIZE / CHUNKS;
+    /* Largest distance between chunks that's still worth enumerating. */
+    private static final int MAX_CHUNK_DISTANCE = 3;
+
+    protected final String table;
+
+    /** Create a new Hamming index, backed by the given table. */
+    public HammingIndex(String table) {
+        this.table = table;
+    }
+
+    @Override
+    public String getTable() {
+        return table;
+    }
+
+    /** Buckets hold the images sharing a whole chunk, which are all of the
+     * ones within 3 bits of one another, and more. */
+    @Override
+    public String getBucketColumns() {
+        return "key";
+    }
+
+    @Override
+    public void create(ConnectionHandle handle, String images, String column) throws SQLException {
+        var connection = handle.getConnection();
+        try(var statement = connection.prepareStatement(
+            "select count(*) from sqlite_master where type='table' and name=?")) {
+            statement.setString(1, this.table);
+            try(var result = statement.executeQuery()) {
+                result.next();
+                if(result.getInt(1) > 0) return;
+            }
+        }
+
+        /* Keys are chunk values, tagged with the index of their chunk. */
+        try(var statement = connection.createStatement()) {
+            statement.execute(String.format(
+                "create table %s(" +
+                    "key INTEGER NOT NULL, " +
+                    "image INTEGER NOT NULL, " +
+                    "primary key(key, image)) without rowid",
+                this.table));
+            statement.execute(String.format(
+                "create index %s_image on %s(image)",
+                this.table,
+                this.table));
+        }
+
+        /* Index all of the values already in the database. */
+        var query = String.format(
+            "select rowid, %s from %s where %s is not null",
+            column,
+            images,
+            column);
+        try(var select = connection.createStatement();
+            var result = select.executeQuery(query)) {
+            while(result.next())
+                this.insert(handle, result.getLong(1), result.getObject(2));
+        }
+    }
+
+    @Override
+    public void invalidate(ConnectionHandle handle) throws SQLException {
+        try(var statement = handle.getConnection().createStatement()) {
+            statement.execute("delete from " + this.table);
+        }
+    }
+
+    @Override
+    public void update(ConnectionHandle handle, long image, Object value) throws SQLException {
+        var delete = handle.prepare("delete from " + this.table + " where image=?");
+        delete.setLong(1, image);
+        delete.execute();
+        if(value != null)
+            this.insert(handle, image, value);
+    }
+
+    protected void insert(ConnectionHandle handle, long image, Object value) throws SQLException {
+        /* Values that aren't hashes can't be within any distance of one. */
+        if(!(value instanceof Number))
+            return;
+        var hash = ((Number) value).longValue();
+
+        var insert = handle.prepare("insert into " + this.table + "(key, image) values (?, ?)");
+        for(int chunk = 0; chunk < CHUNKS; ++chunk) {
+            insert.setLong(1, HammingIndex.key(chunk, HammingIndex.chunk(hash, chunk)));
+            insert.setLong(2, image);
+            insert.addBatch();
+        }
+        insert.executeBatch();
+    }
+
+    @Override
+    public Optional<Selection> candidates(Object tag, double radius) {
+        if(!(tag instanceof Number))
+            throw new IllegalArgumentException("Expected an integer hash");
+        return this.candidates(((Number) tag).longValue(), (int) Math.floor(radius));
+    }
+
+    /** Create a selection of all the images whose hash may be within the given
+     * number of bits of the given hash.
+     *
+     * @param hash The hash the images are being compared to.
+     * @param maxDistance The maximum Hamming distance.
+     * @return The selection of candidates, or nothing, if the distance is too
+     * large for the index to be of any help.
+     */
+    public Optional<Selection> candidates(long hash, int maxDistance) {
+        var chunkDistance = Math.max(maxDistance, 0) / CHUNKS;
+        if(chunkDistance > MAX_CHUNK_DISTANCE)
+            return Optional.empty();
+
+        /* Hand the keys over as a single JSON array, which saves us from
+         * running into the limit on the number of bound parameters. */
+        var json = new StringBuilder("[");
+        for(int chunk = 0; chunk < CHUNKS; ++chunk)
+            HammingIndex.appendNeighbors(json, chunk, HammingIndex.chunk(hash, chunk), 0, chunkDistance);
+        json.append(']');
+
+        var subquery = String.format(
+            "select distinct h.image from %s h join json_each(?) q on h.key = q.value",
+            this.table);
+        return Optional.of(Selection.rowidIn(subquery, json.toString()));
+    }
+
+    /** Append the keys of every value within the given distance of a chunk,
+     * flipping only the bits from the given one up, so that no value is ever
+     * appended twice. */
+    private static void appendNeighbors(StringBuilder target, int chunk, int value, int from, int distance) {
+        if(target.length() > 1) target.append(',');
+        target.append(HammingIndex.key(chunk, value));
+        if(distance == 0) return;
+
+        for(int bit = from; bit < CHUNK_BITS; ++bit)
+            HammingIndex.appendNeighbors(target, chunk, value ^ (1 << bit), bit + 1, distance - 1);
+    }
+
+    private static int chunk(long hash, int chunk) {
+        return (int) ((hash >>> (chunk * CHUNK_BITS)) & ((1L << CHUNK_BITS) - 1));
+    }
+
+    private static long key(int chunk, int value) {
+        return ((long) chunk << CHUNK_BITS) | value;
+    }
+}
@@ -0,0 +1,200 @@
+package com.github.natanbc.imagesearch.db.index;
+
+import com.github.darkryu550.imagesearch.VectorTagger;
+import com.github.natanbc.imagesearch.db.BucketIndex;
+import com.github.natanbc.imagesearch.db.Selection;
+import com.github.natanbc.imagesearch.db.pool.ConnectionHandle;
+
+import java.sql.SQLException;
+import java.util.Random;
+
+/** A locality-sensitive hashing index over the values of a vector tagger,
+ * which finds the images whose vectors point in about the same direction as a
+ * given one, without comparing it against all of them.
+ * <br><br>
+ * Vectors get scaled to sum up to one, so that the same image at another size
+ * looks the same, and centered around the uniform vector, after which they are
+ * hashed by the side of a number of random hyperplanes they fall on. Those bits
+ * are grouped into bands, each of which puts the image into one bucket. Two
+ * vectors at an angle {@code t} from one another share any given bit with a
+ * probability of {@code 1 - t / pi}, so near-duplicates are all but certain
+ * to share at least one bucket, while unrelated images rarely do.
+ * <br><br>
+ * Buckets are kept in a table of the database, with a row for every band of
+ * every image. The index only ever gives out candidates, which need to have
+ * their actual distances checked. */
+public class LshIndex implements BucketIndex {
+    /* Seed of the hyperplanes, which must never change for an existing table. */
+    private static final long SEED = 0x4c5348;
+
+    protected final String table;
+    protected final VectorTagger tagger;
+    protected final int bands;
+    protected final int bits;
+    /* The normals of the hyperplanes, bits of every band one after the other. */
+    protected final float[][] planes;
+
+    /** Create a new LSH index, backed by the given table.
+     * @param table The table holding the buckets.
+     * @param tagger The tagger whose values are being hashed.
+     * @param bands The number of bands, which is the number of buckets every
+     *              image is in. More bands find more near-duplicates.
+     * @param bits The number of bits in every band. More bits make for fewer
+     *             collisions between unrelated images.
+     */
+    public LshIndex(String table, VectorTagger tagger, int bands, int bits) {
+        if(bands < 1)
+            throw new IllegalArgumentException("At least one band is needed");
+        if(bits < 1 || bits > Long.SIZE - 1)
+            throw new IllegalArgumentException("Bands can't have " + bits + " bits");
+
+        this.table = table;
+        this.tagger = tagger;
+        this.bands = bands;
+        this.bits = bits;
+
+        var random = new Random(SEED);
+        this.planes = new float[bands * bits][tagger.getDimensions()];
+        for(var plane : this.planes)
+            for(int i = 0; i < plane.length; ++i)
+                plane[i] = (float) random.nextGaussian();
+    }
+
+    @Override
+    public String getTable() {
+        return table;
+    }
+
+    @Override
+    public String getBucketColumns() {
+        return "band, bucket";
+    }
+
+    @Override
+    public void create(ConnectionHandle handle, String images, String column) throws SQLException {
+        var connection = handle.getConnection();
+        try(var statement = connection.prepareStatement(
+            "select count(*) from sqlite_master where type='table' and name=?")) {
+            statement.setString(1, this.table);
+            try(var result = statement.executeQuery()) {
+                result.next();
+                if(result.getInt(1) > 0) return;
+            }
+        }
+
+        try(var statement = connection.createStatement()) {
+            statement.execute(String.format(
+                "create table %s(" +
+                    "band INTEGER NOT NULL, " +
+                    "bucket INTEGER NOT NULL, " +
+                    "image INTEGER NOT NULL, " +
+                    "primary key(band, bucket, image)) without rowid",
+                this.table));
+            statement.execute(String.format(
+                "create index %s_image on %s(image)",
+                this.table,
+                this.table));
+        }
+
+        /* Index all of the values already in the database. */
+        var query = String.format(
+            "select rowid, %s from %s where %s is not null",
+            column,
+            images,
+            column);
+        try(var select = connection.createStatement();
+            var result = select.executeQuery(query)) {
+            while(result.next())
+                this.insert(handle, result.getLong(1), result.getObject(2));
+        }
+    }
+
+    @Override
+    public void invalidate(ConnectionHandle handle) throws SQLException {
+        try(var statement = handle.getConnection().createStatement()) {
+            statement.execute("delete from " + this.table);
+        }
+    }
+
+    @Override
+    public void update(ConnectionHandle handle, long image, Object value) throws SQLException {
+        var delete = handle.prepare("delete from " + this.table + " where image=?");
+        delete.setLong(1, image);
+        delete.execute();
+        if(value != null)
+            this.insert(handle, image, value);
+    }
+
+    protected void insert(ConnectionHandle handle, long image, Object value) throws SQLException {
+        long[] buckets;
+        try {
+            buckets = this.buckets(this.tagger.toVector(this.tagger.fromStorage(value)));
+        } catch(IllegalArgumentException e) {
+            /* Values that aren't vectors can't collide with anything. */
+            return;
+        }
+
+        var insert = handle.prepare("insert into " + this.table + "(band, bucket, image) values (?, ?, ?)");
+        for(int band = 0; band < buckets.length; ++band) {
+            insert.setInt(1, band);
+            insert.setLong(2, buckets[band]);
+            insert.setLong(3, image);
+            insert.addBatch();
+        }
+        insert.executeBatch();
+    }
+
+    /** Create a selection of all the images that share a bucket with the
+     * given tag, which are the ones likely to be its near-duplicates.
+     *
+     * @param tag The tag the images are being compared to.
+     * @throws IllegalArgumentException If the tag isn't a vector of the tagger.
+     * @return The selection of candidates.
+     */
+    public Selection candidates(Object tag) {
+        var buckets = this.buckets(this.tagger.toVector(tag));
+
+        /* The buckets go in as a JSON array, indexed by band. */
+        var json = new StringBuilder("[");
+        for(var bucket : buckets) {
+            if(json.length() > 1) json.append(',');
+            json.append(bucket);
+        }
+        json.append(']');
+
+        var subquery = String.format(
+            "select distinct l.image from %s l join json_each(?) q " +
+                "on l.band = q.key and l.bucket = q.value",
+            this.table);
+        return Selection.rowidIn(subquery, json.toString());
+    }
+
+    /** Hash a vector into the bucket it falls in for every band. */
+    public long[] buckets(float[] vector) {
+        if(vector.length != this.tagger.getDimensions())
+            throw new IllegalArgumentException("Expected a vector with "
+                + this.tagger.getDimensions() + " dimensions");
+
+        var sum = 0.0;
+        for(var value : vector)
+            sum += Math.abs(value);
+
+        var centered = new double[vector.length];
+        for(int i = 0; i < vector.length; ++i)
+            centered[i] = (sum == 0 ? 0 : vector[i] / sum) - 1.0 / vector.length;
+
+        var buckets = new long[this.bands];
+        for(int band = 0; band < this.bands; ++band) {
+            var bucket = 0L;
+            for(int bit = 0; bit < this.bits; ++bit) {
+                var plane = this.planes[band * this.bits + bit];
+                var dot = 0.0;
+                for(int i = 0; i < centered.length; ++i)
+                    dot += centered[i] * plane[i];
+                bucket = (bucket << 1) | (dot >= 0 ? 1 : 0);
+            }
+            buckets[band] = bucket;
+        }
+        return buckets;
+    }
+}
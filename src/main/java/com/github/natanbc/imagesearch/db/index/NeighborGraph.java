@@ -0,0 +1,382 @@
+package com.github.natanbc.imagesearch.db.index;
+
+import com.github.darkryu550.imagesearch.Tagger;
+import com.github.natanbc.imagesearch.db.Neighbor;
+import com.github.natanbc.imagesearch.db.TagIndex;
+import com.github.natanbc.imagesearch.db.pool.ConnectionHandle;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+/** The k-nearest neighbor graph of the values of a tagger, which holds the
+ * closest images to every image, so that they can be looked up instead of
+ * being searched for.
+ * <br><br>
+ * The graph is kept in a table of the database, with a row for every one of
+ * the closest images to every image, in order. It starts out empty, and has to
+ * be built as a whole first, which {@link com.github.natanbc.imagesearch.db.Database}
+ * does. From then on, every image that gets a new value is marked as stale,
+ * in a table of its own, within the transaction giving it the value, which
+ * is all that happens until the transaction is committed. Only then do the
+ * stale images get their closest images found, by a single scan over all of
+ * the others, which in turn get them added to their own closest images, if
+ * they are closer than the farthest of them, all in a transaction of its own.
+ * Images whose closest images lose one of them, or see one of them move away,
+ * may be missing the image that should take its place, so they are marked as
+ * stale too, and get their closest images found again, in another scan.
+ * <br><br>
+ * The closest images of a stale image can't be trusted, and neither can the
+ * closest images of any other image, as far as stale images go, which is why
+ * they are marked in the database, where anyone looking the graph up can see
+ * them. Images can be left stale by a failure, and only get found again the
+ * next time the graph is created. */
+public class NeighborGraph implements TagIndex {
+    protected final String table;
+    protected final String stale;
+    protected final Tagger tagger;
+    protected final int neighbors;
+
+    /* Where the values of the tagger are, which is only known once created,
+     * and the images marked as stale by the transaction in progress. */
+    protected volatile String images;
+    protected volatile String column;
+    protected final Set<Long> pending;
+
+    /** Create a new neighbor graph, backed by the given table.
+     * @param table The table holding the graph.
+     * @param tagger The tagger whose values are being compared.
+     * @param neighbors The number of closest images kept for every image.
+     */
+    public NeighborGraph(String table, Tagger tagger, int neighbors) {
+        if(neighbors < 1)
+            throw new IllegalArgumentException("At least one neighbor is needed");
+
+        this.table = table;
+        this.stale = table + "_stale";
+        this.tagger = tagger;
+        this.neighbors = neighbors;
+        this.pending = new LinkedHashSet<>();
+    }
+
+    public String getTable() {
+        return table;
+    }
+
+    /** The table holding the rowids of the stale images. */
+    public String getStaleTable() {
+        return stale;
+    }
+
+    public Tagger getTagger() {
+        return tagger;
+    }
+
+    /** The number of closest images kept for every image. */
+    public int getNeighbors() {
+        return neighbors;
+    }
+
+    @Override
+    public synchronized void create(ConnectionHandle handle, String images, String column) throws SQLException {
+        this.images = images;
+        this.column = column;
+        this.pending.clear();
+
+        try(var statement = handle.getConnection().createStatement()) {
+            statement.execute(String.format(
+                "create table if not exists %s(" +
+                    "image INTEGER NOT NULL, " +
+                    "rank INTEGER NOT NULL, " +
+                    "neighbor INTEGER NOT NULL, " +
+                    "distance REAL NOT NULL, " +
+                    "primary key(image, rank)) without rowid",
+                this.table));
+            statement.execute(String.format(
+                "create index if not exists %s_neighbor on %s(neighbor)",
+                this.table,
+                this.table));
+            statement.execute(String.format(
+                "create table if not exists %s(image INTEGER PRIMARY KEY)",
+                this.stale));
+        }
+
+        /* Whatever was left stale by a failure gets found again. */
+        var left = new LinkedHashSet<Long>();
+        try(var statement = handle.getConnection().createStatement();
+            var result = statement.executeQuery("select image from " + this.stale)) {
+            while(result.next())
+                left.add(result.getLong(1));
+        }
+        if(!left.isEmpty())
+            this.repair(handle, left);
+    }
+
+    /** Whether the graph has been built. */
+    public boolean isBuilt(ConnectionHandle handle) throws SQLException {
+        var statement = handle.prepare("select exists(select 1 from " + this.table + ")");
+        try(var result = statement.executeQuery()) {
+            result.next();
+            return result.getBoolean(1);
+        }
+    }
+
+    @Override
+    public synchronized void update(ConnectionHandle handle, long image, Object value) throws SQLException {
+        /* Keeping an unbuilt graph up to date would only build it bit by bit,
+         * at the cost of a scan for every image. */
+        if(!this.isBuilt(handle)) return;
+
+        var mark = handle.prepare("insert or ignore into " + this.stale + "(image) values (?)");
+        mark.setLong(1, image);
+        mark.execute();
+        this.pending.add(image);
+    }
+
+    @Override
+    public synchronized void committed(ConnectionHandle handle, long generation) throws SQLException {
+        if(this.pending.isEmpty()) return;
+        var images = new LinkedHashSet<>(this.pending);
+        this.pending.clear();
+        this.repair(handle, images);
+    }
+
+    @Override
+    public synchronized void rolledBack() {
+        this.pending.clear();
+    }
+
+    /** Find the closest images to the given images again, which takes them,
+     * along with every image they leave stale, out of the stale images, in a
+     * single transaction. */
+    protected void repair(ConnectionHandle handle, Set<Long> images) throws SQLException {
+        var connection = handle.getConnection();
+        connection.setAutoCommit(false);
+        try {
+            var unmark = handle.prepare("delete from " + this.stale + " where image=?");
+            while(!images.isEmpty()) {
+                var stale = this.find(handle, images);
+                for(var image : images) {
+                    unmark.setLong(1, image);
+                    unmark.addBatch();
+                }
+                unmark.executeBatch();
+
+                /* Images left stale by the ones just found never leave any
+                 * other image stale, as their values haven't changed, so this
+                 * takes two rounds at most. */
+                images = stale;
+            }
+            connection.commit();
+        } catch(SQLException | RuntimeException e) {
+            connection.rollback();
+            throw e;
+        } finally {
+            connection.setAutoCommit(true);
+        }
+    }
+
+    /** Find the closest images to the given images, along with the images
+     * they are closer to than the farthest of their own, in a single scan.
+     * @return The images that may now be missing some of their closest.
+     */
+    protected Set<Long> find(ConnectionHandle handle, Set<Long> images) throws SQLException {
+        var tags = new HashMap<Long, Object>();
+        var pointing = new HashMap<Long, Set<Long>>();
+        var closest = new HashMap<Long, PriorityQueue<Neighbor>>();
+        var affected = new HashMap<Long, Map<Long, Double>>();
+
+        var value = handle.prepare(String.format(
+            "select %s from %s where rowid=?",
+            this.column,
+            this.images));
+        var select = handle.prepare("select distinct image from " + this.table + " where neighbor=?");
+        for(var image : images) {
+            /* The images that already have this one among their closest,
+             * which get it at its new distance, whatever that distance is. */
+            var set = new HashSet<Long>();
+            select.setLong(1, image);
+            try(var result = select.executeQuery()) {
+                while(result.next())
+                    set.add(result.getLong(1));
+            }
+            pointing.put(image, set);
+            affected.put(image, new HashMap<>());
+
+            value.setLong(1, image);
+            try(var result = value.executeQuery()) {
+                /* Values the tagger can't read are as good as no value. */
+                if(result.next() && result.getObject(1) != null) {
+                    try {
+                        tags.put(image, this.tagger.fromStorage(result.getObject(1)));
+                        closest.put(image, new PriorityQueue<>(Neighbor.CLOSEST_FIRST.reversed()));
+                    } catch(IllegalArgumentException e) {
+                        /* Same as above. */
+                    }
+                }
+            }
+        }
+
+        if(!tags.isEmpty()) {
+            var scan = handle.prepare(String.format(
+                "select v.rowid, v.%s, g.distance from %s v left join %s g " +
+                    "on g.image = v.rowid and g.rank = ? " +
+                    "where v.%s is not null",
+                this.column,
+                this.images,
+                this.table,
+                this.column));
+            scan.setInt(1, this.neighbors - 1);
+            try(var result = scan.executeQuery()) {
+                while(result.next()) {
+                    var rowid = result.getLong(1);
+                    Object other;
+                    try {
+                        other = this.tagger.fromStorage(result.getObject(2));
+                    } catch(IllegalArgumentException e) {
+                        other = null;
+                    }
+                    var farthest = result.getObject(3);
+
+                    for(var entry : tags.entrySet()) {
+                        var image = entry.getKey();
+                        if(image == rowid) continue;
+
+                        Optional<Double> distance;
+                        try {
+                            distance = other == null
+                                ? Optional.empty()
+                                : this.tagger.getTagDistance(entry.getValue(), other);
+                        } catch(IllegalArgumentException e) {
+                            distance = Optional.empty();
+                        }
+
+                        if(distance.isEmpty()) {
+                            if(pointing.get(image).contains(rowid))
+                                affected.get(image).put(rowid, null);
+                            continue;
+                        }
+
+                        var d = distance.get();
+                        var queue = closest.get(image);
+                        queue.add(new Neighbor(rowid, null, d));
+                        if(queue.size() > this.neighbors)
+                            queue.poll();
+
+                        if(pointing.get(image).contains(rowid)
+                            || farthest == null
+                            || d < ((Number) farthest).doubleValue())
+                            affected.get(image).put(rowid, d);
+                    }
+                }
+            }
+        }
+
+        for(var image : images) {
+            var queue = closest.get(image);
+            var list = queue == null ? new ArrayList<Neighbor>() : new ArrayList<>(queue);
+            list.sort(Neighbor.CLOSEST_FIRST);
+            this.write(handle, image, list);
+        }
+
+        /* Lists of images being found again were just written with every one
+         * of them at its current distance already. */
+        var stale = new LinkedHashSet<Long>();
+        for(var image : images) {
+            var changes = affected.get(image);
+            if(!tags.containsKey(image))
+                for(var other : pointing.get(image))
+                    changes.put(other, null);
+
+            for(var entry : changes.entrySet()) {
+                var other = entry.getKey();
+                if(images.contains(other)) continue;
+                if(this.replace(handle, other, image, entry.getValue()))
+                    stale.add(other);
+            }
+        }
+
+        var mark = handle.prepare("insert or ignore into " + this.stale + "(image) values (?)");
+        for(var image : stale) {
+            mark.setLong(1, image);
+            mark.addBatch();
+        }
+        mark.executeBatch();
+        return stale;
+    }
+
+    /** Put an image among the closest to another one at the given distance,
+     * or take it out of them, if there is no distance.
+     * @return Whether the image was among the closest, and is now gone from
+     * them, or farther away, which may leave the list missing the image that
+     * should take its place.
+     */
+    protected boolean replace(ConnectionHandle handle, long image, long neighbor, Double distance) throws SQLException {
+        var list = this.read(handle, image);
+        Double previous = null;
+        for(var n : list)
+            if(n.getRowid() == neighbor)
+                previous = n.getDistance();
+
+        list.removeIf((n) -> n.getRowid() == neighbor);
+        if(distance != null) {
+            list.add(new Neighbor(neighbor, null, distance));
+            list.sort(Neighbor.CLOSEST_FIRST);
+            if(list.size() > this.neighbors)
+                list = list.subList(0, this.neighbors);
+        }
+        this.write(handle, image, list);
+        return previous != null && (distance == null || distance > previous);
+    }
+
+    /** The closest images to an image, closest first, without their IDs. */
+    public List<Neighbor> read(ConnectionHandle handle, long image) throws SQLException {
+        var select = handle.prepare("select neighbor, distance from " + this.table + " where image=? order by rank");
+        select.setLong(1, image);
+
+        var list = new ArrayList<Neighbor>();
+        try(var result = select.executeQuery()) {
+            while(result.next())
+                list.add(new Neighbor(result.getLong(1), null, result.getDouble(2)));
+        }
+        return list;
+    }
+
+    /** Replace the closest images to an image with the given ones, which must
+     * already be in order. */
+    public void write(ConnectionHandle handle, long image, List<Neighbor> list) throws SQLException {
+        var delete = handle.prepare("delete from " + this.table + " where image=?");
+        delete.setLong(1, image);
+        delete.execute();
+
+        var insert = handle.prepare("insert into " + this.table + "(image, rank, neighbor, distance) values (?, ?, ?, ?)");
+        for(int rank = 0; rank < list.size(); ++rank) {
+            insert.setLong(1, image);
+            insert.setInt(2, rank);
+            insert.setLong(3, list.get(rank).getRowid());
+            insert.setDouble(4, list.get(rank).getDistance());
+            insert.addBatch();
+        }
+        insert.executeBatch();
+    }
+
+    @Override
+    public void invalidate(ConnectionHandle handle) throws SQLException {
+        this.clear(handle);
+    }
+
+    /** Remove every edge from the graph, so that it can be built again. */
+    public void clear(ConnectionHandle handle) throws SQLException {
+        try(var statement = handle.getConnection().createStatement()) {
+            statement.execute("delete from " + this.table);
+            statement.execute("delete from " + this.stale);
+        }
+    }
+}
@@ -0,0 +1,297 @@
+package com.github.natanbc.imagesearch.db.index;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.IntStream;
+
+/** A product quantizer, which compresses vectors by splitting them up into a
+ * number of subvectors, each of which gets replaced by the closest of the
+ * centroids trained for its subspace. With {@value #CENTROIDS} centroids in
+ * every subspace, every subvector gets coded as a single byte.
+ * <br><br>
+ * Euclidean distances from a vector to coded ones are approximated without
+ * ever decoding them: the distances from every subvector of the former to
+ * every centroid of its subspace are worked out once, into a table, after
+ * which the distance to any code is a sum of lookups into it. */
+public class ProductQuantizer {
+    /** The number of centroids in every subspace. */
+    public static final int CENTROIDS = 256;
+
+    /* "PQCB", in ASCII. */
+    private static final int MAGIC = 0x50514342;
+    private static final int VERSION = 2;
+
+    protected final int dimensions;
+    protected final int subspaces;
+    /* The number of vectors the centroids were trained on, 0 if unknown. */
+    protected final int samples;
+    /* Subspace i spans the dimensions from bounds[i] up to bounds[i + 1]. */
+    protected final int[] bounds;
+    /* The centroids of every subspace, one after the other. */
+    protected final float[][] centroids;
+
+    /** Create a new product quantizer out of already trained centroids.
+     * @param dimensions The number of dimensions of the vectors.
+     * @param subspaces The number of subspaces the vectors are split up into.
+     * @param centroids The centroids of every subspace, laid out one after the
+     *                  other.
+     * @param samples The number of vectors the centroids were trained on, or
+     *                {@code 0}, if it isn't known.
+     */
+    public ProductQuantizer(int dimensions, int subspaces, float[][] centroids, int samples) {
+        if(subspaces < 1 || subspaces > dimensions)
+            throw new IllegalArgumentException("Can't split " + dimensions
+                + " dimensions into " + subspaces + " subspaces");
+
+        this.dimensions = dimensions;
+        this.subspaces = subspaces;
+        this.samples = samples;
+        this.bounds = new int[subspaces + 1];
+        for(int i = 0; i <= subspaces; ++i)
+            this.bounds[i] = i * dimensions / subspaces;
+
+        if(centroids.length != subspaces)
+            throw new IllegalArgumentException("Expected centroids for " + subspaces + " subspaces");
+        for(int i = 0; i < subspaces; ++i)
+            if(centroids[i].length != CENTROIDS * this.width(i))
+                throw new IllegalArgumentException("Wrong number of centroids for subspace " + i);
+        this.centroids = centroids;
+    }
+
+    public int getDimensions() {
+        return dimensions;
+    }
+
+    /** The number of subspaces, which is also the size of every code. */
+    public int getSubspaces() {
+        return subspaces;
+    }
+
+    /** The number of vectors the centroids were trained on, or {@code 0}, if
+     * it isn't known, as it isn't for centroids written by older versions. */
+    public int getSamples() {
+        return samples;
+    }
+
+    /** Train a new quantizer, running k-means over every subspace of the given
+     * vectors, with the subspaces being trained in parallel.
+     * @param samples The vectors the centroids are trained on.
+     * @param dimensions The number of dimensions of the vectors.
+     * @param subspaces The number of subspaces the vectors are split up into.
+     * @param iterations The number of rounds of k-means to run.
+     * @param seed The seed centroids are picked with.
+     * @throws IllegalArgumentException If there are no samples.
+     */
+    public static ProductQuantizer train(
+        List<float[]> samples,
+        int dimensions,
+        int subspaces,
+        int iterations,
+        long seed) {
+
+        if(samples.isEmpty())
+            throw new IllegalArgumentException("Can't train a quantizer without samples");
+
+        var centroids = new float[subspaces][];
+        IntStream.range(0, subspaces).parallel().forEach((i) -> {
+            var from = i * dimensions / subspaces;
+            var to = (i + 1) * dimensions / subspaces;
+            centroids[i] = ProductQuantizer.kmeans(samples, from, to, iterations, new Random(seed + i));
+        });
+        return new ProductQuantizer(dimensions, subspaces, centroids, samples.size());
+    }
+
+    /** Run k-means over the dimensions of the samples in the given range. */
+    protected static float[] kmeans(List<float[]> samples, int from, int to, int iterations, Random random) {
+        var width = to - from;
+        var centroids = new float[CENTROIDS * width];
+
+        /* Start from distinct samples, going around them again if there are
+         * fewer samples than centroids. */
+        var order = IntStream.range(0, samples.size()).toArray();
+        for(int i = order.length - 1; i > 0; --i) {
+            var j = random.nextInt(i + 1);
+            var swap = order[i];
+            order[i] = order[j];
+            order[j] = swap;
+        }
+        for(int c = 0; c < CENTROIDS; ++c)
+            System.arraycopy(samples.get(order[c % order.length]), from, centroids, c * width, width);
+
+        var assignments = new int[samples.size()];
+        var sums = new double[CENTROIDS * width];
+        var counts = new int[CENTROIDS];
+        for(int iteration = 0; iteration < iterations; ++iteration) {
+            var changed = false;
+            for(int s = 0; s < assignments.length; ++s) {
+                var closest = ProductQuantizer.closest(samples.get(s), from, centroids, width);
+                changed |= iteration == 0 || closest != assignments[s];
+                assignments[s] = closest;
+            }
+            if(!changed) break;
+
+            Arrays.fill(sums, 0);
+            Arrays.fill(counts, 0);
+            for(int s = 0; s < assignments.length; ++s) {
+                var sample = samples.get(s);
+                var c = assignments[s];
+                counts[c]++;
+                for(int d = 0; d < width; ++d)
+                    sums[c * width + d] += sample[from + d];
+            }
+
+            for(int c = 0; c < CENTROIDS; ++c) {
+                /* Centroids nothing got close to get another go elsewhere. */
+                if(counts[c] == 0) {
+                    var sample = samples.get(random.nextInt(samples.size()));
+                    System.arraycopy(sample, from, centroids, c * width, width);
+                    continue;
+                }
+                for(int d = 0; d < width; ++d)
+                    centroids[c * width + d] = (float) (sums[c * width + d] / counts[c]);
+            }
+        }
+        return centroids;
+    }
+
+    /** The index of the centroid closest to the subvector starting at the
+     * given dimension of a vector. */
+    protected static int closest(float[] vector, int from, float[] centroids, int width) {
+        var best = 0;
+        var bestDistance = Float.POSITIVE_INFINITY;
+        for(int c = 0, base = 0; c < CENTROIDS; ++c, base += width) {
+            var distance = 0.0f;
+            for(int d = 0; d < width; ++d) {
+                var delta = vector[from + d] - centroids[base + d];
+                distance += delta * delta;
+            }
+            if(distance < bestDistance) {
+                bestDistance = distance;
+                best = c;
+            }
+        }
+        return best;
+    }
+
+    /** Code a vector, writing one byte for every subspace into the buffer.
+     * @param vector The vector.
+     * @param buffer The buffer the code is written to.
+     * @param offset The offset the code is written at.
+     */
+    public void encode(float[] vector, ByteBuffer buffer, int offset) {
+        this.checkDimensions(vector);
+        for(int i = 0; i < this.subspaces; ++i)
+            buffer.put(offset + i, (byte) ProductQuantizer.closest(
+                vector,
+                this.bounds[i],
+                this.centroids[i],
+                this.width(i)));
+    }
+
+    /** Work out the table of squared distances from the subvectors of a vector
+     * to every centroid of their subspace, which approximate distances to
+     * codes get looked up in.
+     * @param vector The vector.
+     * @return The table, holding {@value #CENTROIDS} distances for every
+     * subspace, one subspace after the other.
+     */
+    public float[] table(float[] vector) {
+        this.checkDimensions(vector);
+
+        var table = new float[this.subspaces * CENTROIDS];
+        for(int i = 0; i < this.subspaces; ++i) {
+            var width = this.width(i);
+            var centroids = this.centroids[i];
+            for(int c = 0; c < CENTROIDS; ++c) {
+                var distance = 0.0;
+                for(int d = 0; d < width; ++d) {
+                    var delta = (double) vector[this.bounds[i] + d] - centroids[c * width + d];
+                    distance += delta * delta;
+                }
+                table[i * CENTROIDS + c] = (float) distance;
+            }
+        }
+        return table;
+    }
+
+    /** Approximate the euclidean distance from the vector a table was made for
+     * to a coded vector.
+     * @param table The table of the vector, as given by {@link #table(float[])}.
+     * @param buffer The buffer holding the code.
+     * @param offset The offset of the code.
+     * @return The approximate distance.
+     */
+    public double distance(float[] table, ByteBuffer buffer, int offset) {
+        var distance = 0.0f;
+        for(int i = 0; i < this.subspaces; ++i)
+            distance += table[i * CENTROIDS + Byte.toUnsignedInt(buffer.get(offset + i))];
+        return Math.sqrt(distance);
+    }
+
+    /** Write the centroids to a file, replacing it as a whole. */
+    public void write(Path file) throws IOException {
+        var parent = file.toAbsolutePath().getParent();
+        if(parent != null) Files.createDirectories(parent);
+
+        var temporary = file.resolveSibling(file.getFileName() + ".tmp");
+        try(var output = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporary)))) {
+            output.writeInt(MAGIC);
+            output.writeInt(VERSION);
+            output.writeInt(this.dimensions);
+            output.writeInt(this.subspaces);
+            output.writeInt(this.samples);
+            for(var centroids : this.centroids)
+                for(var value : centroids)
+                    output.writeFloat(value);
+        }
+        Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /** Read centroids written by {@link #write(Path)} back from a file.
+     * @throws IOException If the file couldn't be read, or isn't one of these.
+     */
+    public static ProductQuantizer read(Path file) throws IOException {
+        try(var input = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            if(input.readInt() != MAGIC)
+                throw new IOException("Not a product quantizer: " + file);
+            var version = input.readInt();
+            if(version < 1 || version > VERSION)
+                throw new IOException("Unsupported product quantizer version " + version + ": " + file);
+
+            var dimensions = input.readInt();
+            var subspaces = input.readInt();
+            /* The first version didn't keep count of the samples. */
+            var samples = version >= 2 ? input.readInt() : 0;
+            if(subspaces < 1 || subspaces > dimensions || samples < 0)
+                throw new IOException("Corrupt product quantizer: " + file);
+
+            var centroids = new float[subspaces][];
+            for(int i = 0; i < subspaces; ++i) {
+                var width = (i + 1) * dimensions / subspaces - i * dimensions / subspaces;
+                centroids[i] = new float[CENTROIDS * width];
+                for(int j = 0; j < centroids[i].length; ++j)
+                    centroids[i][j] = input.readFloat();
+            }
+            return new ProductQuantizer(dimensions, subspaces, centroids, samples);
+        }
+    }
+
+    private int width(int subspace) {
+        return this.bounds[subspace + 1] - this.bounds[subspace];
+    }
+
+    private void checkDimensions(float[] vector) {
+        if(vector.length != this.dimensions)
+            throw new IllegalArgumentException("Expected a vector with " + this.dimensions + " dimensions");
+    }
+}
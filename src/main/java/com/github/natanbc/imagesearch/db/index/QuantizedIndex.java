@@ -0,0 +1,348 @@
+package com.github.natanbc.imagesearch.db.index;
+
+import com.github.darkryu550.imagesearch.VectorTagger;
+import com.github.natanbc.imagesearch.db.Neighbor;
+import com.github.natanbc.imagesearch.db.Schema;
+import com.github.natanbc.imagesearch.db.TagIndex;
+import com.github.natanbc.imagesearch.db.pool.ConnectionHandle;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/** A compressed copy of the values of a vector tagger, coded by a
+ * {@link ProductQuantizer}, for approximate searches over far more images than
+ * their full vectors would leave room for in memory.
+ * <br><br>
+ * The centroids of the quantizer get trained on a sample of the values in the
+ * database the first time the index is created with enough values in it for
+ * every centroid to be worth something, and are kept in a file of their own.
+ * Centroids trained on fewer values than a full sample get trained again once
+ * the database holds several times the values they were trained on, and
+ * otherwise never do by themselves, so the file should be deleted once the
+ * values look nothing like the ones it was trained on. The codes are kept in
+ * a {@link SlotFile}, a byte for every subspace, which gets written to and
+ * rebuilt from the database just like a {@link FeatureStore} does.
+ * <br><br>
+ * The distances given by the index are approximations of the euclidean
+ * distances between the vectors, so it only makes sense for taggers whose
+ * distances are euclidean, and searches should check the images it finds
+ * against their actual values. */
+public class QuantizedIndex implements TagIndex {
+    /* "PQCO", in ASCII. */
+    private static final int MAGIC = 0x5051434f;
+    private static final int VERSION = 2;
+
+    /* How many values the centroids are trained on, and for how long. */
+    private static final int SAMPLES = 1 << 13;
+    /* The fewest values the centroids get trained on, and how many times the
+     * values they were trained on the database has to hold for them to get
+     * trained again. */
+    private static final int MINIMUM_SAMPLES = 4 * ProductQuantizer.CENTROIDS;
+    private static final int RETRAIN_FACTOR = 4;
+    private static final int ITERATIONS = 10;
+    private static final long SEED = 0x5051;
+
+    protected final Path codebook;
+    protected final VectorTagger tagger;
+    protected final int subspaces;
+    protected final SlotFile slots;
+
+    /* Null for as long as there was nothing to train the centroids on. */
+    protected volatile ProductQuantizer quantizer;
+
+    /* Where the values of the tagger are, which is only known once created,
+     * and the changes made by the transaction in progress. */
+    protected String column;
+    protected final LinkedHashMap<Long, Object> pending;
+
+    /** Create a new quantized index.
+     * @param codebook The file holding the centroids, which get trained if it
+     *                 doesn't exist yet.
+     * @param codes The file holding the codes, which gets created if it
+     *              doesn't exist yet.
+     * @param tagger The tagger whose values are being coded.
+     * @param subspaces The number of subspaces vectors are split into, which
+     *                  is the number of bytes every one of them gets coded in.
+     */
+    public QuantizedIndex(Path codebook, Path codes, VectorTagger tagger, int subspaces) {
+        if(subspaces < 1 || subspaces > tagger.getDimensions())
+            throw new IllegalArgumentException("Can't split " + tagger.getDimensions()
+                + " dimensions into " + subspaces + " subspaces");
+
+        this.codebook = codebook;
+        this.tagger = tagger;
+        this.subspaces = subspaces;
+        this.slots = new SlotFile(codes, MAGIC, subspaces + 1);
+        this.pending = new LinkedHashMap<>();
+    }
+
+    public VectorTagger getTagger() {
+        return tagger;
+    }
+
+    /** Whether the centroids have been trained, without which nothing gets
+     * coded, and nothing can be searched for. */
+    public boolean isTrained() {
+        return this.quantizer != null;
+    }
+
+    /** The number of rowids there currently are slots for. */
+    public long getCapacity() {
+        return this.slots.getCapacity();
+    }
+
+    @Override
+    public synchronized void create(ConnectionHandle handle, String table, String column) throws SQLException {
+        try {
+            this.slots.open();
+        } catch(IOException e) {
+            throw new SQLException("Could not open the quantized index at " + this.slots.getFile(), e);
+        }
+
+        this.column = column;
+        this.pending.clear();
+
+        var generation = Schema.generation(handle.getConnection(), column);
+        if(this.quantizer == null)
+            this.quantizer = this.load();
+
+        var trained = false;
+        if(this.quantizer == null) {
+            this.quantizer = this.train(handle, table, column);
+            if(this.quantizer == null) return;
+            trained = true;
+        }
+
+        if(trained || !this.slots.matches(VERSION, generation, this.tagger.getDimensions(), this.subspaces))
+            this.fill(handle, table, column, generation, trained);
+
+        /* The codes keep count of the values, so telling whether there are
+         * many more of them than the centroids were trained on is cheap, once
+         * they are up to date. */
+        var samples = this.quantizer.getSamples();
+        if(!trained && samples < SAMPLES && this.slots.getPresent() >= (long) RETRAIN_FACTOR * samples) {
+            var retrained = this.train(handle, table, column);
+            if(retrained != null) {
+                this.quantizer = retrained;
+                this.fill(handle, table, column, generation, true);
+            }
+        }
+    }
+
+    /** Code every value in the database again, after writing down the
+     * centroids, if they were just trained. */
+    protected void fill(ConnectionHandle handle, String table, String column, long generation, boolean trained) throws SQLException {
+        /* Codes only make sense along with the centroids they were made with,
+         * which only get written down once every old code is gone. */
+        this.slots.reset(VERSION, this.tagger.getDimensions(), this.subspaces);
+        if(trained) {
+            try {
+                this.quantizer.write(this.codebook);
+            } catch(IOException e) {
+                throw new SQLException("Could not write the codebook at " + this.codebook, e);
+            }
+        }
+
+        var query = String.format(
+            "select rowid, %s from %s where %s is not null",
+            column,
+            table,
+            column);
+        try(var select = handle.getConnection().createStatement();
+            var result = select.executeQuery(query)) {
+            while(result.next())
+                this.put(result.getLong(1), result.getObject(2));
+        }
+        this.slots.setGeneration(generation);
+    }
+
+    @Override
+    public synchronized void update(ConnectionHandle handle, long image, Object value) {
+        /* Nothing gets coded before training, which happens on the next
+         * creation, as the generations won't match by then. */
+        if(this.quantizer == null) return;
+        this.pending.put(image, value);
+    }
+
+    @Override
+    public synchronized void committed(ConnectionHandle handle, long generation) throws SQLException {
+        if(this.quantizer == null) return;
+        try {
+            for(var entry : this.pending.entrySet())
+                this.put(entry.getKey(), entry.getValue());
+        } finally {
+            this.pending.clear();
+        }
+        this.slots.setGeneration(generation);
+    }
+
+    @Override
+    public synchronized void rolledBack() {
+        this.pending.clear();
+    }
+
+    /** Codes go, along with the centroids, which were trained on values that
+     * are gone, and get trained again once there are values to train them on. */
+    @Override
+    public synchronized void invalidate(ConnectionHandle handle) throws SQLException {
+        this.quantizer = null;
+        this.pending.clear();
+        this.slots.reset(VERSION, this.tagger.getDimensions(), this.subspaces);
+        this.slots.setGeneration(Schema.generation(handle.getConnection(), this.column));
+        try {
+            Files.deleteIfExists(this.codebook);
+        } catch(IOException e) {
+            throw new SQLException("Could not delete the codebook at " + this.codebook, e);
+        }
+    }
+
+    /** Work out the table approximate distances from the given vector get
+     * looked up in, which is what gets searched for.
+     * @throws IllegalStateException If the centroids haven't been trained.
+     */
+    public float[] table(float[] vector) {
+        var quantizer = this.quantizer;
+        if(quantizer == null)
+            throw new IllegalStateException("The quantized index hasn't been trained");
+        return quantizer.table(vector);
+    }
+
+    /** Search a range of rowids for the codes that are approximately the
+     * closest to the vector a table was made for.
+     *
+     * @param table The table, as given by {@link #table(float[])}.
+     * @param limit The maximum number of images.
+     * @param from The smallest rowid of any image in the search.
+     * @param to The largest rowid of any image in the search.
+     * @return The closest images, closest first, along with their approximate
+     * distances, and without their IDs.
+     */
+    public List<Neighbor> nearest(float[] table, int limit, long from, long to) {
+        var quantizer = this.quantizer;
+        if(quantizer == null || limit <= 0)
+            return new ArrayList<>();
+
+        var segments = this.slots.getSegments();
+        var rowsPerSegment = this.slots.getRowsPerSegment();
+        from = Math.max(from, 0);
+        to = Math.min(to, (long) segments.length * rowsPerSegment - 1);
+
+        var closest = new PriorityQueue<Neighbor>(Neighbor.CLOSEST_FIRST.reversed());
+        var bound = Double.POSITIVE_INFINITY;
+        for(var rowid = from; rowid <= to; ++rowid) {
+            var segment = segments[(int) (rowid / rowsPerSegment)];
+            var offset = this.slots.offset(rowid);
+            if(!SlotFile.isPresent(segment, offset)) continue;
+
+            var distance = quantizer.distance(table, segment, offset + 1);
+            if(distance > bound || !SlotFile.wasPresent(segment, offset)) continue;
+
+            closest.add(new Neighbor(rowid, null, distance));
+            if(closest.size() > limit)
+                closest.poll();
+            if(closest.size() == limit)
+                bound = closest.peek().getDistance();
+        }
+
+        var neighbors = new ArrayList<>(closest);
+        neighbors.sort(Neighbor.CLOSEST_FIRST);
+        return neighbors;
+    }
+
+    /** Code the value of an image into its slot, growing the file if needed. */
+    protected void put(long image, Object value) throws SQLException {
+        var state = SlotFile.ABSENT;
+        float[] vector = null;
+        if(value != null) {
+            try {
+                vector = this.tagger.toVector(this.tagger.fromStorage(value));
+                state = SlotFile.PRESENT;
+            } catch(IllegalArgumentException e) {
+                state = SlotFile.REJECTED;
+            }
+        }
+
+        try {
+            if(vector != null) {
+                /* Scans must not read the old code while it's half replaced. */
+                this.slots.setState(image, SlotFile.ABSENT);
+                this.quantizer.encode(vector, this.slots.segment(image), this.slots.offset(image) + 1);
+            }
+            this.slots.setState(image, state);
+        } catch(IOException e) {
+            throw new SQLException("Could not write to the quantized index at " + this.slots.getFile(), e);
+        }
+    }
+
+    /** Load the centroids from their file, if it holds ones that fit. */
+    protected ProductQuantizer load() throws SQLException {
+        if(!Files.exists(this.codebook))
+            return null;
+
+        ProductQuantizer quantizer;
+        try {
+            quantizer = ProductQuantizer.read(this.codebook);
+        } catch(IOException e) {
+            throw new SQLException("Could not read the codebook at " + this.codebook, e);
+        }
+
+        if(quantizer.getDimensions() != this.tagger.getDimensions()
+            || quantizer.getSubspaces() != this.subspaces)
+            return null;
+        return quantizer;
+    }
+
+    /** Train the centroids on a random sample of the values in the database.
+     * @return The trained quantizer, or null if there weren't enough values to
+     * train it on.
+     */
+    protected ProductQuantizer train(ConnectionHandle handle, String table, String column) throws SQLException {
+        /* Only ever count as far as needed, so that a database that doesn't
+         * have enough values yet doesn't get scanned on every creation. */
+        var count = String.format(
+            "select count(*) from (select 1 from %s where %s is not null limit %d)",
+            table,
+            column,
+            MINIMUM_SAMPLES);
+        try(var select = handle.getConnection().createStatement();
+            var result = select.executeQuery(count)) {
+            result.next();
+            if(result.getInt(1) < MINIMUM_SAMPLES)
+                return null;
+        }
+
+        var query = String.format(
+            "select %s from %s where %s is not null order by random() limit %d",
+            column,
+            table,
+            column,
+            SAMPLES);
+
+        var samples = new ArrayList<float[]>();
+        try(var select = handle.getConnection().createStatement();
+            var result = select.executeQuery(query)) {
+            while(result.next()) {
+                try {
+                    samples.add(this.tagger.toVector(this.tagger.fromStorage(result.getObject(1))));
+                } catch(IllegalArgumentException e) {
+                    /* Values that aren't vectors don't get coded either. */
+                }
+            }
+        }
+
+        if(samples.size() < MINIMUM_SAMPLES)
+            return null;
+        return ProductQuantizer.train(
+            samples,
+            this.tagger.getDimensions(),
+            this.subspaces,
+            ITERATIONS,
+            SEED);
+    }
+}
@@ -0,0 +1,274 @@
+package com.github.natanbc.imagesearch.db.index;
+
+import java.io.IOException;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/** A file of fixed size slots, one for every rowid, mapped into memory, which
+ * the stores kept next to the database are built on.
+ * <br><br>
+ * The first byte of every slot holds its state, and the rest of it is up to
+ * the store. The file starts with a header holding the version of the store
+ * and its parameters, along with the number of slots in every state and the
+ * generation of the values the slots were last brought up to, which stores
+ * compare against the one in the database in order to tell whether they have
+ * fallen out of sync with it. Everything is little-endian.
+ * <br><br>
+ * The file is mapped, and grown, in segments, and never shrinks, as mapped
+ * files can't be safely truncated. Slots get flushed to disk before every new
+ * generation is written down, and the header right after, so that a file
+ * left behind by a crash never claims a generation its slots weren't
+ * brought up to.
+ * <br><br>
+ * Slots are written to by one thread at a time, while any number of others
+ * scan them, which only read the slots found {@link #isPresent(ByteBuffer, int)
+ * present}, and check that they {@link #wasPresent(ByteBuffer, int) still are}
+ * once read. */
+public class SlotFile {
+    /** The slot holds no value. */
+    public static final byte ABSENT = 0;
+    /** The slot holds a value. */
+    public static final byte PRESENT = 1;
+    /** The image has a value, which could not be stored in the slot. */
+    public static final byte REJECTED = 2;
+
+    /* Layout of the header, which is as large as it is to keep slots aligned. */
+    private static final int HEADER_SIZE = 64;
+    private static final int MAGIC_OFFSET = 0;
+    private static final int VERSION_OFFSET = 4;
+    private static final int PARAMETERS_OFFSET = 8;
+    private static final int MAX_PARAMETERS = 4;
+    private static final int PRESENT_OFFSET = 24;
+    private static final int REJECTED_OFFSET = 32;
+    private static final int GENERATION_OFFSET = 40;
+
+    /* Size of the regions the file gets mapped and grown in. */
+    private static final int SEGMENT_SIZE = 1 << 24;
+
+    protected final Path file;
+    protected final int magic;
+    /* Size of a slot, in bytes. */
+    protected final int stride;
+    protected final int rowsPerSegment;
+
+    protected MappedByteBuffer header;
+    protected volatile MappedByteBuffer[] segments;
+
+    /** Create a new slot file.
+     * @param file The file, which gets created if it doesn't exist yet.
+     * @param magic The number files of this kind start with.
+     * @param stride The size of every slot, in bytes, state included.
+     */
+    public SlotFile(Path file, int magic, int stride) {
+        if(stride < 1 || stride > SEGMENT_SIZE)
+            throw new IllegalArgumentException("Invalid slot size: " + stride);
+
+        this.file = file;
+        this.magic = magic;
+        this.stride = stride;
+        this.rowsPerSegment = SEGMENT_SIZE / stride;
+        this.segments = new MappedByteBuffer[0];
+    }
+
+    public Path getFile() {
+        return file;
+    }
+
+    public int getRowsPerSegment() {
+        return rowsPerSegment;
+    }
+
+    /** The segments mapped so far, which should be gotten once for every scan,
+     * as it gets replaced when the file grows. */
+    public ByteBuffer[] getSegments() {
+        return this.segments;
+    }
+
+    /** The number of rowids there currently are slots for. */
+    public long getCapacity() {
+        return (long) this.segments.length * this.rowsPerSegment;
+    }
+
+    /** The offset of the slot of the given rowid within its segment. */
+    public int offset(long rowid) {
+        return (int) (rowid % this.rowsPerSegment) * this.stride;
+    }
+
+    /** Open the file and map its header, along with all of its segments, if
+     * that hasn't been done yet. */
+    public synchronized void open() throws IOException {
+        if(this.header != null) return;
+
+        var parent = this.file.toAbsolutePath().getParent();
+        if(parent != null) Files.createDirectories(parent);
+
+        var segments = 0;
+        try(var channel = FileChannel.open(
+            this.file,
+            StandardOpenOption.CREATE,
+            StandardOpenOption.READ,
+            StandardOpenOption.WRITE)) {
+
+            this.header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE);
+            this.header.order(ByteOrder.LITTLE_ENDIAN);
+
+            var segmentBytes = (long) this.rowsPerSegment * this.stride;
+            segments = (int) ((Math.max(channel.size() - HEADER_SIZE, 0) + segmentBytes - 1) / segmentBytes);
+        }
+        this.map(segments);
+    }
+
+    /** Whether the file was made by the given version of a store, with the
+     * given parameters, and was last brought up to the given generation.
+     * @param version The version of the store.
+     * @param generation The generation of the values in the database.
+     * @param parameters The parameters of the store.
+     */
+    public synchronized boolean matches(int version, long generation, int... parameters) {
+        if(this.header.getInt(MAGIC_OFFSET) != this.magic
+            || this.header.getInt(VERSION_OFFSET) != version)
+            return false;
+        for(int i = 0; i < parameters.length; ++i)
+            if(this.header.getInt(PARAMETERS_OFFSET + i * Integer.BYTES) != parameters[i])
+                return false;
+
+        return this.header.getLong(GENERATION_OFFSET) == generation;
+    }
+
+    /** The number of slots holding a value. */
+    public synchronized long getPresent() {
+        return this.header.getLong(PRESENT_OFFSET);
+    }
+
+    /** Write down the generation of the values the slots have been brought up
+     * to, which must only be done once every one of them has been written.
+     * The slots make it to disk before the generation does. */
+    public synchronized void setGeneration(long generation) {
+        for(var segment : this.segments)
+            segment.force();
+        this.header.putLong(GENERATION_OFFSET, generation);
+        this.header.force();
+    }
+
+    /** Mark every slot as absent, and write a new header for the file, which
+     * matches no generation until one is set.
+     * @param version The version of the store.
+     * @param parameters The parameters of the store.
+     */
+    public synchronized void reset(int version, int... parameters) {
+        if(parameters.length > MAX_PARAMETERS)
+            throw new IllegalArgumentException("At most " + MAX_PARAMETERS + " parameters are supported");
+
+        /* Slots that are half reset must not match anything either, not even
+         * after a crash, so that has to be on disk before they change. */
+        this.header.putLong(GENERATION_OFFSET, -1);
+        this.header.force();
+        for(var segment : this.segments)
+            for(int i = 0; i < this.rowsPerSegment; ++i)
+                segment.put(i * this.stride, ABSENT);
+
+        this.header.putInt(MAGIC_OFFSET, this.magic);
+        this.header.putInt(VERSION_OFFSET, version);
+        for(int i = 0; i < MAX_PARAMETERS; ++i)
+            this.header.putInt(
+                PARAMETERS_OFFSET + i * Integer.BYTES,
+                i < parameters.length ? parameters[i] : 0);
+        this.header.putLong(PRESENT_OFFSET, 0);
+        this.header.putLong(REJECTED_OFFSET, 0);
+    }
+
+    /** The segment holding the slot of the given rowid, mapping it, along with
+     * every segment before it, if it hasn't been mapped yet. */
+    public ByteBuffer segment(long rowid) throws IOException {
+        if(rowid < 0)
+            throw new IOException("Negative rowids can't be stored: " + rowid);
+
+        var index = rowid / this.rowsPerSegment;
+        if(index >= Integer.MAX_VALUE)
+            throw new IOException("Rowid too large to be stored: " + rowid);
+
+        var segments = this.segments;
+        if(index < segments.length)
+            return segments[(int) index];
+
+        this.map((int) index + 1);
+        return this.segments[(int) index];
+    }
+
+    /** Set the state of the slot of the given rowid, keeping count of it.
+     * <br><br>
+     * A slot should only be made present after the rest of it has been
+     * written, and a slot that is already present must be made absent before
+     * the rest of it gets written again, so that scans never start reading a
+     * slot that is being written to. Scans that started reading it before it
+     * was made absent find out once they are done, unless the slot was
+     * written, and made present again, in the meantime, which takes a whole
+     * value being written while a single one was being read. */
+    public synchronized void setState(long rowid, byte state) throws IOException {
+        var segment = this.segment(rowid);
+        var offset = this.offset(rowid);
+
+        /* Whatever got written to the slot before has to be seen before it
+         * gets made present, and whatever gets written to it after after it
+         * gets made absent. */
+        VarHandle.releaseFence();
+        this.count(segment.get(offset), -1);
+        segment.put(offset, state);
+        this.count(state, 1);
+        VarHandle.storeStoreFence();
+    }
+
+    /** Whether the slot at the given offset of a segment holds a value, which
+     * can be read once this returns. */
+    public static boolean isPresent(ByteBuffer segment, int offset) {
+        var present = segment.get(offset) == PRESENT;
+        VarHandle.acquireFence();
+        return present;
+    }
+
+    /** Whether the slot at the given offset of a segment still holds a value,
+     * after it was found present, and read. If it doesn't, it was being
+     * written to while it was read, and what was read should be ignored. */
+    public static boolean wasPresent(ByteBuffer segment, int offset) {
+        VarHandle.loadLoadFence();
+        return segment.get(offset) == PRESENT;
+    }
+
+    private void count(byte state, long delta) {
+        if(state == PRESENT)
+            this.header.putLong(PRESENT_OFFSET, this.header.getLong(PRESENT_OFFSET) + delta);
+        else if(state == REJECTED)
+            this.header.putLong(REJECTED_OFFSET, this.header.getLong(REJECTED_OFFSET) + delta);
+    }
+
+    /** Make sure the given number of segments is mapped, growing the file to
+     * fit them, if it's not large enough. The mappings outlive the channel. */
+    protected synchronized void map(int count) throws IOException {
+        var segments = this.segments;
+        if(count <= segments.length) return;
+
+        var grown = Arrays.copyOf(segments, count);
+        var segmentBytes = (long) this.rowsPerSegment * this.stride;
+        try(var channel = FileChannel.open(
+            this.file,
+            StandardOpenOption.READ,
+            StandardOpenOption.WRITE)) {
+
+            for(int i = segments.length; i < count; ++i) {
+                grown[i] = channel.map(
+                    FileChannel.MapMode.READ_WRITE,
+                    HEADER_SIZE + i * segmentBytes,
+                    segmentBytes);
+                grown[i].order(ByteOrder.LITTLE_ENDIAN);
+            }
+        }
+        this.segments = grown;
+    }
+}
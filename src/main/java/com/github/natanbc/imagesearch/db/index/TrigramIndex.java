@@ -0,0 +1,165 @@
+package com.github.natanbc.imagesearch.db.index;
+
+import com.github.natanbc.imagesearch.db.RadiusIndex;
+import com.github.natanbc.imagesearch.db.Selection;
+import com.github.natanbc.imagesearch.db.SqlFunctions;
+import com.github.natanbc.imagesearch.db.pool.ConnectionHandle;
+
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+
+/** An inverted index from the character trigrams of a text tag to the images
+ * whose text contains them.
+ * <br><br>
+ * It is used to narrow down edit distance searches: by the q-gram lemma, two
+ * strings {@code x} and {@code y} within {@code k} edits of one another share
+ * at least {@code |x| - 2 - 3k} trigrams, so only the images that do need to
+ * have their exact distances computed. */
+public class TrigramIndex implements RadiusIndex {
+    protected final String table;
+
+    /** Create a new trigram index, backed by the given table. */
+    public TrigramIndex(String table) {
+        this.table = table;
+    }
+
+    public String getTable() {
+        return table;
+    }
+
+    @Override
+    public void create(ConnectionHandle handle, String images, String column) throws SQLException {
+        var connection = handle.getConnection();
+        try(var statement = connection.prepareStatement(
+            "select count(*) from sqlite_master where type='table' and name=?")) {
+            statement.setString(1, this.table);
+            try(var result = statement.executeQuery()) {
+                result.next();
+                if(result.getInt(1) > 0) return;
+            }
+        }
+
+        try(var statement = connection.createStatement()) {
+            statement.execute(String.format(
+                "create table %s(" +
+                    "gram TEXT NOT NULL, " +
+                    "image INTEGER NOT NULL, " +
+                    "count INTEGER NOT NULL, " +
+                    "primary key(gram, image)) without rowid",
+                this.table));
+            statement.execute(String.format(
+                "create index %s_image on %s(image)",
+                this.table,
+                this.table));
+        }
+
+        /* Index all of the values already in the database. */
+        var query = String.format(
+            "select rowid, %s from %s where %s is not null",
+            column,
+            images,
+            column);
+        try(var select = connection.createStatement();
+            var result = select.executeQuery(query)) {
+            while(result.next())
+                this.insert(handle, result.getLong(1), SqlFunctions.text(result.getObject(2)));
+        }
+    }
+
+    @Override
+    public void invalidate(ConnectionHandle handle) throws SQLException {
+        try(var statement = handle.getConnection().createStatement()) {
+            statement.execute("delete from " + this.table);
+        }
+    }
+
+    @Override
+    public void update(ConnectionHandle handle, long image, Object value) throws SQLException {
+        var delete = handle.prepare("delete from " + this.table + " where image=?");
+        delete.setLong(1, image);
+        delete.execute();
+        if(value != null)
+            this.insert(handle, image, value.toString());
+    }
+
+    protected void insert(ConnectionHandle handle, long image, String text) throws SQLException {
+        var insert = handle.prepare("insert into " + this.table + "(gram, image, count) values (?, ?, ?)");
+        for(var entry : TrigramIndex.trigrams(text).entrySet()) {
+            insert.setString(1, entry.getKey());
+            insert.setLong(2, image);
+            insert.setInt(3, entry.getValue());
+            insert.addBatch();
+        }
+        insert.executeBatch();
+    }
+
+    @Override
+    public Optional<Selection> candidates(Object tag, double radius) {
+        if(!(tag instanceof String))
+            throw new IllegalArgumentException("Expected a text tag");
+        return this.candidates((String) tag, (int) Math.floor(radius));
+    }
+
+    /** Create a selection of all the images whose text may be within the
+     * given number of edits of the given text.
+     *
+     * @param text The text the images are being compared to.
+     * @param maxDistance The maximum edit distance.
+     * @return The selection of candidates, or nothing, if the given text is
+     * too short for the index to rule out any image at that distance.
+     */
+    public Optional<Selection> candidates(String text, int maxDistance) {
+        var grams = TrigramIndex.trigrams(text);
+        var shared = (long) text.length() - 2 - 3L * maxDistance;
+        if(shared <= 0)
+            return Optional.empty();
+
+        /* Hand the query trigrams over as a single JSON object, which saves us
+         * from running into the limit on the number of bound parameters. */
+        var json = new StringBuilder("{");
+        for(var entry : grams.entrySet()) {
+            if(json.length() > 1) json.append(',');
+            TrigramIndex.appendJsonString(json, entry.getKey());
+            json.append(':').append(entry.getValue());
+        }
+        json.append('}');
+
+        var subquery = String.format(
+            "select t.image from %s t join json_each(?) q on t.gram = q.key " +
+                "group by t.image having sum(min(t.count, q.value)) >= ?",
+            this.table);
+        return Optional.of(Selection.rowidIn(subquery, json.toString(), shared));
+    }
+
+    /** Count the trigrams of a string, ignoring case. Ignoring case only ever
+     * makes two strings share more trigrams, so it keeps the bound valid. */
+    public static Map<String, Integer> trigrams(String text) {
+        /* Lower case one char at a time, so that the length never changes. */
+        var chars = text.toCharArray();
+        for(int i = 0; i < chars.length; ++i)
+            chars[i] = Character.toLowerCase(chars[i]);
+        var lower = new String(chars);
+
+        var grams = new HashMap<String, Integer>();
+        for(int i = 0; i + 3 <= lower.length(); ++i)
+            grams.merge(lower.substring(i, i + 3), 1, Integer::sum);
+
+        return grams;
+    }
+
+    private static void appendJsonString(StringBuilder target, String value) {
+        target.append('"');
+        for(int i = 0; i < value.length(); ++i) {
+            var c = value.charAt(i);
+            if(c == '"' || c == '\\')
+                target.append('\\').append(c);
+            else if(c < 0x20)
+                target.append(String.format("\\u%04x", (int) c));
+            else
+                target.append(c);
+        }
+        target.append('"');
+    }
+}
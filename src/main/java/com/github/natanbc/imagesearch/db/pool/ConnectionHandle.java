@@ -1,13 +1,17 @@
 package com.github.natanbc.imagesearch.db.pool;
 
 import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
 
 public class ConnectionHandle implements AutoCloseable {
     private Connection connection;
+    private StatementCache statements;
     private ConnectionPool yield;
 
-    protected ConnectionHandle(Connection connection, ConnectionPool yield) {
+    protected ConnectionHandle(Connection connection, StatementCache statements, ConnectionPool yield) {
         this.connection = connection;
+        this.statements = statements;
         this.yield = yield;
     }
 
@@ -15,6 +19,21 @@ public class ConnectionHandle implements AutoCloseable {
         return connection;
     }
 
+    /** Get a prepared statement for the given SQL, which is kept around for
+     * the next time the same SQL gets prepared on this connection, so it gets
+     * parsed and planned only once.
+     * <br><br>
+     * The statement belongs to the connection, not to the caller, which must
+     * not close it, only the result sets it produces. This also means that the
+     * same SQL must not be prepared again while a result set of its statement
+     * is still being read.
+     *
+     * @throws SQLException When the statement could not be prepared.
+     */
+    public PreparedStatement prepare(String sql) throws SQLException {
+        return this.statements.prepare(sql);
+    }
+
     @Override
     public void close() {
         this.yield.yield(this.connection);
@@ -6,6 +6,24 @@ public interface ConnectionPool extends AutoCloseable {
     /** Takes one connection from the queue or waits for one to become available. */
     ConnectionHandle take() throws InterruptedException;
 
+    /** Takes one connection that will only ever be used for reading. Pools
+     * that tell readers apart from writers may hand out connections that
+     * can't write to the database at all. */
+    default ConnectionHandle takeReader() throws InterruptedException {
+        return this.take();
+    }
+
+    /** Takes one connection that will be used for writing to the database. */
+    default ConnectionHandle takeWriter() throws InterruptedException {
+        return this.take();
+    }
+
+    /** The number of connections that can be reading from the database at
+     * the same time, which is how many ways work may be split up into. */
+    default int getReaderCount() {
+        return 1;
+    }
+
     /** Returns a connection object to the back of the queue. */
     void yield(Connection c);
 }
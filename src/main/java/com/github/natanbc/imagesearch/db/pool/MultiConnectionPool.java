@@ -4,23 +4,40 @@ import com.github.natanbc.imagesearch.db.pool.ConnectionPool;
 
 import java.sql.Connection;
 import java.sql.SQLException;
+import java.util.IdentityHashMap;
 import java.util.concurrent.ArrayBlockingQueue;
 
 public class MultiConnectionPool implements ConnectionPool {
+    /** How many prepared statements are cached for every connection. */
+    public static final int DEFAULT_STATEMENT_CACHE_SIZE = 64;
+
     /* Underlying data structure. */
     protected ArrayBlockingQueue<Connection> connections;
+    /* Statements prepared on every connection. Only ever written to by the
+     * constructor, so it is safe to read from any thread. */
+    protected final IdentityHashMap<Connection, StatementCache> statements;
 
     public MultiConnectionPool(Connector connector, int count) throws SQLException {
+        this(connector, count, DEFAULT_STATEMENT_CACHE_SIZE);
+    }
+
+    public MultiConnectionPool(Connector connector, int count, int statementCacheSize) throws SQLException {
         if(count < 1) throw new IllegalArgumentException("The number of " +
             "connections must be equal to or greater than one");
 
         this.connections = new ArrayBlockingQueue<>(count);
-        for(int i = 0; i < count; ++i)
-            connections.add(connector.connect(i));
+        this.statements = new IdentityHashMap<>(count);
+        for(int i = 0; i < count; ++i) {
+            var connection = connector.connect(i);
+            connections.add(connection);
+            statements.put(connection, new StatementCache(connection, statementCacheSize));
+        }
     }
 
     @Override
     public void close() throws SQLException {
+        /* Statements have to be finalized before their connections go away. */
+        for(var s : this.statements.values()) s.close();
         for(var a : this.connections) a.close();
     }
 
@@ -31,7 +48,13 @@ public class MultiConnectionPool implements ConnectionPool {
     /** Takes one connection from the queue or waits for one to become available. */
     @Override
     public ConnectionHandle take() throws InterruptedException {
-        return new ConnectionHandle(this.connections.take(), this);
+        var connection = this.connections.take();
+        return new ConnectionHandle(connection, this.statements.get(connection), this);
+    }
+
+    @Override
+    public int getReaderCount() {
+        return this.statements.size();
     }
 
     /** Returns a connection object to the back of the queue. */
@@ -0,0 +1,63 @@
+package com.github.natanbc.imagesearch.db.pool;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/** A bounded cache of the prepared statements of a connection, keyed by their
+ * SQL text, which evicts and closes the least recently used statements once it
+ * grows past its capacity. Like the connection it belongs to, it must only
+ * ever be used by one thread at a time. */
+final class StatementCache implements AutoCloseable {
+    private final Connection connection;
+    private final LinkedHashMap<String, PreparedStatement> statements;
+
+    StatementCache(Connection connection, int capacity) {
+        if(capacity < 1) throw new IllegalArgumentException("The capacity " +
+            "of the cache must be equal to or greater than one");
+
+        this.connection = connection;
+        this.statements = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, PreparedStatement> eldest) {
+                if(this.size() <= capacity) return false;
+                try {
+                    eldest.getValue().close();
+                } catch(SQLException e) {
+                    /* Nothing we can do about it, and the statement is going
+                     * away either way. */
+                }
+                return true;
+            }
+        };
+    }
+
+    /** Get the statement for the given SQL, preparing it if it isn't cached,
+     * with all of its parameters cleared. */
+    PreparedStatement prepare(String sql) throws SQLException {
+        var statement = this.statements.get(sql);
+        if(statement == null || statement.isClosed()) {
+            statement = this.connection.prepareStatement(sql);
+            this.statements.put(sql, statement);
+        } else
+            statement.clearParameters();
+
+        return statement;
+    }
+
+    @Override
+    public void close() throws SQLException {
+        SQLException failure = null;
+        for(var statement : this.statements.values())
+            try {
+                statement.close();
+            } catch(SQLException e) {
+                failure = e;
+            }
+        this.statements.clear();
+
+        if(failure != null) throw failure;
+    }
+}
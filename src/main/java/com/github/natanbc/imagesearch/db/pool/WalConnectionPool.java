@@ -0,0 +1,108 @@
+package com.github.natanbc.imagesearch.db.pool;
+
+import org.sqlite.SQLiteConfig;
+
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.SQLException;
+
+/** A pool over a database in WAL mode, which has a number of read only
+ * connections and a single connection for writing.
+ * <br><br>
+ * In WAL mode readers never block the writer, nor the writer the readers, so
+ * long running passes can keep on writing while queries run. SQLite still only
+ * allows one writer at a time, so there's no point in having more than one
+ * connection for it. Connections taken with {@link #take()} are writers, as we
+ * can't know whether their users are going to write. */
+public class WalConnectionPool implements ConnectionPool {
+    /* How long we wait on other processes holding the write lock. */
+    private static final int BUSY_TIMEOUT = 30_000;
+
+    protected final MultiConnectionPool readers;
+    protected final MultiConnectionPool writer;
+    protected Connection writerConnection;
+
+    /** Open the given database file.
+     * @param file The path to the database file, which gets created if it
+     *             doesn't exist yet.
+     * @param readers The number of read only connections.
+     * @param initializer Run on every connection, right after it is opened.
+     * @throws SQLException When a connection could not be opened.
+     */
+    public WalConnectionPool(Path file, int readers, Initializer initializer) throws SQLException {
+        var url = "jdbc:sqlite:" + file;
+
+        /* The writer has to come first, both because it is the one that gets to
+         * create the file and because read only connections can't switch the
+         * journal mode to WAL. */
+        this.writer = new MultiConnectionPool((i) -> {
+            var config = new SQLiteConfig();
+            config.setJournalMode(SQLiteConfig.JournalMode.WAL);
+            config.setSynchronous(SQLiteConfig.SynchronousMode.NORMAL);
+            config.setBusyTimeout(BUSY_TIMEOUT);
+
+            var connection = config.createConnection(url);
+            initializer.initialize(connection);
+            this.writerConnection = connection;
+            return connection;
+        }, 1);
+
+        try {
+            this.readers = new MultiConnectionPool((i) -> {
+                var config = new SQLiteConfig();
+                config.setReadOnly(true);
+                config.setBusyTimeout(BUSY_TIMEOUT);
+
+                var connection = config.createConnection(url);
+                initializer.initialize(connection);
+                return connection;
+            }, readers);
+        } catch(SQLException | RuntimeException e) {
+            this.writer.close();
+            throw e;
+        }
+    }
+
+    public interface Initializer {
+        void initialize(Connection connection) throws SQLException;
+    }
+
+    /** Takes the writer or waits for it to become available. */
+    @Override
+    public ConnectionHandle take() throws InterruptedException {
+        return this.writer.take();
+    }
+
+    @Override
+    public ConnectionHandle takeReader() throws InterruptedException {
+        return this.readers.take();
+    }
+
+    @Override
+    public ConnectionHandle takeWriter() throws InterruptedException {
+        return this.writer.take();
+    }
+
+    @Override
+    public int getReaderCount() {
+        return this.readers.getReaderCount();
+    }
+
+    /** Returns a connection object to the back of the queue it came from. */
+    @Override
+    public void yield(Connection c) {
+        if(c == this.writerConnection)
+            this.writer.yield(c);
+        else
+            this.readers.yield(c);
+    }
+
+    @Override
+    public void close() throws SQLException {
+        try {
+            this.readers.close();
+        } finally {
+            this.writer.close();
+        }
+    }
+}
@@ -0,0 +1,131 @@
+package com.github.natanbc.imagesearch.db.index;
+
+import com.github.darkryu550.imagesearch.magnitude.PerceptualHash;
+import com.github.natanbc.imagesearch.db.Database;
+import com.github.natanbc.imagesearch.db.Image;
+import com.github.natanbc.imagesearch.db.SqlFunctions;
+import com.github.natanbc.imagesearch.db.pool.WalConnectionPool;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class HammingIndexTest {
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private WalConnectionPool pool;
+    private Database database;
+    private HammingIndex index;
+    private final Map<UUID, Long> hashes = new LinkedHashMap<>();
+    private final Random random = new Random(32);
+
+    @Before
+    public void setUp() throws Exception {
+        this.pool = new WalConnectionPool(this.folder.getRoot().toPath().resolve("index.db"), 2, SqlFunctions::install);
+        this.database = new Database(this.pool);
+        this.database.register("hash", new PerceptualHash());
+
+        /* Groups of hashes a few bits apart, so that every distance the index
+         * can search for has images at it. */
+        for(int group = 0; group < 40; ++group) {
+            var base = this.random.nextLong();
+            for(int i = 0; i < 8; ++i)
+                this.insert(this.flip(base, this.random.nextInt(20)));
+        }
+        this.insert(0L);
+        this.insert(-1L);
+
+        this.index = new HammingIndex("mih$hash");
+        this.database.addIndex("hash", this.index);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        this.pool.close();
+    }
+
+    private long flip(long hash, int bits) {
+        for(int i = 0; i < bits; ++i)
+            hash ^= 1L << this.random.nextInt(Long.SIZE);
+        return hash;
+    }
+
+    private void insert(long hash) throws Exception {
+        var id = UUID.randomUUID();
+        try(var handle = this.pool.takeWriter()) {
+            var image = handle.prepare("insert into " + Database.IMAGES_TABLE + "(id, path) values (?, ?)");
+            image.setBytes(1, Database.uuidToBytes(id));
+            image.setString(2, id + ".png");
+            image.execute();
+
+            long rowid;
+            try(var result = handle.prepare("select last_insert_rowid()").executeQuery()) {
+                result.next();
+                rowid = result.getLong(1);
+            }
+
+            var tag = handle.prepare("insert into " + Database.taggerColumnName("hash") + "(image, value) values (?, ?)");
+            tag.setLong(1, rowid);
+            tag.setLong(2, hash);
+            tag.execute();
+
+            /* Hashes inserted after the index was created go through it. */
+            if(this.index != null)
+                this.index.update(handle, rowid, hash);
+        }
+        this.hashes.put(id, hash);
+    }
+
+    @Test
+    public void candidatesHoldEveryMatch() throws Exception {
+        var stored = this.hashes.values().toArray(new Long[0]);
+        for(int i = 0; i < 60; ++i) {
+            var query = this.flip(stored[this.random.nextInt(stored.length)], this.random.nextInt(16));
+            for(int distance = 0; distance < 4 * HammingIndex.CHUNKS; ++distance) {
+                var candidates = this.index.candidates(query, distance);
+                assertTrue(candidates.isPresent());
+
+                var found = new HashSet<UUID>();
+                for(Image image : this.database.getImages(candidates.get()))
+                    found.add(image.getId());
+
+                for(var entry : this.hashes.entrySet())
+                    if(Long.bitCount(entry.getValue() ^ query) <= distance)
+                        assertTrue(
+                            Long.toHexString(entry.getValue()) + " is within " + distance
+                                + " bits of " + Long.toHexString(query),
+                            found.contains(entry.getKey()));
+            }
+        }
+    }
+
+    @Test
+    public void flipsEveryBitOfEveryChunk() throws Exception {
+        /* Hashes one bit away from the query, in every place, are all found
+         * at a distance small enough to only look at single chunks. */
+        for(int bit = 0; bit < Long.SIZE; ++bit)
+            this.insert(1L << bit);
+
+        var found = new HashSet<Long>();
+        for(Image image : this.database.getImages(this.index.candidates(0L, HammingIndex.CHUNKS).get()))
+            found.add(this.hashes.get(image.getId()));
+        for(int bit = 0; bit < Long.SIZE; ++bit)
+            assertTrue(found.contains(1L << bit));
+    }
+
+    @Test
+    public void givesUpOnLargeDistances() {
+        assertFalse(this.index.candidates(0L, 4 * HammingIndex.CHUNKS).isPresent());
+    }
+}
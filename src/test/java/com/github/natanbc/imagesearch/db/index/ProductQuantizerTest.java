@@ -0,0 +1,134 @@
+package com.github.natanbc.imagesearch.db.index;
+
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ProductQuantizerTest {
+    /* Subspaces that don't split the dimensions evenly, so that the uneven
+     * widths get tested too. */
+    private static final int DIMENSIONS = 10;
+    private static final int SUBSPACES = 3;
+    private static final double EPSILON = 1e-3;
+
+    private static List<float[]> vectors;
+    private static ProductQuantizer quantizer;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @BeforeClass
+    public static void train() {
+        var random = new Random(0x5051);
+        vectors = new ArrayList<>();
+        for(int i = 0; i < 2000; ++i) {
+            var vector = new float[DIMENSIONS];
+            for(int j = 0; j < DIMENSIONS; ++j)
+                vector[j] = (float) (random.nextGaussian() * (j + 1));
+            vectors.add(vector);
+        }
+        quantizer = ProductQuantizer.train(vectors.subList(0, 1000), DIMENSIONS, SUBSPACES, 5, 1);
+    }
+
+    @Test
+    public void codesAreTheClosestCentroids() {
+        for(int i = 0; i < 200; ++i) {
+            var vector = vectors.get(i);
+            var table = quantizer.table(vector);
+            var own = distance(quantizer, table, vector);
+            for(int j = 0; j < 200; ++j)
+                assertTrue(own <= distance(quantizer, table, vectors.get(j)));
+        }
+    }
+
+    @Test
+    public void distancesAreOffByNoMoreThanTheCodingError() {
+        /* The approximation is the distance to the centroids of the coded
+         * vector, which can only be as far off from the real distance as the
+         * centroids are from the coded vector, which is the approximate
+         * distance of that vector to its own code. */
+        for(int i = 1000; i < 1200; ++i) {
+            var x = vectors.get(i);
+            var table = quantizer.table(x);
+            for(int j = 1000; j < 1200; ++j) {
+                var y = vectors.get(j);
+                var error = distance(quantizer, quantizer.table(y), y);
+                var approximate = distance(quantizer, table, y);
+                assertEquals(euclidean(x, y), approximate, error + EPSILON);
+            }
+        }
+    }
+
+    @Test
+    public void centroidsSurviveBeingWritten() throws IOException {
+        var file = this.folder.getRoot().toPath().resolve("pq");
+        quantizer.write(file);
+        var read = ProductQuantizer.read(file);
+
+        assertEquals(DIMENSIONS, read.getDimensions());
+        assertEquals(SUBSPACES, read.getSubspaces());
+        assertEquals(1000, read.getSamples());
+        for(int i = 0; i < 50; ++i) {
+            var vector = vectors.get(i);
+            assertArrayEquals(quantizer.table(vector), read.table(vector), 0);
+            assertArrayEquals(code(quantizer, vector).array(), code(read, vector).array());
+        }
+    }
+
+    @Test
+    public void firstVersionHasNoSamples() throws IOException {
+        /* The first version is the second one without the count of samples. */
+        var file = this.folder.getRoot().toPath().resolve("pq1");
+        var second = this.folder.getRoot().toPath().resolve("pq2");
+        quantizer.write(second);
+        var bytes = ByteBuffer.wrap(Files.readAllBytes(second));
+        try(var output = new DataOutputStream(Files.newOutputStream(file))) {
+            output.writeInt(bytes.getInt(0));
+            output.writeInt(1);
+            output.writeInt(bytes.getInt(8));
+            output.writeInt(bytes.getInt(12));
+            output.write(bytes.array(), 20, bytes.capacity() - 20);
+        }
+
+        var read = ProductQuantizer.read(file);
+        assertEquals(0, read.getSamples());
+        assertArrayEquals(quantizer.table(vectors.get(0)), read.table(vectors.get(0)), 0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void needsSamplesToTrain() {
+        ProductQuantizer.train(new ArrayList<>(), DIMENSIONS, SUBSPACES, 5, 1);
+    }
+
+    private static ByteBuffer code(ProductQuantizer quantizer, float[] vector) {
+        var code = ByteBuffer.allocate(SUBSPACES);
+        quantizer.encode(vector, code, 0);
+        return code;
+    }
+
+    private static double distance(ProductQuantizer quantizer, float[] table, float[] vector) {
+        return quantizer.distance(table, code(quantizer, vector), 0);
+    }
+
+    private static double euclidean(float[] a, float[] b) {
+        var total = 0.0;
+        for(int i = 0; i < a.length; ++i) {
+            var d = (double) a[i] - b[i];
+            total += d * d;
+        }
+        return Math.sqrt(total);
+    }
+}
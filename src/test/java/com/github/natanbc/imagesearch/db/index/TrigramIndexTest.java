@@ -0,0 +1,183 @@
+package com.github.natanbc.imagesearch.db.index;
+
+import com.github.darkryu550.textextractor.TesseractTagger;
+import com.github.natanbc.imagesearch.db.Database;
+import com.github.natanbc.imagesearch.db.Image;
+import com.github.natanbc.imagesearch.db.SqlFunctions;
+import com.github.natanbc.imagesearch.db.pool.WalConnectionPool;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.UUID;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TrigramIndexTest {
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private WalConnectionPool pool;
+    private Database database;
+    private TesseractTagger tagger;
+    private TrigramIndex index;
+    private final Map<UUID, String> texts = new LinkedHashMap<>();
+    private final Random random = new Random(29);
+
+    @Before
+    public void setUp() throws Exception {
+        this.pool = new WalConnectionPool(this.folder.getRoot().toPath().resolve("index.db"), 2, SqlFunctions::install);
+        this.database = new Database(this.pool);
+        this.tagger = new TesseractTagger();
+        this.database.register("text", this.tagger);
+
+        /* Groups of texts a few edits apart, with their case mixed up. */
+        for(int group = 0; group < 40; ++group) {
+            var base = this.text(5 + this.random.nextInt(40));
+            for(int i = 0; i < 6; ++i)
+                this.insert(this.mutate(base, this.random.nextInt(5)));
+        }
+        this.insert("");
+        this.insert("ab");
+
+        this.index = new TrigramIndex("tri$text");
+        this.database.addIndex("text", this.index);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        this.tagger.close();
+        this.pool.close();
+    }
+
+    private String text(int length) {
+        var chars = new char[length];
+        for(int i = 0; i < length; ++i) {
+            var c = (char) ('a' + this.random.nextInt(6));
+            chars[i] = this.random.nextInt(4) == 0 ? Character.toUpperCase(c) : c;
+        }
+        return new String(chars);
+    }
+
+    private String mutate(String text, int edits) {
+        var builder = new StringBuilder(text);
+        for(int i = 0; i < edits; ++i) {
+            var c = this.text(1).charAt(0);
+            var at = this.random.nextInt(builder.length() + 1);
+            switch(builder.length() == 0 ? 0 : this.random.nextInt(3)) {
+                case 0: builder.insert(at, c); break;
+                case 1: builder.deleteCharAt(Math.min(at, builder.length() - 1)); break;
+                default: builder.setCharAt(Math.min(at, builder.length() - 1), c); break;
+            }
+        }
+        return builder.toString();
+    }
+
+    private void insert(String text) throws Exception {
+        var id = UUID.randomUUID();
+        try(var handle = this.pool.takeWriter()) {
+            var image = handle.prepare("insert into " + Database.IMAGES_TABLE + "(id, path) values (?, ?)");
+            image.setBytes(1, Database.uuidToBytes(id));
+            image.setString(2, id + ".png");
+            image.execute();
+
+            var tag = handle.prepare("insert into " + Database.taggerColumnName("text")
+                + "(image, value) values (last_insert_rowid(), ?)");
+            tag.setString(1, text);
+            tag.execute();
+        }
+        this.texts.put(id, text);
+    }
+
+    /** Check the candidates for every distance against the images that are
+     * actually within it, returning how many candidates there were. */
+    private int check(String query) throws Exception {
+        var total = 0;
+        for(int distance = 0; distance <= 4; ++distance) {
+            var candidates = this.index.candidates(query, distance);
+            if(query.length() - 2 - 3 * distance <= 0) {
+                assertFalse(candidates.isPresent());
+                continue;
+            }
+            assertTrue(candidates.isPresent());
+
+            var found = new HashSet<UUID>();
+            for(Image image : this.database.getImages(candidates.get()))
+                found.add(image.getId());
+            total += found.size();
+
+            for(var entry : this.texts.entrySet()) {
+                var within = this.tagger.getTagDistance(query, entry.getValue(), distance).isPresent();
+                if(within)
+                    assertTrue(
+                        "\"" + entry.getValue() + "\" is within " + distance + " of \"" + query + "\"",
+                        found.contains(entry.getKey()));
+            }
+        }
+        return total;
+    }
+
+    @Test
+    public void candidatesHoldEveryMatch() throws Exception {
+        var total = 0;
+        var texts = this.texts.values().toArray(new String[0]);
+        for(int i = 0; i < 150; ++i) {
+            var query = this.mutate(texts[this.random.nextInt(texts.length)], this.random.nextInt(4));
+            total += this.check(query);
+        }
+        for(int i = 0; i < 50; ++i)
+            total += this.check(this.text(this.random.nextInt(30)));
+
+        /* A filter that lets everything through would pass the above. */
+        assertTrue(total < 200 * 5 * this.texts.size() / 2);
+    }
+
+    @Test
+    public void candidatesFollowUpdates() throws Exception {
+        var ids = this.texts.keySet().toArray(new UUID[0]);
+        try(var handle = this.pool.takeWriter()) {
+            for(int i = 0; i < 40; ++i) {
+                var id = ids[this.random.nextInt(ids.length)];
+                var text = this.random.nextBoolean() ? this.text(10 + this.random.nextInt(20)) : null;
+
+                long rowid;
+                var select = handle.prepare("select rowid from " + Database.IMAGES_TABLE + " where id=?");
+                select.setBytes(1, Database.uuidToBytes(id));
+                try(var result = select.executeQuery()) {
+                    result.next();
+                    rowid = result.getLong(1);
+                }
+
+                var update = handle.prepare("update " + Database.taggerColumnName("text") + " set value=? where image=?");
+                update.setString(1, text);
+                update.setLong(2, rowid);
+                update.execute();
+                this.index.update(handle, rowid, text);
+
+                if(text == null) this.texts.remove(id);
+                else this.texts.put(id, text);
+            }
+        }
+
+        var texts = this.texts.values().toArray(new String[0]);
+        for(int i = 0; i < 100; ++i)
+            this.check(this.mutate(texts[this.random.nextInt(texts.length)], this.random.nextInt(4)));
+    }
+
+    @Test
+    public void trigramsIgnoreCase() {
+        var grams = TrigramIndex.trigrams("AbAbab");
+        assertEquals(Map.of("aba", 2, "bab", 2), grams);
+        Set<String> none = TrigramIndex.trigrams("ab").keySet();
+        assertTrue(none.isEmpty());
+    }
+}